@@ -0,0 +1,86 @@
+package ro.lic.server.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.data.repository.core.support.RepositoryFactoryBeanSupport;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every call of the Spring Data repositories ({@code ro.lic.server.model.dao}) as
+ * {@code appserver.dao.query}, tagged with the dao and the method, so a slow query shows up by name.
+ * <p> The timing interceptor is added to the proxy of each repository when its factory is created. The registry is
+ * looked up on the first call, this post processor is created before the metrics are configured.</p>
+ */
+@Component
+public class DaoMetricsPostProcessor implements BeanPostProcessor {
+
+    private static final String DAO_PACKAGE = "ro.lic.server.model.dao";
+
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+
+    public DaoMetricsPostProcessor(ObjectProvider<MeterRegistry> meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        if (bean instanceof RepositoryFactoryBeanSupport) {
+            ((RepositoryFactoryBeanSupport<?, ?, ?>) bean).addRepositoryFactoryCustomizer(factory ->
+                    factory.addRepositoryProxyPostProcessor((proxyFactory, repository) -> {
+                        Class<?> dao = repository.getRepositoryInterface();
+                        if (dao.getPackage() != null && DAO_PACKAGE.equals(dao.getPackage().getName())) {
+                            proxyFactory.addAdvice(new TimingInterceptor(dao.getSimpleName()));
+                        }
+                    }));
+        }
+        return bean;
+    }
+
+    private class TimingInterceptor implements MethodInterceptor {
+        private final String dao;
+        private final ConcurrentHashMap<Method, Timer> timers = new ConcurrentHashMap<>();
+
+        private TimingInterceptor(String dao) {
+            this.dao = dao;
+        }
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            Timer timer = timerOf(invocation.getMethod());
+            if (timer == null) {
+                return invocation.proceed();
+            }
+            long start = System.nanoTime();
+            try {
+                return invocation.proceed();
+            } finally {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private Timer timerOf(Method method) {
+            Timer timer = timers.get(method);
+            if (timer == null) {
+                MeterRegistry registry = meterRegistry.getIfAvailable();
+                if (registry == null) {
+                    return null;
+                }
+                timer = timers.computeIfAbsent(method, key -> Timer.builder("appserver.dao.query")
+                        .description("Time of a call of a repository, the query and the mapping of the result")
+                        .tag("dao", dao)
+                        .tag("method", key.getName())
+                        .publishPercentileHistogram()
+                        .register(registry));
+            }
+            return timer;
+        }
+    }
+}
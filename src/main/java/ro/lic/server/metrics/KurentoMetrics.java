@@ -0,0 +1,78 @@
+package ro.lic.server.metrics;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.kurento.client.Continuation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Times the calls made to the media server, as {@code appserver.kurento.rpc} tagged with the operation and the
+ * outcome.
+ * <p> The media pipelines are not beans, the timers are registered in the global registry, to which Spring Boot adds
+ * the registry it configures.</p>
+ */
+public final class KurentoMetrics {
+
+    private static final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private KurentoMetrics() {
+    }
+
+    /**
+     * Times a blocking call.
+     */
+    public static <T> T time(String operation, Supplier<T> call) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = call.get();
+            failed = false;
+            return result;
+        } finally {
+            record(operation, failed, System.nanoTime() - start);
+        }
+    }
+
+    public static void time(String operation, Runnable call) {
+        time(operation, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    /**
+     * Times an asynchronous call, from now until the media server answers.
+     *
+     * @param continuation called with the answer, after it is timed
+     */
+    public static <F> Continuation<F> timed(String operation, Continuation<F> continuation) {
+        long start = System.nanoTime();
+        return new Continuation<F>() {
+            @Override
+            public void onSuccess(F result) throws Exception {
+                record(operation, false, System.nanoTime() - start);
+                continuation.onSuccess(result);
+            }
+
+            @Override
+            public void onError(Throwable cause) throws Exception {
+                record(operation, true, System.nanoTime() - start);
+                continuation.onError(cause);
+            }
+        };
+    }
+
+    private static void record(String operation, boolean failed, long nanos) {
+        String outcome = failed ? "error" : "success";
+        timers.computeIfAbsent(operation + ':' + outcome, key -> Timer.builder("appserver.kurento.rpc")
+                .description("Time of a call to the media server")
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
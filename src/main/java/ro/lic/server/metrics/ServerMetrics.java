@@ -0,0 +1,388 @@
+package ro.lic.server.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ro.lic.server.model.repository.ServerLogWriter;
+import ro.lic.server.model.repository.UserRepository;
+import ro.lic.server.websocket.EndPointHandler;
+import ro.lic.server.websocket.security.AuthenticationService;
+import ro.lic.server.websocket.utils.PresenceService;
+import ro.lic.server.websocket.utils.UserRegistry;
+import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.dispatch.RouteStats;
+import ro.lic.server.websocket.utils.location.LocationUpdatePipeline;
+import ro.lic.server.websocket.utils.log.EventLog;
+import ro.lic.server.websocket.utils.map.MapSnapshotCache;
+import ro.lic.server.websocket.utils.outbound.FanOutEngine;
+import ro.lic.server.websocket.utils.outbound.LatencyHistogram;
+import ro.lic.server.websocket.utils.outbound.OutboundDispatcher;
+import ro.lic.server.websocket.utils.outbound.ResultStreamer;
+import ro.lic.server.websocket.utils.pipeline.MediaSetupService;
+import ro.lic.server.websocket.utils.subscribe.SubscriberController;
+import ro.lic.server.websocket.utils.subscribe.Topic;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the counters kept by the server components as Micrometer meters, scraped from the management port
+ * ({@code /actuator/prometheus}).
+ * <p> The components keep counting on their own, the meters only read them when scraped, so nothing is added on the
+ * message paths. Meters tagged by a value that comes and goes (the outbound queue of the most backed up sessions, the
+ * watchers of each live stream) are refreshed every {@code metrics.refresh-interval-ms}.</p>
+ * <p> Percentiles and maximums read from a {@link LatencyHistogram} cover the last refresh interval, the counts the
+ * time since the start of the server.</p>
+ */
+@Component
+public class ServerMetrics implements MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(ServerMetrics.class);
+
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    @Autowired
+    private EndPointHandler endPointHandler;
+
+    @Autowired
+    private UserRegistry registry;
+
+    @Autowired
+    private OutboundDispatcher outboundDispatcher;
+
+    @Autowired
+    private FanOutEngine fanOutEngine;
+
+    @Autowired
+    private SubscriberController subscriberController;
+
+    @Autowired
+    private PresenceService presenceService;
+
+    @Autowired
+    private AuthenticationService authenticationService;
+
+    @Autowired
+    private ServerLogWriter serverLogWriter;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private ResultStreamer resultStreamer;
+
+    @Autowired
+    private MapSnapshotCache mapSnapshotCache;
+
+    @Autowired
+    private LocationUpdatePipeline locationPipeline;
+
+    @Autowired
+    private MediaSetupService mediaSetupService;
+
+    private final long refreshIntervalMillis;
+    private final int topSessions;
+    private final List<LatencyHistogram.Window> latencyWindows = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private MultiGauge outboundDepth;
+    private MultiGauge liveWatchers;
+
+    public ServerMetrics(@Value("${metrics.refresh-interval-ms:10000}") long refreshIntervalMillis,
+                         @Value("${metrics.outbound.top-sessions:10}") int topSessions) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        this.topSessions = topSessions;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry meterRegistry) {
+        bindRoutes(meterRegistry);
+        bindSessions(meterRegistry);
+        bindOutbound(meterRegistry);
+        bindFanOut(meterRegistry);
+        bindMedia(meterRegistry);
+        bindAuthentication(meterRegistry);
+        bindStorage(meterRegistry);
+        bindStreaming(meterRegistry);
+
+        outboundDepth = MultiGauge.builder("appserver.outbound.session.depth")
+                .description("Messages waiting in the outbound queue of the most backed up sessions")
+                .register(meterRegistry);
+        liveWatchers = MultiGauge.builder("appserver.media.live.watchers")
+                .description("Users watching the live stream of a user")
+                .register(meterRegistry);
+        refresh();
+        scheduler.scheduleWithFixedDelay(this::safeRefresh, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    //region Signalling
+    private void bindRoutes(MeterRegistry meterRegistry) {
+        for (RouteStats route : endPointHandler.getRouteStats()) {
+            Tags tags = Tags.of("method", route.getMethod(), "event", route.getEvent() == null ? "*" : route.getEvent());
+            FunctionTimer.builder("appserver.route", route, RouteStats::getInvocations,
+                    stats -> stats.getTotalTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
+                    .description("Messages handled by a route of the protocol and the time spent handling them")
+                    .tags(tags)
+                    .register(meterRegistry);
+            FunctionCounter.builder("appserver.route.failures", route, RouteStats::getFailures)
+                    .description("Messages of a route whose handler failed")
+                    .tags(tags)
+                    .register(meterRegistry);
+            TimeGauge.builder("appserver.route.max", route, TimeUnit.NANOSECONDS, stats -> stats.getMaxTime(TimeUnit.NANOSECONDS))
+                    .description("Longest time spent handling a message of a route")
+                    .tags(tags)
+                    .register(meterRegistry);
+        }
+    }
+
+    private void bindSessions(MeterRegistry meterRegistry) {
+        Gauge.builder("appserver.sessions", registry, UserRegistry::size)
+                .description("Open websocket sessions")
+                .register(meterRegistry);
+        Gauge.builder("appserver.presence.online", presenceService, PresenceService::getOnlineCount)
+                .description("Users online")
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.presence.changes", presenceService, PresenceService::getChanges)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.presence.writes", presenceService, PresenceService::getWrites)
+                .register(meterRegistry);
+        Gauge.builder("appserver.presence.pending", presenceService, PresenceService::getPendingWrites)
+                .description("Statuses waiting to be written to the database")
+                .register(meterRegistry);
+    }
+
+    private void bindOutbound(MeterRegistry meterRegistry) {
+        FunctionCounter.builder("appserver.outbound.sent", outboundDispatcher, OutboundDispatcher::getSent)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.outbound.dropped", outboundDispatcher, OutboundDispatcher::getDropped)
+                .description("Messages dropped because the queue of a session was full")
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.outbound.coalesced", outboundDispatcher, OutboundDispatcher::getCoalesced)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.outbound.disconnected", outboundDispatcher, OutboundDispatcher::getDisconnected)
+                .description("Sessions closed because they did not read their messages")
+                .register(meterRegistry);
+        bindLatency(meterRegistry, "appserver.outbound.send.latency", outboundDispatcher.getSendLatency(),
+                "Time from queuing a message to the end of its write");
+    }
+
+    private void bindFanOut(MeterRegistry meterRegistry) {
+        for (Topic topic : Topic.values()) {
+            Gauge.builder("appserver.subscribers", subscriberController, controller -> controller.getSubscribers(topic).size())
+                    .description("Subscribers of a topic")
+                    .tag("topic", topic.name().toLowerCase())
+                    .register(meterRegistry);
+        }
+        FunctionCounter.builder("appserver.fanout.broadcasts", fanOutEngine, FanOutEngine::getBroadcasts)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.fanout.deliveries", fanOutEngine, FanOutEngine::getDeliveries)
+                .register(meterRegistry);
+        bindLatency(meterRegistry, "appserver.fanout.latency", fanOutEngine.getLatency(),
+                "Time to hand a broadcast to every subscriber");
+        FunctionCounter.builder("appserver.location.updates", locationPipeline, LocationUpdatePipeline::getUpdates)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.location.frames", locationPipeline, LocationUpdatePipeline::getFrames)
+                .register(meterRegistry);
+    }
+
+    private void bindMedia(MeterRegistry meterRegistry) {
+        Gauge.builder("appserver.media.pipelines", endPointHandler, EndPointHandler::getRecordPipelineCount)
+                .description("Media pipelines open on the media server")
+                .tag("type", "record")
+                .register(meterRegistry);
+        Gauge.builder("appserver.media.pipelines", endPointHandler, EndPointHandler::getPlayPipelineCount)
+                .description("Media pipelines open on the media server")
+                .tag("type", "play")
+                .register(meterRegistry);
+
+        FunctionTimer.builder("appserver.media.setup", mediaSetupService, MediaSetupService::getSetups,
+                service -> service.getTotalSetupTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
+                .description("Media pipelines set up and the time spent in calls to the media server")
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.media.setup.requests", mediaSetupService, MediaSetupService::getRequests)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.media.setup.rejected", mediaSetupService, MediaSetupService::getRejected)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.media.setup.timeouts", mediaSetupService, MediaSetupService::getTimeouts)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.media.setup.failures", mediaSetupService, MediaSetupService::getFailures)
+                .register(meterRegistry);
+        Gauge.builder("appserver.media.setup.queue.depth", mediaSetupService, MediaSetupService::getQueueDepth)
+                .register(meterRegistry);
+        Gauge.builder("appserver.media.setup.active", mediaSetupService, MediaSetupService::getActiveSetups)
+                .register(meterRegistry);
+    }
+
+    private void bindAuthentication(MeterRegistry meterRegistry) {
+        FunctionCounter.builder("appserver.auth.requests", authenticationService, AuthenticationService::getRequests)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.auth.cache.hits", authenticationService, AuthenticationService::getCacheHits)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.auth.checks", authenticationService, AuthenticationService::getChecks)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.auth.rejected", authenticationService, AuthenticationService::getRejected)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.auth.timeouts", authenticationService, AuthenticationService::getTimeouts)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.auth.failures", authenticationService, AuthenticationService::getFailures)
+                .register(meterRegistry);
+        Gauge.builder("appserver.auth.queue.depth", authenticationService, AuthenticationService::getQueueDepth)
+                .register(meterRegistry);
+        Gauge.builder("appserver.auth.active", authenticationService, AuthenticationService::getActiveChecks)
+                .register(meterRegistry);
+    }
+
+    private void bindStorage(MeterRegistry meterRegistry) {
+        Gauge.builder("appserver.serverlog.queue.depth", serverLogWriter, ServerLogWriter::getQueueDepth)
+                .register(meterRegistry);
+        Gauge.builder("appserver.serverlog.queue.capacity", serverLogWriter, ServerLogWriter::getQueueCapacity)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.serverlog.written", serverLogWriter, ServerLogWriter::getWritten)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.serverlog.batches", serverLogWriter, ServerLogWriter::getBatches)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.serverlog.caller.writes", serverLogWriter, ServerLogWriter::getCallerWrites)
+                .description("Entries written by the caller because the queue was full")
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.serverlog.failures", serverLogWriter, ServerLogWriter::getFailures)
+                .register(meterRegistry);
+
+        FunctionCounter.builder("appserver.usercache.hits", userRepository, UserRepository::getCacheHits)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.usercache.misses", userRepository, UserRepository::getCacheMisses)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.usercache.evictions", userRepository, UserRepository::getCacheEvictions)
+                .register(meterRegistry);
+        Gauge.builder("appserver.usercache.size", userRepository, UserRepository::getCacheSize)
+                .register(meterRegistry);
+
+        FunctionCounter.builder("appserver.mapsnapshot.hits", mapSnapshotCache, MapSnapshotCache::getHits)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.mapsnapshot.notmodified", mapSnapshotCache, MapSnapshotCache::getNotModified)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.mapsnapshot.rebuilds", mapSnapshotCache, MapSnapshotCache::getRebuilds)
+                .register(meterRegistry);
+
+        FunctionCounter.builder("appserver.eventlog.written", EventLog.class, type -> EventLog.getWritten())
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.eventlog.dropped", EventLog.class, type -> EventLog.getDropped())
+                .description("Log events dropped because the log buffer was full")
+                .register(meterRegistry);
+    }
+
+    private void bindStreaming(MeterRegistry meterRegistry) {
+        FunctionCounter.builder("appserver.stream.started", resultStreamer, ResultStreamer::getStreams)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.stream.chunks", resultStreamer, ResultStreamer::getChunks)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.stream.rejected", resultStreamer, ResultStreamer::getRejected)
+                .register(meterRegistry);
+        FunctionCounter.builder("appserver.stream.abandoned", resultStreamer, ResultStreamer::getAbandoned)
+                .register(meterRegistry);
+        Gauge.builder("appserver.stream.active", resultStreamer, ResultStreamer::getActiveStreams)
+                .register(meterRegistry);
+    }
+
+    private void bindLatency(MeterRegistry meterRegistry, String name, LatencyHistogram histogram, String description) {
+        LatencyHistogram.Window window = histogram.newWindow();
+        latencyWindows.add(window);
+
+        FunctionCounter.builder(name + ".count", histogram, LatencyHistogram::getCount)
+                .description(description)
+                .register(meterRegistry);
+        TimeGauge.builder(name + ".max", window, TimeUnit.NANOSECONDS, latency -> latency.getMax(TimeUnit.NANOSECONDS))
+                .description(description)
+                .register(meterRegistry);
+        for (double percentile : PERCENTILES) {
+            TimeGauge.builder(name, window, TimeUnit.NANOSECONDS, latency -> latency.getPercentile(percentile, TimeUnit.NANOSECONDS))
+                    .description(description)
+                    .tag("quantile", String.valueOf(percentile / 100))
+                    .register(meterRegistry);
+        }
+    }
+    //endregion
+
+    //region Refresh
+    private void safeRefresh() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            log.warn("Could not refresh the session metrics", e);
+        }
+    }
+
+    private void refresh() {
+        for (LatencyHistogram.Window window : latencyWindows) {
+            window.roll();
+        }
+
+        // one series per session would grow with the clients, only the most backed up ones are published
+        PriorityQueue<SessionDepth> top = new PriorityQueue<>(Comparator.comparingInt(SessionDepth::getDepth));
+        for (UserSession session : registry.getSessions()) {
+            int depth = session.getOutboundDepth();
+            if (depth > 0 && (top.size() < topSessions || depth > top.peek().getDepth())) {
+                top.add(new SessionDepth(session.getSessionId(), depth));
+                if (top.size() > topSessions) {
+                    top.poll();
+                }
+            }
+        }
+        List<MultiGauge.Row<?>> depths = new ArrayList<>();
+        for (SessionDepth session : top) {
+            depths.add(MultiGauge.Row.of(Tags.of("session", session.getSessionId()), session.getDepth()));
+        }
+        outboundDepth.register(depths, true);
+
+        List<MultiGauge.Row<?>> watchers = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : endPointHandler.getLiveWatcherCounts().entrySet()) {
+            watchers.add(MultiGauge.Row.of(Tags.of("streamer", entry.getKey()), entry.getValue()));
+        }
+        liveWatchers.register(watchers, true);
+    }
+
+    private static final class SessionDepth {
+        private final String sessionId;
+        private final int depth;
+
+        private SessionDepth(String sessionId, int depth) {
+            this.sessionId = sessionId;
+            this.depth = depth;
+        }
+
+        private String getSessionId() {
+            return sessionId;
+        }
+
+        private int getDepth() {
+            return depth;
+        }
+    }
+    //endregion
+}
@@ -5,10 +5,11 @@ import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 import ro.lic.server.model.tables.Action;
 
+import java.util.Date;
 import java.util.List;
 
 public interface ActionDao extends CrudRepository<Action, Long> {
 
-    @Query(value = "select * from actions where user_id = :userId and Date(date) = :date", nativeQuery = true)
-    List<Action> getTimeLineForUserOnDate(@Param("userId") long id, @Param("date") String date);
+    @Query(value = "select * from actions where user_id = :userId and date >= :from and date < :to order by date", nativeQuery = true)
+    List<Action> getTimeLineForUserBetween(@Param("userId") long id, @Param("from") Date from, @Param("to") Date to);
 }
@@ -1,21 +1,48 @@
 package ro.lic.server.model.dao;
 
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ro.lic.server.model.tables.Coordinates;
 import ro.lic.server.model.tables.MapItem;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface MapItemDao extends CrudRepository<MapItem, Long> {
 
-    @Query(nativeQuery = true,
-            value = "SELECT * from map_items")
-    List<MapItem> getAll();
+    /**
+     * Every item with its coordinates, in one query.
+     */
+    @Query("select distinct m from MapItem m left join fetch m.coordinates order by m.id")
+    List<MapItem> getAllWithCoordinates();
 
     @Query(nativeQuery = true,
     value = "select latitude, longitude from map_items as mi inner join coordinates on coordinate_id = :id;")
     List<Coordinates> getCoordinates(Long id);
+
+    //region Bulk deletes, to be run in a transaction
+    @Modifying
+    @Query(nativeQuery = true,
+            value = "delete from coordinates where coordinate_id in (:ids)")
+    int deleteCoordinatesOf(@Param("ids") Collection<Long> ids);
+
+    @Modifying
+    @Query(nativeQuery = true,
+            value = "delete from map_items where id in (:ids)")
+    int deleteByIds(@Param("ids") Collection<Long> ids);
+
+    @Modifying
+    @Query(nativeQuery = true,
+            value = "delete from coordinates where coordinate_id is not null")
+    int deleteAllCoordinates();
+
+    @Modifying
+    @Query(nativeQuery = true,
+            value = "delete from map_items")
+    int deleteAllItems();
+    //endregion
 }
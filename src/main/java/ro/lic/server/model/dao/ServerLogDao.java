@@ -3,18 +3,40 @@ package ro.lic.server.model.dao;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
-import ro.lic.server.model.tables.Action;
 import ro.lic.server.model.tables.ServerLog;
 
+import java.util.Date;
 import java.util.List;
 
 public interface ServerLogDao extends CrudRepository<ServerLog, Long> {
 
-    @Query(value = "select * from server_log where Date(datetime) = :date order by Time(datetime) DESC",
+    @Query(value = "select * from server_log where datetime >= :from and datetime < :to order by datetime DESC",
             nativeQuery = true)
-    List<ServerLog> getLogOnDate(@Param("date") String date);
+    List<ServerLog> getLogBetween(@Param("from") Date from, @Param("to") Date to);
 
-    @Query(value = "select * from server_log where user_id = :userId and Date(datetime) = :date order by Time(datetime) DESC",
+    @Query(value = "select * from server_log where user_id = :userId and datetime >= :from and datetime < :to order by datetime DESC",
             nativeQuery = true)
-    List<ServerLog> getTimeLineForUserOnDate(@Param("userId") long id, @Param("date") String date);
+    List<ServerLog> getTimeLineForUserBetween(@Param("userId") long id, @Param("from") Date from, @Param("to") Date to);
+
+    /**
+     * Page of {@link #getLogBetween}, the entries before the (afterTime, afterId) entry.
+     */
+    @Query(value = "select * from server_log where datetime >= :from and datetime < :to " +
+            "and (datetime < :afterTime or (datetime = :afterTime and id < :afterId)) " +
+            "order by datetime DESC, id DESC limit :limit",
+            nativeQuery = true)
+    List<ServerLog> getLogPage(@Param("from") Date from, @Param("to") Date to,
+                               @Param("afterTime") Date afterTime, @Param("afterId") long afterId,
+                               @Param("limit") int limit);
+
+    /**
+     * Page of {@link #getTimeLineForUserBetween}, the entries before the (afterTime, afterId) entry.
+     */
+    @Query(value = "select * from server_log where user_id = :userId and datetime >= :from and datetime < :to " +
+            "and (datetime < :afterTime or (datetime = :afterTime and id < :afterId)) " +
+            "order by datetime DESC, id DESC limit :limit",
+            nativeQuery = true)
+    List<ServerLog> getTimeLineForUserPage(@Param("userId") long id, @Param("from") Date from, @Param("to") Date to,
+                                           @Param("afterTime") Date afterTime, @Param("afterId") long afterId,
+                                           @Param("limit") int limit);
 }
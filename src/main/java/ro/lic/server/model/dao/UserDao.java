@@ -16,8 +16,18 @@ public interface UserDao extends CrudRepository<User, Long> {
     @Query(value = "select * from users ORDER BY name", nativeQuery = true)
     List<User> findAll();
 
-    @Query(value = "select * from users  where status = 'ONLINE' ORDER BY name", nativeQuery = true)
-    List<User> findOnlineUsers();
+    /**
+     * Page of the users without a name, which {@link #findAll} sorts first, after the afterId user.
+     */
+    @Query(value = "select * from users where name is null and id > :afterId ORDER BY id limit :limit", nativeQuery = true)
+    List<User> findPageWithoutName(@Param("afterId") long afterId, @Param("limit") int limit);
+
+    /**
+     * Page of the users with a name in the order of {@link #findAll}, the users after the (afterName, afterId) user.
+     * A range scan of {@code idx_users_name_id}.
+     */
+    @Query(value = "select * from users where (name, id) > (:afterName, :afterId) ORDER BY name, id limit :limit", nativeQuery = true)
+    List<User> findPage(@Param("afterName") String afterName, @Param("afterId") long afterId, @Param("limit") int limit);
 
     @Modifying
     @Transactional
@@ -29,6 +39,16 @@ public interface UserDao extends CrudRepository<User, Long> {
     @Query(value = "UPDATE USERS u SET u.status = :newStatus where u.username = :username", nativeQuery = true)
     int updateOnlineStatus(@Param("username") String username, @Param("newStatus") String newStatus);
 
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE USERS u SET u.status = :newStatus where u.username = :username and u.status <> 'DISABLED'", nativeQuery = true)
+    int updatePresence(@Param("username") String username, @Param("newStatus") String newStatus);
+
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE USERS u SET u.status = 'OFFLINE' where u.status = 'ONLINE'", nativeQuery = true)
+    int resetPresence();
+
     @Modifying
     @Transactional
     @Query(value = "UPDATE USERS u SET " +
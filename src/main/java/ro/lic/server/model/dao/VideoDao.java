@@ -6,6 +6,7 @@ import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 import ro.lic.server.model.tables.Video;
 
+import java.util.Date;
 import java.util.List;
 
 @Repository
@@ -14,13 +15,27 @@ public interface VideoDao extends CrudRepository<Video, Long> {
     @Query(value = "select * from videos where user_id = :userId", nativeQuery = true)
     List<Video> getVideoForUser(Long userId);
 
-    @Query(value = "select * from videos where user_id = :userId and Date(date) = :date", nativeQuery = true)
-    List<Video> getVideoForUserAtDate(Long userId, String date);
+    @Query(value = "select * from videos where user_id = :userId and date >= :from and date < :to", nativeQuery = true)
+    List<Video> getVideoForUserBetween(Long userId, Date from, Date to);
 
     @Query(value = "SELECT * from videos", nativeQuery = true)
     List<Video> getAllVideos();
 
-    @Query(value = "select * from videos where Date(date) = :date", nativeQuery = true)
-    List<Video> getAllVideosAtDate(String date);
+    //region Pages, in the order of the ids
+    @Query(value = "select * from videos where user_id = :userId and id > :afterId order by id limit :limit", nativeQuery = true)
+    List<Video> getVideoForUserPage(Long userId, long afterId, int limit);
+
+    @Query(value = "select * from videos where user_id = :userId and date >= :from and date < :to and id > :afterId order by id limit :limit", nativeQuery = true)
+    List<Video> getVideoForUserBetweenPage(Long userId, Date from, Date to, long afterId, int limit);
+
+    @Query(value = "select * from videos where id > :afterId order by id limit :limit", nativeQuery = true)
+    List<Video> getAllVideosPage(long afterId, int limit);
+
+    @Query(value = "select * from videos where date >= :from and date < :to and id > :afterId order by id limit :limit", nativeQuery = true)
+    List<Video> getAllVideosBetweenPage(Date from, Date to, long afterId, int limit);
+    //endregion
+
+    @Query(value = "select * from videos where date >= :from and date < :to", nativeQuery = true)
+    List<Video> getAllVideosBetween(Date from, Date to);
 
 }
@@ -1,6 +1,8 @@
 package ro.lic.server.model.repository;
 
 import org.checkerframework.checker.units.qual.A;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import ro.lic.server.model.dao.ActionDao;
@@ -8,12 +10,15 @@ import ro.lic.server.model.tables.Action;
 import ro.lic.server.model.tables.User;
 import ro.lic.server.model.tables.Video;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
 /***/
 @Component
 public class ActionRepository {
+    private static final Logger log = LoggerFactory.getLogger(ActionRepository.class);
+
     @Autowired
     private ActionDao actionDao;
 
@@ -63,7 +68,11 @@ public class ActionRepository {
     }
 
     public List<Action> getTimeLineForUserOnDate(User user, String date){
-        System.out.println(String.format("USER: %s, DATE: %s", user, date));
-        return actionDao.getTimeLineForUserOnDate(user.getId(), date);
+        log.debug("Timeline of {} on {}", user.getUsername(), date);
+        DayRange day = DayRange.of(date);
+        if (day == null) {
+            return Collections.emptyList();
+        }
+        return actionDao.getTimeLineForUserBetween(user.getId(), day.getFrom(), day.getTo());
     }
 }
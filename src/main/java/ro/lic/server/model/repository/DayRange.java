@@ -0,0 +1,59 @@
+package ro.lic.server.model.repository;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+
+/**
+ * The half-open interval [start of day, start of next day) of a date sent by a client.
+ * <p> Queries filter on the range instead of {@code Date(column) = :date}, so the database can use the index on the
+ * column rather than computing the date of every row.</p>
+ */
+final class DayRange {
+    /**
+     * same dates as the ones accepted by mysql, with or without leading zeros
+     */
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("uuuu-M-d");
+
+    private final Date from;
+    private final Date to;
+
+    private DayRange(Date from, Date to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @param date a date as yyyy-MM-dd, in the time zone of the server
+     * @return the range of the day, or {@code null} if the date is not valid
+     */
+    static DayRange of(String date) {
+        if (date == null) {
+            return null;
+        }
+        try {
+            LocalDate day = LocalDate.parse(date.trim(), FORMAT);
+            ZoneId zone = ZoneId.systemDefault();
+            return new DayRange(Date.from(day.atStartOfDay(zone).toInstant()),
+                    Date.from(day.plusDays(1).atStartOfDay(zone).toInstant()));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the start of the day, inclusive
+     */
+    Date getFrom() {
+        return from;
+    }
+
+    /**
+     * @return the start of the next day, exclusive
+     */
+    Date getTo() {
+        return to;
+    }
+}
@@ -0,0 +1,92 @@
+package ro.lic.server.model.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A page of a list read with keyset pagination.
+ * <p> Pages are not read with an offset but after the sort key of the last item sent, given back by the client as
+ * an opaque cursor. Every page costs an index range scan of its own size, however far in the list it is, and the
+ * server holds one page at a time.</p>
+ */
+public class KeysetPage<T> {
+    private final List<T> items;
+    private final String next;
+
+    private KeysetPage(List<T> items, String next) {
+        this.items = items;
+        this.next = next;
+    }
+
+    /**
+     * @param rows     the rows of the page query, read with a limit of {@code limit + 1} to know if there is a next page
+     * @param cursorOf the cursor pointing after a row
+     */
+    static <T> KeysetPage<T> of(List<T> rows, int limit, Function<T, Cursor> cursorOf) {
+        if (rows.size() <= limit) {
+            return new KeysetPage<>(rows, null);
+        }
+        List<T> items = rows.subList(0, limit);
+        return new KeysetPage<>(items, cursorOf.apply(items.get(limit - 1)).encode());
+    }
+
+    static <T> KeysetPage<T> empty() {
+        return new KeysetPage<>(List.of(), null);
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the cursor of the next page, or {@code null} if this is the last one
+     */
+    public String getNext() {
+        return next;
+    }
+
+    /**
+     * Position in a list sorted on a key and then on the id. The key may be null, for the rows sorted before the
+     * others because their key is null.
+     */
+    static final class Cursor {
+        private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+        private final String key;
+        private final long id;
+
+        Cursor(String key, long id) {
+            this.key = key;
+            this.id = id;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        String encode() {
+            String text = key == null ? Long.toString(id) : id + ":" + key;
+            return encoder.encodeToString(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @throws IllegalArgumentException if the cursor was not made by {@link #encode()}
+         */
+        static Cursor decode(String cursor) {
+            String text = new String(decoder.decode(cursor), StandardCharsets.UTF_8);
+            int separator = text.indexOf(':');
+            if (separator < 0) {
+                // a null key, a number format exception is an illegal argument too
+                return new Cursor(null, Long.parseLong(text));
+            }
+            return new Cursor(text.substring(separator + 1), Long.parseLong(text.substring(0, separator)));
+        }
+    }
+}
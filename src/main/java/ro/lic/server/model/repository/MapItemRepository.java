@@ -2,31 +2,178 @@ package ro.lic.server.model.repository;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
 import ro.lic.server.model.dao.MapItemDao;
 import ro.lic.server.model.tables.Coordinates;
 import ro.lic.server.model.tables.MapItem;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Access to the map items.
+ * <p> Changes are applied in one transaction each, one at a time, and every change makes a new version of the map.
+ * The map is read in one query while holding the monitor of the repository, which the changes hold too, so readers
+ * see the map before or after a change, never in between.</p>
+ * <p> The version is kept in memory and starts from the start time of the server, so versions given to the clients
+ * before a restart are never reused.</p>
+ */
 @Component
 public class MapItemRepository {
 
     @Autowired
     private MapItemDao mapItemDao;
 
-    public void addMapItem(MapItem mapItem){
-        mapItemDao.save(mapItem);
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Thrown when a change was made on another version of the map than the current one.
+     */
+    public static class StaleVersionException extends RuntimeException {
+        private final long currentVersion;
+
+        StaleVersionException(long currentVersion) {
+            super("The map changed, current version is " + currentVersion);
+            this.currentVersion = currentVersion;
+        }
+
+        public long getCurrentVersion() {
+            return currentVersion;
+        }
     }
 
-    public List<MapItem> getMapItems(){
-        return mapItemDao.getAll();
+    public void addMapItem(MapItem mapItem){
+        mapItemDao.save(mapItem);
     }
 
     public List<Coordinates> getCoordinates(Long id){
         return mapItemDao.getCoordinates(id);
     }
 
-    public void clearTable(){
-        mapItemDao.deleteAll();
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * The map at a version.
+     */
+    public static class Snapshot {
+        private final long version;
+        private final List<MapItem> items;
+
+        Snapshot(long version, List<MapItem> items) {
+            this.version = version;
+            this.items = items;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<MapItem> getItems() {
+            return items;
+        }
+    }
+
+    /**
+     * Reads every item, with its coordinates in the same query, and the version of the map they are at. Changes are
+     * not applied while the map is read.
+     */
+    public synchronized Snapshot getSnapshot() {
+        return new Snapshot(version.get(), List.copyOf(mapItemDao.getAllWithCoordinates()));
+    }
+
+    /**
+     * Replaces every item of the map.
+     *
+     * @return the new version of the map
+     */
+    public synchronized long replaceAll(Collection<MapItem> items) {
+        transactionTemplate.executeWithoutResult(status -> {
+            mapItemDao.deleteAllCoordinates();
+            mapItemDao.deleteAllItems();
+            mapItemDao.saveAll(items);
+        });
+        return version.incrementAndGet();
+    }
+
+    /**
+     * Applies a change of the map: adds new items, replaces the fields of existing items and removes items by id.
+     * <p> The coordinates of an updated item are only rewritten if they changed, an update without coordinates keeps
+     * them. Items updated or removed that no longer exist are ignored.</p>
+     *
+     * @param expectedVersion the version the change was made on, or a negative value to apply it on any version
+     * @return the new version of the map
+     * @throws StaleVersionException if the map is no longer at the expected version, nothing is changed
+     */
+    public synchronized long applyChanges(Collection<MapItem> added, Collection<MapItem> updated, Collection<Long> removed,
+                                          long expectedVersion) {
+        if (expectedVersion >= 0 && expectedVersion != version.get()) {
+            throw new StaleVersionException(version.get());
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!removed.isEmpty()) {
+                mapItemDao.deleteCoordinatesOf(removed);
+                mapItemDao.deleteByIds(removed);
+            }
+            if (!updated.isEmpty()) {
+                update(updated);
+            }
+            if (!added.isEmpty()) {
+                mapItemDao.saveAll(added);
+            }
+        });
+        return version.incrementAndGet();
+    }
+
+    private void update(Collection<MapItem> updated) {
+        List<Long> ids = new ArrayList<>(updated.size());
+        for (MapItem change : updated) {
+            if (change.getId() != null) {
+                ids.add(change.getId());
+            }
+        }
+        Map<Long, MapItem> existing = new HashMap<>();
+        for (MapItem item : mapItemDao.findAllById(ids)) {
+            existing.put(item.getId(), item);
+        }
+
+        // the managed items are written when the transaction commits
+        for (MapItem change : updated) {
+            MapItem item = existing.get(change.getId());
+            if (item == null) {
+                continue;
+            }
+            item.setName(change.getName());
+            item.setDescription(change.getDescription());
+            item.setColor(change.getColor());
+            if (change.getType() != null) {
+                item.setType(change.getType());
+            }
+            if (change.getCoordinates() != null && !sameCoordinates(item.getCoordinates(), change.getCoordinates())) {
+                item.getCoordinates().clear();
+                item.getCoordinates().addAll(change.getCoordinates());
+            }
+        }
+    }
+
+    private static boolean sameCoordinates(List<Coordinates> current, List<Coordinates> changed) {
+        if (current.size() != changed.size()) {
+            return false;
+        }
+        for (int i = 0; i < current.size(); i++) {
+            if (Double.compare(current.get(i).getLatitude(), changed.get(i).getLatitude()) != 0
+                    || Double.compare(current.get(i).getLongitude(), changed.get(i).getLongitude()) != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 }
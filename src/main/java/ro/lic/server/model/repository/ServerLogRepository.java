@@ -8,6 +8,7 @@ import ro.lic.server.model.enums.ServerLogActionType;
 import ro.lic.server.model.tables.ServerLog;
 import ro.lic.server.model.tables.User;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -16,12 +17,63 @@ public class ServerLogRepository {
     @Autowired
     private ServerLogDao serverLogDao;
 
+    @Autowired
+    private ServerLogWriter serverLogWriter;
+
     public List<ServerLog> getLogOnDate(String date){
-        return serverLogDao.getLogOnDate(date);
+        DayRange day = DayRange.of(date);
+        if (day == null) {
+            return Collections.emptyList();
+        }
+        return serverLogDao.getLogBetween(day.getFrom(), day.getTo());
     }
 
     public List<ServerLog> getLogOnDateForUser(String date, User user){
-        return serverLogDao.getTimeLineForUserOnDate(user.getId(), date);
+        DayRange day = DayRange.of(date);
+        if (day == null) {
+            return Collections.emptyList();
+        }
+        return serverLogDao.getTimeLineForUserBetween(user.getId(), day.getFrom(), day.getTo());
+    }
+
+    /**
+     * @param after the cursor of the previous page, null for the first page
+     * @return a page of {@link #getLogOnDate(String)}
+     */
+    public KeysetPage<ServerLog> getLogOnDate(String date, String after, int limit) {
+        return getLogPage(date, null, after, limit);
+    }
+
+    /**
+     * @param after the cursor of the previous page, null for the first page
+     * @return a page of {@link #getLogOnDateForUser(String, User)}
+     */
+    public KeysetPage<ServerLog> getLogOnDateForUser(String date, User user, String after, int limit) {
+        return getLogPage(date, user, after, limit);
+    }
+
+    private KeysetPage<ServerLog> getLogPage(String date, User user, String after, int limit) {
+        DayRange day = DayRange.of(date);
+        if (day == null) {
+            return KeysetPage.empty();
+        }
+        // the log is sent newest first, the first page starts at the end of the day
+        Date afterTime = day.getTo();
+        long afterId = Long.MAX_VALUE;
+        if (after != null) {
+            try {
+                KeysetPage.Cursor cursor = KeysetPage.Cursor.decode(after);
+                afterTime = new Date(Long.parseLong(cursor.getKey()));
+                afterId = cursor.getId();
+            } catch (IllegalArgumentException e) {
+                return KeysetPage.empty();
+            }
+        }
+        List<ServerLog> rows = user == null
+                ? serverLogDao.getLogPage(day.getFrom(), day.getTo(), afterTime, afterId, limit + 1)
+                : serverLogDao.getTimeLineForUserPage(user.getId(), day.getFrom(), day.getTo(), afterTime, afterId, limit + 1);
+        return KeysetPage.of(rows, limit,
+                serverLog -> new KeysetPage.Cursor(Long.toString(serverLog.getDatetime().getTime()), serverLog.getId()));
     }
 
     public void userLogin(User user) {
@@ -31,7 +83,7 @@ public class ServerLogRepository {
                         user.getUsername()),
                 Importance.LOW,
                 ServerLogActionType.LOGIN);
-        serverLogDao.save(serverLog);
+        serverLogWriter.write(serverLog);
     }
 
     public void userLogout(User user) {
@@ -41,35 +93,35 @@ public class ServerLogRepository {
                         user.getUsername()),
                         Importance.LOW,
                         ServerLogActionType.LOGIN);
-        serverLogDao.save(serverLog);
+        serverLogWriter.write(serverLog);
     }
 
     public void userStartStreaming(User user) {
         ServerLog serverLog = new ServerLog(new Date(), user,
                 String.format("User %s has started streaming", user.getUsername()),
                 Importance.MEDIUM, ServerLogActionType.MEDIA);
-        serverLogDao.save(serverLog);
+        serverLogWriter.write(serverLog);
     }
 
     public void userEndStreaming(User user) {
         ServerLog serverLog = new ServerLog(new Date(), user,
                 String.format("User %s has ended streaming", user.getUsername()),
                 Importance.MEDIUM, ServerLogActionType.MEDIA);
-        serverLogDao.save(serverLog);
+        serverLogWriter.write(serverLog);
     }
 
     public void userStartedPlayback(User user) {
         ServerLog serverLog = new ServerLog(new Date(), user,
                 String.format("User %s has started playback.", user.getUsername()),
                 Importance.MEDIUM, ServerLogActionType.MEDIA);
-        serverLogDao.save(serverLog);
+        serverLogWriter.write(serverLog);
     }
 
     public void userEndedPlayback(User user) {
         ServerLog serverLog = new ServerLog(new Date(), user,
                 String.format("User %s has ended playback.", user.getUsername()),
                 Importance.MEDIUM, ServerLogActionType.MEDIA);
-        serverLogDao.save(serverLog);
+        serverLogWriter.write(serverLog);
     }
 
     public void onUserEnrolled(User user) {
@@ -79,7 +131,7 @@ public class ServerLogRepository {
                         user.getUsername()),
                 Importance.MEDIUM,
                 ServerLogActionType.MEDIA);
-        serverLogDao.save(serverLog);
+        serverLogWriter.write(serverLog);
     }
 
     public void onUserDisabled(User user, String userTarget) {
@@ -89,7 +141,7 @@ public class ServerLogRepository {
                         user.getUsername(), userTarget),
                 Importance.MEDIUM,
                 ServerLogActionType.MEDIA);
-        serverLogDao.save(serverLog);
+        serverLogWriter.write(serverLog);
     }
 
     public void onUserEdited(User user, User userTarget) {
@@ -99,7 +151,7 @@ public class ServerLogRepository {
                         user.getUsername(), userTarget.getUsername()),
                 Importance.MEDIUM,
                 ServerLogActionType.MEDIA);
-        serverLogDao.save(serverLog);
+        serverLogWriter.write(serverLog);
     }
 
     public void unauthorisedAction(User user, String action){
@@ -108,6 +160,6 @@ public class ServerLogRepository {
                 String.format("User %s had denied action: %s", user.getUsername(), action),
                 Importance.HIGN,
                 ServerLogActionType.SECURITY);
-        serverLogDao.save(serverLog);
+        serverLogWriter.write(serverLog);
     }
 }
@@ -0,0 +1,168 @@
+package ro.lic.server.model.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ro.lic.server.model.dao.ServerLogDao;
+import ro.lic.server.model.tables.ServerLog;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind for the server log.
+ * <p> Entries are put in a bounded queue and saved by a writer thread, in batches of up to
+ * {@code serverlog.batch-size} entries, one transaction per batch (hibernate groups the inserts in jdbc batches, see
+ * {@code hibernate.jdbc.batch_size}). A batch is written when it is full or when the oldest entry waited
+ * {@code serverlog.flush-interval-ms}.</p>
+ * <p> When the queue is full the caller saves its entry itself, so entries are never lost and a storm slows down
+ * the callers instead of growing the queue. Pending entries are written on shutdown.</p>
+ */
+@Component
+public class ServerLogWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(ServerLogWriter.class);
+
+    @Autowired
+    private ServerLogDao serverLogDao;
+
+    private final BlockingQueue<ServerLog> queue;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder callerWrites = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public ServerLogWriter(@Value("${serverlog.queue-capacity:4096}") int queueCapacity,
+                           @Value("${serverlog.batch-size:100}") int batchSize,
+                           @Value("${serverlog.flush-interval-ms:500}") long flushIntervalMillis) {
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.writer = new Thread(this::run, "serverlog-writer");
+        this.writer.setDaemon(true);
+    }
+
+    @PostConstruct
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Queues an entry, or saves it on the calling thread if the queue is full.
+     */
+    public void write(ServerLog serverLog) {
+        if (queue.offer(serverLog)) {
+            enqueued.increment();
+            return;
+        }
+        callerWrites.increment();
+        save(List.of(serverLog));
+    }
+
+    private void run() {
+        List<ServerLog> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                ServerLog first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    ServerLog next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                save(batch);
+            } catch (InterruptedException e) {
+                save(batch);
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void save(List<ServerLog> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            serverLogDao.saveAll(batch);
+            written.add(batch.size());
+            batches.increment();
+        } catch (RuntimeException e) {
+            failures.add(batch.size());
+            log.error("Failed to save {} server log entries", batch.size(), e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        // the writer finishes its batch and stops within a flush interval
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+
+        List<ServerLog> pending = new ArrayList<>();
+        while (queue.drainTo(pending, batchSize) > 0) {
+            save(pending);
+            pending.clear();
+        }
+    }
+
+    //region Metrics
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return entries saved by the caller because the queue was full, the back-pressure applied to the callers
+     */
+    public long getCallerWrites() {
+        return callerWrites.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+    //endregion
+}
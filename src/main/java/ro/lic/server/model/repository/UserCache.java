@@ -0,0 +1,155 @@
+package ro.lic.server.model.repository;
+
+import ro.lic.server.model.tables.User;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of users, indexed by username and by id.
+ * <p> Entries expire after a time to live, so changes made to the database by other means are picked up, and the
+ * least recently used entry is evicted when the cache is full. The cached users are shared, callers must not modify
+ * them.</p>
+ * <p> A user read from the database while it is being changed could be put after its invalidation and stay stale
+ * until it expires. So a loader takes the {@link #generation()} before reading and gives it to {@link #put}, which
+ * drops the user if an entry was invalidated since.</p>
+ */
+class UserCache {
+    private final int maxSize;
+    private final long ttlMillis;
+
+    /**
+     * key is username, in access order, guarded by this
+     */
+    private final LinkedHashMap<String, Entry> byUsername = new LinkedHashMap<>(64, 0.75f, true);
+    /**
+     * key is user id, value is username, guarded by this
+     */
+    private final Map<Long, String> usernameById = new HashMap<>();
+    /**
+     * incremented by every invalidation, guarded by this
+     */
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    UserCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+    }
+
+    synchronized User get(String username) {
+        Entry entry = byUsername.get(username);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+            if (entry != null) {
+                remove(username);
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.user;
+    }
+
+    synchronized User get(Long id) {
+        String username = usernameById.get(id);
+        if (username == null) {
+            misses.increment();
+            return null;
+        }
+        return get(username);
+    }
+
+    /**
+     * @return the generation to give to {@link #put}, taken before loading the user
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * @param loadedAt the {@link #generation()} taken before the user was loaded, the user is not cached if an entry
+     *                 was invalidated since
+     */
+    synchronized void put(User user, long loadedAt) {
+        if (user == null || loadedAt != generation) {
+            return;
+        }
+        remove(user.getUsername());
+        byUsername.put(user.getUsername(), new Entry(user, System.currentTimeMillis() + ttlMillis));
+        if (user.getId() != null) {
+            usernameById.put(user.getId(), user.getUsername());
+        }
+
+        Iterator<Map.Entry<String, Entry>> eldest = byUsername.entrySet().iterator();
+        while (byUsername.size() > maxSize && eldest.hasNext()) {
+            User evicted = eldest.next().getValue().user;
+            eldest.remove();
+            if (evicted.getId() != null) {
+                usernameById.remove(evicted.getId());
+            }
+            evictions.increment();
+        }
+    }
+
+    synchronized void invalidate(String username) {
+        generation++;
+        remove(username);
+    }
+
+    /**
+     * Replaces the cached user, if any, with a copy having another status. The entry keeps its expiry.
+     */
+    synchronized void updateStatus(String username, String status) {
+        // a load in flight may have read the previous status
+        generation++;
+        Entry entry = byUsername.get(username);
+        if (entry != null) {
+            byUsername.put(username, new Entry(entry.user.withStatus(status), entry.expiresAt));
+        }
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        byUsername.clear();
+        usernameById.clear();
+    }
+
+    private void remove(String username) {
+        Entry entry = byUsername.remove(username);
+        if (entry != null && entry.user.getId() != null) {
+            usernameById.remove(entry.user.getId());
+        }
+    }
+
+    synchronized int size() {
+        return byUsername.size();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    private static final class Entry {
+        private final User user;
+        private final long expiresAt;
+
+        private Entry(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
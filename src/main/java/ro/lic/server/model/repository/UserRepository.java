@@ -1,6 +1,7 @@
 package ro.lic.server.model.repository;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.stereotype.Component;
 import ro.lic.server.model.enums.Role;
@@ -9,44 +10,87 @@ import ro.lic.server.model.dao.UserDao;
 import ro.lic.server.model.tables.User;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Access to the users.
+ * <p> Single users are read through a {@link UserCache}, every method changing an user invalidates its entry, except
+ * the presence updates which only change the status of the cached copy. The returned users may be shared and must
+ * not be modified.</p>
+ */
 @Component
 public class UserRepository {
+    private static final BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
+
     @Autowired
     UserDao userDao;
 
+    private final UserCache cache;
+
+    public UserRepository(@Value("${usercache.max-size:4096}") int cacheMaxSize,
+                          @Value("${usercache.ttl-ms:60000}") long cacheTtlMillis) {
+        this.cache = new UserCache(cacheMaxSize, cacheTtlMillis);
+    }
+
     public void addUser(User user) {
         userDao.save(user);
+        cache.invalidate(user.getUsername());
     }
 
     public void updateRole(User user, Role newRole) {
-        userDao.updateRole(user.getUsername(), newRole.name());
+        updateRole(user.getUsername(), newRole);
     }
 
     public void updateRole(String userName, Role newRole) {
         userDao.updateRole(userName, newRole.name());
+        cache.invalidate(userName);
     }
 
     public Role authenticate(String username, String password) {
-        User user = userDao.getUserByUsername(username);
+        User user = getUser(username);
         if (user == null || user.getStatus().equals(Status.DISABLED.name()))
             return null;
         String hashPassword = user.getPassword();
-        BCryptPasswordEncoder encoder = new BCryptPasswordEncoder();
-        return encoder.matches(password, hashPassword) ? Role.valueOf(user.getRole()) : null;
+        return passwordEncoder.matches(password, hashPassword) ? Role.valueOf(user.getRole()) : null;
     }
 
     public Role getUserRoleByUsername(String username) {
-        return userDao.getUserRoleByUsername(username);
+        User user = getUser(username);
+        return user == null ? null : Role.valueOf(user.getRole());
     }
 
     public List<User> getAllUsers() {
         return userDao.findAll();
     }
 
-    public List<User> getOnlineUsers() {
-        return userDao.findOnlineUsers();
+    /**
+     * @param after the cursor of the previous page, null for the first page
+     * @return a page of {@link #getAllUsers()}, the users are not shared
+     */
+    public KeysetPage<User> getUsers(String after, int limit) {
+        String afterName = null;
+        long afterId = 0;
+        if (after != null) {
+            try {
+                KeysetPage.Cursor cursor = KeysetPage.Cursor.decode(after);
+                afterName = cursor.getKey();
+                afterId = cursor.getId();
+            } catch (IllegalArgumentException e) {
+                return KeysetPage.empty();
+            }
+        }
+        List<User> rows = new ArrayList<>();
+        if (afterName == null) {
+            // the users without a name come first, then the named ones from the start
+            rows.addAll(userDao.findPageWithoutName(afterId, limit + 1));
+            afterName = "";
+            afterId = Long.MIN_VALUE;
+        }
+        if (rows.size() <= limit) {
+            rows.addAll(userDao.findPage(afterName, afterId, limit + 1 - rows.size()));
+        }
+        return KeysetPage.of(rows, limit, user -> new KeysetPage.Cursor(user.getName(), user.getId()));
     }
 
     public List<User> getAllUsersByRole(Role role) {
@@ -54,32 +98,111 @@ public class UserRepository {
     }
 
     public User getUser(String username) {
-        return userDao.getUserByUsername(username);
+        if (username == null) {
+            return null;
+        }
+        User user = cache.get(username);
+        if (user == null) {
+            long generation = cache.generation();
+            user = userDao.getUserByUsername(username);
+            cache.put(user, generation);
+        }
+        return user;
+    }
+
+    public User getUser(Long id) {
+        User user = cache.get(id);
+        if (user == null) {
+            long generation = cache.generation();
+            user = userDao.findById(id).orElse(null);
+            cache.put(user, generation);
+        }
+        return user;
     }
 
     public int updateUser(@Nonnull User user) {
-        return userDao.updateUser(user.getUsername(),
-                user.getName(),
-                user.getPhoneNumber(),
-                user.getAddress(),
-                user.getProgramStart(),
-                user.getProgramEnd(),
-                user.getRole());
+        try {
+            return userDao.updateUser(user.getUsername(),
+                    user.getName(),
+                    user.getPhoneNumber(),
+                    user.getAddress(),
+                    user.getProgramStart(),
+                    user.getProgramEnd(),
+                    user.getRole());
+        } finally {
+            cache.invalidate(user.getUsername());
+        }
     }
 
-    public void setUserOnline(String username) {
-        userDao.updateOnlineStatus(username, Status.ONLINE.name());
+    /**
+     * Writes the online / offline status of an user, unless the user is disabled.
+     * See {@link ro.lic.server.websocket.utils.PresenceService}.
+     */
+    public void persistPresence(String username, Status status) {
+        boolean updated = false;
+        try {
+            // a disabled user is not changed, its entry is then reloaded as a precaution
+            updated = userDao.updatePresence(username, status.name()) > 0;
+        } finally {
+            if (updated) {
+                cache.updateStatus(username, status.name());
+            } else {
+                cache.invalidate(username);
+            }
+        }
     }
 
-    public void setUserOffline(String username) {
-        userDao.updateOnlineStatus(username, Status.OFFLINE.name());
+    /**
+     * Sets every online user offline.
+     *
+     * @return the number of users changed
+     */
+    public int resetPresence() {
+        try {
+            return userDao.resetPresence();
+        } finally {
+            cache.invalidateAll();
+        }
     }
 
     public void disableUser(String username) {
-        userDao.updateOnlineStatus(username, Status.DISABLED.name());
+        updateOnlineStatus(username, Status.DISABLED);
+    }
+
+    private void updateOnlineStatus(String username, Status status) {
+        try {
+            userDao.updateOnlineStatus(username, status.name());
+        } finally {
+            cache.invalidate(username);
+        }
     }
 
     public String getProgramEnd(String username) {
-        return userDao.getProgramEnd(username);
+        User user = getUser(username);
+        return user == null ? null : user.getProgramEnd();
+    }
+
+    //region Cache metrics
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    public long getCacheEvictions() {
+        return cache.getEvictions();
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    public double getCacheHitRate() {
+        long hits = cache.getHits();
+        long total = hits + cache.getMisses();
+        return total == 0 ? 0 : (double) hits / total;
     }
+    //endregion
 }
@@ -5,6 +5,7 @@ import org.springframework.stereotype.Component;
 import ro.lic.server.model.dao.VideoDao;
 import ro.lic.server.model.tables.Video;
 
+import java.util.Collections;
 import java.util.List;
 
 @Component
@@ -21,7 +22,48 @@ public class VideoRepository {
     }
 
     public List<Video> getListVideoForUserAtDate(Long userId, String date){
-        return videoDao.getVideoForUserAtDate(userId, date);
+        DayRange day = DayRange.of(date);
+        if (day == null) {
+            return Collections.emptyList();
+        }
+        return videoDao.getVideoForUserBetween(userId, day.getFrom(), day.getTo());
+    }
+
+    /**
+     * A page of the videos of an user or of every user, on a date or on any date.
+     *
+     * @param userId null for every user
+     * @param date   null for any date
+     * @param after  the cursor of the previous page, null for the first page
+     */
+    public KeysetPage<Video> getVideos(Long userId, String date, String after, int limit) {
+        long afterId = 0;
+        if (after != null) {
+            try {
+                afterId = KeysetPage.Cursor.decode(after).getId();
+            } catch (IllegalArgumentException e) {
+                return KeysetPage.empty();
+            }
+        }
+        DayRange day = null;
+        if (date != null) {
+            day = DayRange.of(date);
+            if (day == null) {
+                return KeysetPage.empty();
+            }
+        }
+
+        List<Video> rows;
+        if (userId != null) {
+            rows = day == null
+                    ? videoDao.getVideoForUserPage(userId, afterId, limit + 1)
+                    : videoDao.getVideoForUserBetweenPage(userId, day.getFrom(), day.getTo(), afterId, limit + 1);
+        } else {
+            rows = day == null
+                    ? videoDao.getAllVideosPage(afterId, limit + 1)
+                    : videoDao.getAllVideosBetweenPage(day.getFrom(), day.getTo(), afterId, limit + 1);
+        }
+        return KeysetPage.of(rows, limit, video -> new KeysetPage.Cursor("", video.getId()));
     }
 
     public List<Video> getAllVideos(){
@@ -29,6 +71,10 @@ public class VideoRepository {
     }
 
     public List<Video> getAllVideosAtDate(String date){
-        return videoDao.getAllVideosAtDate(date);
+        DayRange day = DayRange.of(date);
+        if (day == null) {
+            return Collections.emptyList();
+        }
+        return videoDao.getAllVideosBetween(day.getFrom(), day.getTo());
     }
 }
@@ -9,7 +9,8 @@ import java.io.Serializable;
 import java.util.Date;
 
 @Entity
-@Table(name = "Actions")
+@Table(name = "Actions",
+        indexes = @Index(name = "idx_actions_user_date", columnList = "user_id, date"))
 public class Action implements Serializable {
     protected Action(){}
 
@@ -22,6 +22,11 @@ public class Coordinates implements Serializable {
 
     }
 
+    public Coordinates(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
     public Coordinates(long id, double latitude, double longitude) {
         this.id = id;
         this.latitude = latitude;
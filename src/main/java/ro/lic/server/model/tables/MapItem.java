@@ -25,6 +25,16 @@ public class MapItem implements Serializable {
 
     }
 
+    /**
+     * An item that already exists, with the new values of all its fields.
+     *
+     * @param coordinates null to keep the coordinates of the item
+     */
+    public MapItem(Long id, String name, String description, int color, String type, List<Coordinates> coordinates) {
+        this(name, description, color, type, coordinates);
+        this.id = id;
+    }
+
     @Id
     @GeneratedValue(strategy = GenerationType.AUTO)
     @Expose
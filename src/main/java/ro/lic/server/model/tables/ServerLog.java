@@ -11,7 +11,11 @@ import java.io.Serializable;
 import java.util.Date;
 
 @Entity
-@Table(name = "ServerLog")
+@Table(name = "ServerLog",
+        indexes = {
+                @Index(name = "idx_server_log_user_datetime", columnList = "user_id, datetime"),
+                @Index(name = "idx_server_log_datetime", columnList = "datetime")
+        })
 public class ServerLog implements Serializable {
     protected ServerLog(){}
 
@@ -59,6 +63,10 @@ public class ServerLog implements Serializable {
     private String username;
 
     // region Getters and setters
+    public Long getId() {
+        return id;
+    }
+
     public Date getDatetime() {
         return datetime;
     }
@@ -13,7 +13,8 @@ import java.util.Date;
 
 /***/
 @Entity
-@Table(name = "Users")
+@Table(name = "Users",
+        indexes = @Index(name = "idx_users_name_id", columnList = "name, id"))
 public class User implements Serializable {
 
     //region Constructors
@@ -88,11 +89,31 @@ public class User implements Serializable {
 
     //endregion
 
+    private static final Gson gson = new GsonBuilder().create();
+
     public static User fromJson(String json) {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
         return gson.fromJson(json, User.class);
     }
 
+    /**
+     * @return a detached copy of the user with another status
+     */
+    public User withStatus(String status) {
+        User copy = new User();
+        copy.id = id;
+        copy.role = role;
+        copy.username = username;
+        copy.password = password;
+        copy.name = name;
+        copy.address = address;
+        copy.phoneNumber = phoneNumber;
+        copy.createdOn = createdOn;
+        copy.programStart = programStart;
+        copy.programEnd = programEnd;
+        copy.status = status;
+        return copy;
+    }
+
     //region Getters and Setters
     public Long getId() {
         return id;
@@ -8,7 +8,11 @@ import java.io.Serializable;
 import  java.util.Date;
 
 @Entity
-@Table(name = "Videos")
+@Table(name = "Videos",
+        indexes = {
+                @Index(name = "idx_videos_user_date", columnList = "user_id, date"),
+                @Index(name = "idx_videos_date", columnList = "date")
+        })
 public class Video implements Serializable {
     //region Constructors
     protected Video(){
@@ -50,6 +54,10 @@ public class Video implements Serializable {
     //endregion
 
     //region Getters and setters
+    public Long getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
@@ -2,40 +2,66 @@ package ro.lic.server.websocket;
 
 import com.auth0.jwt.JWT;
 import com.google.gson.*;
-import com.google.gson.reflect.TypeToken;
 import org.kurento.client.*;
 import org.kurento.client.EventListener;
 import org.kurento.commons.exception.KurentoException;
 import org.kurento.jsonrpc.JsonUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.transaction.TransactionException;
 import org.springframework.web.socket.*;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 import ro.lic.server.model.enums.Role;
 import ro.lic.server.model.enums.Status;
 import ro.lic.server.model.tables.*;
 import ro.lic.server.model.non_db_models.LiveWatcher;
 import ro.lic.server.model.non_db_models.UserLocation;
 import ro.lic.server.model.repository.*;
+import ro.lic.server.websocket.security.AuthenticationService;
 import ro.lic.server.websocket.security.Authoriser;
 import ro.lic.server.websocket.utils.*;
+import ro.lic.server.websocket.utils.dispatch.MessageRouter;
+import ro.lic.server.websocket.utils.dispatch.RouteStats;
+import ro.lic.server.websocket.utils.location.LocationUpdate;
+import ro.lic.server.websocket.utils.location.LocationUpdatePipeline;
+import ro.lic.server.websocket.utils.location.TrackLog;
+import ro.lic.server.websocket.utils.location.TrackPoint;
+import ro.lic.server.websocket.utils.location.Viewport;
+import ro.lic.server.websocket.utils.log.EventLog;
+import ro.lic.server.websocket.utils.map.MapSnapshotCache;
+import ro.lic.server.websocket.utils.message.BinaryCodec;
+import ro.lic.server.websocket.utils.message.InboundMessage;
+import ro.lic.server.websocket.utils.message.MessageDecoder;
+import ro.lic.server.websocket.utils.message.OutboundFrame;
+import ro.lic.server.websocket.utils.message.WireFormat;
+import ro.lic.server.websocket.utils.outbound.OutboundDispatcher;
+import ro.lic.server.websocket.utils.outbound.ResultStreamer;
+import ro.lic.server.websocket.utils.pipeline.MediaSetupService;
 import ro.lic.server.websocket.utils.pipeline.PlayMediaPipeline;
 import ro.lic.server.websocket.utils.pipeline.RecordMediaPipeline;
 import ro.lic.server.websocket.utils.subscribe.SubscriberController;
+import ro.lic.server.websocket.utils.subscribe.Topic;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 import static ro.lic.server.constants.JsonConstants.*;
 
-public class EndPointHandler extends TextWebSocketHandler {
+public class EndPointHandler extends AbstractWebSocketHandler {
 
-    private static final Logger log = LoggerFactory.getLogger(EndPointHandler.class);
-    private static final Gson gson = new GsonBuilder().setDateFormat("MMM dd, yyyy, h:mm:ss a").setPrettyPrinting().excludeFieldsWithoutExposeAnnotation().create();
+    private static final EventLog log = EventLog.get(EndPointHandler.class);
+    /**
+     * every inbound message, location updates included, only a sample is logged
+     */
+    private static final EventLog.Sampled inboundLog = log.sampled(100);
 
     /**
      * pipelines with user that send live streaming to the media server
@@ -46,11 +72,6 @@ public class EndPointHandler extends TextWebSocketHandler {
      */
     private final ConcurrentHashMap<String, PlayMediaPipeline> playPipelines = new ConcurrentHashMap<>();
 
-    /**
-     * key is username
-     */
-    private final ConcurrentHashMap<String, UserLocation> userLocations = new ConcurrentHashMap<>();
-
     @Autowired
     private UserRepository userRepository;
 
@@ -75,6 +96,112 @@ public class EndPointHandler extends TextWebSocketHandler {
     @Autowired
     private SubscriberController subscriberController;
 
+    @Autowired
+    private AuthenticationService authenticationService;
+
+    @Autowired
+    private OutboundDispatcher outboundDispatcher;
+
+    @Autowired
+    private LocationUpdatePipeline locationPipeline;
+
+    @Autowired
+    private TrackLog trackLog;
+
+    @Autowired
+    private PresenceService presenceService;
+
+    @Autowired
+    private ResultStreamer resultStreamer;
+
+    @Autowired
+    private MapSnapshotCache mapSnapshotCache;
+
+    @Autowired
+    private MediaSetupService mediaSetupService;
+
+    @Value("${stream.max-page-size:500}")
+    private int maxPageSize;
+
+    private final MessageRouter router = new MessageRouter();
+
+    public EndPointHandler() {
+        registerRoutes();
+    }
+
+    /**
+     * Builds the dispatch table of the protocol, the (method, event) pairs of every message the server handles.
+     */
+    private void registerRoutes() {
+        router.register("update", "enroll", this::handleEnrollEvent)
+                .register("update", "updateUser", this::handleUpdateUserEvent)
+                .register("update", "disableUser", this::handleDisableUserEvent)
+                .register("update", "removeVideo", this::handleRemoveVideoEvent)
+                .register("update", "mapItems", this::handleMapItemEvent)
+                .register("update", "mapItemChanges", this::handleMapItemChangesEvent)
+                .register("update", "location", this::handleLocationEvent);
+
+        router.register("request", "requestStartStreaming", this::handleRequestUserToStreamEvent)
+                .register("request", "requestTimeline", this::handleRequestTimelineEvent)
+                .register("request", "requestServerLog", this::handleRequestServerLogEvent)
+                .register("request", "requestRecordedVideos", this::handleRequestRecordedVideosEvent)
+                .register("request", "requestUserData", this::handleRequestUserDataEvent)
+                .register("request", "requestAllUsers", this::handleRequestAllUsersEvent)
+                .register("request", "requestOnlineUsers", this::handleRequestOnlineUsersEvent)
+                .register("request", "requestLiveStreamers", this::handleRequestLiveStreamersEvent)
+                .register("request", "requestUserLocations", this::handleRequestUserLocationsEvent)
+                .register("request", "requestUserLocation", this::handleRequestUserLocationEvent)
+                .register("request", "requestUserTrack", this::handleRequestUserTrackEvent)
+                .register("request", "requestMapItems", this::handleRequestMapItemsEvent);
+
+        router.register("media", "iceCandidate", this::handleIceCandidateEvent)
+                .register("media", "playVideoRequest", this::handlePlayVideoRequestEvent)
+                .register("media", "pauseVideoRequest", this::handlePauseVideoRequestEvent)
+                .register("media", "resumeVideoRequest", this::handleResumeVideoRequestEvent)
+                .register("media", "getVideoPositionRequest", this::handleGetVideoPositionRequestEvent)
+                .register("media", "seekVideoRequest", this::handleSeekVideoRequestEvent)
+                .register("media", "stopVideoRequest", this::handleStopVideoRequestEvent)
+                .register("media", "startVideoStreamRequest", this::handleStartVideoStreamRequestEvent)
+                .register("media", "stopVideoStreamRequest", this::handleStopVideoSteramRequestEvent)
+                .register("media", "startLiveVideoWatch", this::handleLiveVideoWatchRequestEvent)
+                .register("media", "stopLiveVideoWatch", this::handleStopWatchLiveVideoRequest);
+
+        for (Topic topic : Topic.values()) {
+            router.register("subscribe", topic.getSubscribeEvent(), (session, message) -> handleSubscribeEvent(session, message, topic))
+                    .register("unsubscribe", topic.getUnsubscribeEvent(), (session, message) -> subscriberController.unsubscribe(topic, session));
+        }
+        router.register("subscribe", "viewport", this::handleViewportEvent)
+                .register("unsubscribe", "viewport", (session, message) -> locationPipeline.setViewport(session, null));
+
+        router.register("activity", this::handleActivityMethodMessage);
+    }
+
+    /**
+     * @return the counters and timings of every route of the protocol
+     */
+    public List<RouteStats> getRouteStats() {
+        return router.getStats();
+    }
+
+    //region Media metrics
+    public int getRecordPipelineCount() {
+        return recordPipeline.size();
+    }
+
+    public int getPlayPipelineCount() {
+        return playPipelines.size();
+    }
+
+    /**
+     * @return the number of live watchers of each user streaming, by username
+     */
+    public Map<String, Integer> getLiveWatcherCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        recordPipeline.forEach((username, pipeline) -> counts.put(username, pipeline.getLiveWatcherCount()));
+        return counts;
+    }
+    //endregion
+
 
     @Override
     public void afterConnectionClosed(final WebSocketSession session, CloseStatus status) throws Exception {
@@ -83,12 +210,12 @@ public class EndPointHandler extends TextWebSocketHandler {
         User user = userRepository.getUser(name);
         serverLogRepository.userLogout(user);
 
-        if (recordPipeline.contains(name)) {
-            recordPipeline.remove(name);
+        // the pipeline itself is released with the session, see stop
+        if (recordPipeline.remove(name) != null) {
             subscriberController.notifySubscribersOnLiveStreamingStopped(new LiveWatcher(user.getName(), user.getUsername()));
         }
-        userLocations.remove(user.getUsername());
-        userRepository.setUserOffline(user.getUsername());
+        locationPipeline.remove(user.getUsername());
+        presenceService.setOffline(user.getUsername());
         try {
             subscriberController.notifySubscribersOnUserStatusModified(Status.OFFLINE, user.getUsername());
         } catch (IllegalStateException e) {
@@ -98,8 +225,9 @@ public class EndPointHandler extends TextWebSocketHandler {
         stop(session);
         // removing all subscriptions that user has
         subscriberController.removeSubscriberAfterConnectionClosed(registry.getBySession(session));
+        locationPipeline.removeSubscriber(registry.getBySession(session));
         registry.removeBySession(session);
-        System.out.println(String.format("User %s disconnected!", name));
+        log.info("User {} disconnected", name);
     }
 
     @Override
@@ -113,7 +241,7 @@ public class EndPointHandler extends TextWebSocketHandler {
 
             // todo: set log error
         } else {
-            System.out.println(String.format("User %s connected!", username));
+            log.info("User {} connected", username);
 
             // create and sign an token
             Role role = userRepository.getUserRoleByUsername(username);
@@ -134,19 +262,22 @@ public class EndPointHandler extends TextWebSocketHandler {
                     .sign(Authoriser.getInstance().getAlgorithm());
 
 
+            WireFormat wireFormat = (WireFormat) session.getAttributes().getOrDefault(WireFormat.ATTRIBUTE, WireFormat.COMPACT);
+            boolean binaryFraming = Boolean.TRUE.equals(session.getAttributes().get(BinaryCodec.ATTRIBUTE));
+            UserSession userSession = new UserSession(session, username, role, wireFormat, binaryFraming,
+                    outboundDispatcher.newQueue(session));
+            userSession.setToken(token);
+
             JsonObject tokenMessage = new JsonObject();
             tokenMessage.addProperty("method", "token");
             tokenMessage.addProperty("token", token);
+            userSession.sendMessage(tokenMessage);
 
-            synchronized (session) {
-                session.sendMessage(new TextMessage(tokenMessage.toString()));
-            }
-
-            UserSession userSession = new UserSession(session, username, role);
-            userSession.setToken(token);
             registry.register(userSession);
+            presenceService.setOnline(username);
 
             User user = userRepository.getUser(username);
+            userSession.setUserId(Math.toIntExact(user.getId()));
             //actionRepository.userLogin(user);
             serverLogRepository.userLogin(user);
             subscriberController.notifySubscribersOnUserStatusModified(Status.ONLINE, username);
@@ -155,77 +286,52 @@ public class EndPointHandler extends TextWebSocketHandler {
 
     @Override
     public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-        try {
-            JsonObject receivedMessage = gson.fromJson(message.getPayload(), JsonObject.class);
-            UserSession user = registry.getBySession(session);
-
-            if (user != null) {
-                System.out.println(String.format("Incoming message from user '%s': %s", user.getUsername(), receivedMessage));
-            } else {
-                System.out.println(String.format("Incoming message from unknown user: %s}", receivedMessage));
-                return;
-            }
+        UserSession user = registry.getBySession(session);
+        if (user != null) {
+            inboundLog.debug("Incoming message from user '{}': {}", user.getUsername(), message.getPayload());
+        } else {
+            log.debug("Incoming message from unknown user: {}", message.getPayload());
+            return;
+        }
 
-            switch (receivedMessage.get("method").getAsString()) {
-                case "update":
-                    handleUpdateMethodMessage(receivedMessage, user);
-                    break;
-                case "request":
-                    handleRequestMethodMessage(user, receivedMessage);
-                    break;
-                case "media":
-                    handleMediaMethodMessage(user, receivedMessage);
-                    break;
-                case "subscribe":
-                    handleSubscribeMethodMessage(user, receivedMessage);
-                    break;
-                case "unsubscribe":
-                    handleUnsubscribeMethodMessage(user, receivedMessage);
-                    break;
-                case "activity":
-                    handleActivityMethodMessage(user, receivedMessage);
-                default:
+        try {
+            InboundMessage receivedMessage = MessageDecoder.decode(message.getPayload());
 
+            if (!router.dispatch(user, receivedMessage)) {
+                log.debug("No route for message {}/{} from user '{}'",
+                        receivedMessage.getMethod(), receivedMessage.getEvent(), user.getUsername());
             }
         } catch (JsonSyntaxException | NullPointerException e) {
-            session.sendMessage(new TextMessage("json error"));
-            System.out.println("!!! JSON FROM CLIENT ERROR: " + e.getMessage());
+            user.sendMessage(new TextMessage("json error"));
+            log.warn("Invalid message from user '{}': {}", user.getUsername(), e.getMessage());
         }
     }
 
-    //region Update method message
-
     /**
-     * Update message method type.
-     * <p>Updates the database.</p>
-     *
-     * @param receivedMessage is the received message by the application server
-     * @param session         is the user session that send the message
+     * Handles the binary frames of the clients that negotiated them, see {@link BinaryCodec}.
+     * The frames are decoded into the same messages as their json counterparts and routed the same way.
      */
-    private void handleUpdateMethodMessage(JsonObject receivedMessage, UserSession session) throws IOException {
-        switch (receivedMessage.get("event").getAsString()) {
-            case "enroll":
-                handleEnrollEvent(session, receivedMessage);
-                break;
-            case "updateUser":
-                handleUpdateUserEvent(session, receivedMessage);
-                break;
-            case "disableUser":
-                handleDisableUserEvent(session, receivedMessage);
-                break;
-            case "removeVideo":
-                break;
-            case "mapItems":
-                handleMapItemEvent(session, receivedMessage);
-                break;
-            case "location":
-                handleLocationEvent(session, receivedMessage);
-                break;
-            default:
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        UserSession user = registry.getBySession(session);
+        if (user == null || !user.isBinaryFraming()) {
+            session.close(CloseStatus.NOT_ACCEPTABLE.withReason("Binary frames were not negotiated"));
+            return;
+        }
 
+        try {
+            InboundMessage receivedMessage = BinaryCodec.decode(message.getPayload(), user.getToken());
+            router.dispatch(user, receivedMessage);
+        } catch (IllegalArgumentException e) {
+            log.debug("Invalid binary frame from user '{}': {}", user.getUsername(), e.getMessage());
+        } catch (JsonSyntaxException | NullPointerException e) {
+            // as for text messages, a handler failing on a malformed message does not close the session
+            log.warn("Invalid message from user '{}': {}", user.getUsername(), e.getMessage());
         }
     }
 
+    //region Update method message
+
     /**
      * Update method: enroll event
      * <p> Handles user enroll in the application database.</p>
@@ -233,11 +339,11 @@ public class EndPointHandler extends TextWebSocketHandler {
      * @param receivedMessage is the received message by the application server
      * @param userSession     is the user session that send the message
      */
-    private void handleEnrollEvent(UserSession userSession, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleEnrollEvent(UserSession userSession, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseEnroll(userSession, token)) {
-            System.out.println("Enroll event: " + receivedMessage.toString());
-            String userJson = receivedMessage.get("payload").getAsString();
+            log.info("Enroll event from {}", userSession.getUsername());
+            String userJson = receivedMessage.getPayload();
             if (userJson != null) {
                 User userModel = User.fromJson(userJson);
                 //encode password
@@ -256,9 +362,7 @@ public class EndPointHandler extends TextWebSocketHandler {
                 response.addProperty("event", "enroll");
                 response.addProperty("response", "success");
 
-                synchronized (userSession.getSession()) {
-                    userSession.sendMessage(response);
-                }
+                userSession.sendMessage(response);
             }
         } else {
             User user = userRepository.getUser(userSession.getUsername());
@@ -268,10 +372,8 @@ public class EndPointHandler extends TextWebSocketHandler {
             response.addProperty("event", "enroll");
             response.addProperty("response", "failed");
 
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
-            userSession.getSession().close();
+            userSession.sendMessage(response);
+            userSession.close();
         }
     }
 
@@ -281,17 +383,18 @@ public class EndPointHandler extends TextWebSocketHandler {
      * @param receivedMessage is the received message by the application server
      * @param userSession     is the user session that send the message
      */
-    private void handleUpdateUserEvent(UserSession userSession, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleUpdateUserEvent(UserSession userSession, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseEditUser(userSession, token)) {
-            User userTarget = User.fromJson(receivedMessage.get("payload").getAsString());
+            User userTarget = User.fromJson(receivedMessage.getPayload());
 
             User user = userRepository.getUser(userSession.getUsername());
             //actionRepository.onEditUser(user, userTarget);
             serverLogRepository.onUserEdited(user, userTarget);
 
             int i = userRepository.updateUser(userTarget);
-            System.out.println("Updated rows: " + i);
+            authenticationService.invalidate(userTarget.getUsername());
+            log.debug("Updated rows: {}", i);
 
             JsonObject response = new JsonObject();
             response.addProperty("method", "update");
@@ -302,9 +405,7 @@ public class EndPointHandler extends TextWebSocketHandler {
             } else
                 response.addProperty("response", "fail");
 
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
+            userSession.sendMessage(response);
         } else {
             User user = userRepository.getUser(userSession.getUsername());
             serverLogRepository.unauthorisedAction(user, "Update user");
@@ -313,10 +414,8 @@ public class EndPointHandler extends TextWebSocketHandler {
             response.addProperty("event", "updateUser");
             response.addProperty("response", "failed");
 
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
-            userSession.getSession().close();
+            userSession.sendMessage(response);
+            userSession.close();
         }
     }
 
@@ -329,20 +428,21 @@ public class EndPointHandler extends TextWebSocketHandler {
      * @param receivedMessage is the received message by the application server
      * @param userSession     is the user session that send the message
      */
-    private void handleDisableUserEvent(UserSession userSession, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleDisableUserEvent(UserSession userSession, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseToDisableUser(userSession, token)) {
-            String userTargetUsername = receivedMessage.get("payload").getAsString();
+            String userTargetUsername = receivedMessage.getPayload();
 
             User admin = userRepository.getUser(userSession.getUsername());
             //actionRepository.onDisabledUser(admin, userTargetUsername);
             serverLogRepository.onUserDisabled(admin, userTargetUsername);
 
             UserSession session = registry.getByName(userTargetUsername);
-            session.getSession().close(new CloseStatus(4999, "Account was disabled"));
+            session.close(new CloseStatus(4999, "Account was disabled"));
 
             userRepository.disableUser(userTargetUsername);
-            System.out.println(String.format("Disabled account %s by %s", userTargetUsername, admin.getUsername()));
+            authenticationService.invalidate(userTargetUsername);
+            log.info("Disabled account {} by {}", userTargetUsername, admin.getUsername());
 
             subscriberController.notifySubscribersOnUserStatusModified(Status.DISABLED, userTargetUsername);
 
@@ -352,9 +452,7 @@ public class EndPointHandler extends TextWebSocketHandler {
             response.addProperty("event", "disableUser");
             response.addProperty("response", "success");
 
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
+            userSession.sendMessage(response);
         } else {
             User user = userRepository.getUser(userSession.getUsername());
             serverLogRepository.unauthorisedAction(user, "Disable user");
@@ -363,72 +461,27 @@ public class EndPointHandler extends TextWebSocketHandler {
             response.addProperty("event", "disableUser");
             response.addProperty("response", "fail");
 
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
-            userSession.getSession().close();
+            userSession.sendMessage(response);
+            userSession.close();
         }
     }
 
-    private void handleRemoveVideoEvent(UserSession userSession, JsonObject receivedMessage) {
+    private void handleRemoveVideoEvent(UserSession userSession, InboundMessage receivedMessage) {
 
     }
 
-    private void handleMapItemEvent(UserSession userSession, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleMapItemEvent(UserSession userSession, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseAccessMapItems(userSession, token)) {
-            mapItemRepository.clearTable();
-            JsonArray markers = receivedMessage.get("marks").getAsJsonArray();
-            JsonArray paths = receivedMessage.get("paths").getAsJsonArray();
-            JsonArray zones = receivedMessage.get("zones").getAsJsonArray();
-
-
-            for (int i = 0; i < paths.size(); i++) {
-                JsonObject current = new JsonParser().parse(paths.get(i).getAsString()).getAsJsonObject();
-                String name = current.get("name").getAsString();
-                String description = current.get("description").getAsString();
-                int color = current.get("color").getAsInt();
-                Type latLngListType = new TypeToken<ArrayList<Coordinates>>() {
-                }.getType();
-                ArrayList<Coordinates> coordinates = gson.fromJson(current.get("coordinates"), latLngListType);
-
-                MapItem mapItem = new MapItem(name, description, color, "PATH", coordinates);
-                mapItemRepository.addMapItem(mapItem);
-            }
+            long version = mapItemRepository.replaceAll(newMapItems(receivedMessage));
 
-            for (int i = 0; i < zones.size(); i++) {
-                JsonObject current = new JsonParser().parse(zones.get(i).getAsString()).getAsJsonObject();
-                String name = current.get("name").getAsString();
-                String description = current.get("description").getAsString();
-                int color = current.get("color").getAsInt();
-                Type latLngListType = new TypeToken<ArrayList<Coordinates>>() {
-                }.getType();
-                ArrayList<Coordinates> coordinates = gson.fromJson(current.get("coordinates"), latLngListType);
-
-                MapItem mapItem = new MapItem(name, description, color, "ZONE", coordinates);
-                mapItemRepository.addMapItem(mapItem);
-            }
-
-            for (int i = 0; i < markers.size(); i++) {
-                JsonObject current = new JsonParser().parse(markers.get(i).getAsString()).getAsJsonObject();
-                String name = current.get("name").getAsString();
-                String description = current.get("description").getAsString();
-                int color = current.get("color").getAsInt();
-                Type latLngListType = new TypeToken<ArrayList<Coordinates>>() {
-                }.getType();
-                ArrayList<Coordinates> coordinates = gson.fromJson(current.get("coordinates"), latLngListType);
-
-                MapItem mapItem = new MapItem(name, description, color, "MARKER", coordinates);
-                mapItemRepository.addMapItem(mapItem);
-            }
             JsonObject response = new JsonObject();
             response.addProperty("method", "update");
             response.addProperty("event", "mapItems");
             response.addProperty("response", "success");
+            response.addProperty("version", version);
 
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
+            userSession.sendMessage(response);
         } else {
             User user = userRepository.getUser(userSession.getUsername());
             serverLogRepository.unauthorisedAction(user, "Modify map items");
@@ -437,262 +490,252 @@ public class EndPointHandler extends TextWebSocketHandler {
             response.addProperty("event", "mapItems");
             response.addProperty("response", "fail");
 
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
+            userSession.sendMessage(response);
+            userSession.close();
+        }
+    }
+
+    /**
+     * Update method: map item changes event
+     * <p> Applies a change of the map: new items in paths, zones and marks, existing items with their new fields in
+     * updated and the ids of the items to remove in removed. If the message has the version of the map the change was
+     * made on and the map changed since, nothing is applied and the response is a conflict with the current
+     * version.</p>
+     */
+    private void handleMapItemChangesEvent(UserSession userSession, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
+        JsonObject response = new JsonObject();
+        response.addProperty("method", "update");
+        response.addProperty("event", "mapItemChanges");
+
+        if (Authoriser.authoriseAccessMapItems(userSession, token)) {
+            try {
+                long version = mapItemRepository.applyChanges(newMapItems(receivedMessage),
+                        receivedMessage.getUpdatedItems(), receivedMessage.getRemovedItems(), receivedMessage.getVersion());
+                response.addProperty("response", "success");
+                response.addProperty("version", version);
+            } catch (MapItemRepository.StaleVersionException e) {
+                response.addProperty("response", "conflict");
+                response.addProperty("version", e.getCurrentVersion());
+            } catch (DataAccessException | TransactionException e) {
+                // a TransactionSystemException when the commit fails
+                log.warn("Could not apply the map item changes of user '{}'", userSession.getUsername(), e);
+                response.addProperty("response", "fail");
             }
-            userSession.getSession().close();
+            userSession.sendMessage(response);
+        } else {
+            User user = userRepository.getUser(userSession.getUsername());
+            serverLogRepository.unauthorisedAction(user, "Modify map items");
+            response.addProperty("response", "fail");
+
+            userSession.sendMessage(response);
+            userSession.close();
         }
     }
 
-    private void handleLocationEvent(UserSession userSession, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
-        if (Authoriser.checkToken(userSession, token)) {
-            Double lat = receivedMessage.get("payload").getAsJsonObject().get("lat").getAsDouble();
-            Double lng = receivedMessage.get("payload").getAsJsonObject().get("lng").getAsDouble();
+    private static List<MapItem> newMapItems(InboundMessage receivedMessage) {
+        List<MapItem> items = new ArrayList<>(receivedMessage.getPaths());
+        items.addAll(receivedMessage.getZones());
+        items.addAll(receivedMessage.getMarkers());
+        return items;
+    }
 
-            userLocations.put(userSession.getUsername(), new UserLocation(lat, lng));
-            System.out.println(String.format("User %s, updated location lat: %f; lng: %f", userSession.getUsername(), lat, lng));
+    private void handleLocationEvent(UserSession userSession, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
+        if (Authoriser.checkToken(userSession, token)) {
+            if (!receivedMessage.hasLocation())
+                return;
+            double lat = receivedMessage.getLat();
+            double lng = receivedMessage.getLng();
 
-            subscriberController.notifySubscribersOnLocationChanged(userSession.getUsername(), lat, lng);
+            if (log.isDebugEnabled()) {
+                // boxing the coordinates of every update is not free
+                log.debug("User {}, updated location lat: {}; lng: {}", userSession.getUsername(), lat, lng);
+            }
+            locationPipeline.update(userSession.getUsername(), lat, lng);
+            trackLog.append(userSession.getUserId(), lat, lng);
         } else {
             User user = userRepository.getUser(userSession.getUsername());
             serverLogRepository.unauthorisedAction(user, "Update user location");
-            userSession.getSession().close();
+            userSession.close();
         }
     }
     //endregion
 
     //region Request method message
 
-    /**
-     * Handles requests made by users from database.
-     *
-     * @param receivedMessage is the received message by the application server
-     * @param userSession     is the user session that send the message
-     */
-    private void handleRequestMethodMessage(final UserSession userSession, final JsonObject receivedMessage) throws IOException {
-        switch (receivedMessage.get("event").getAsString()) {
-            case "requestStartStreaming":
-                handleRequestUserToStreamEvent(userSession, receivedMessage);
-                break;
-            case "requestTimeline":
-                handleRequestTimelineEvent(userSession, receivedMessage);
-                break;
-            case "requestServerLog":
-                handleRequestServerLogEvent(userSession, receivedMessage);
-                break;
-            case "requestRecordedVideos":
-                handleRequestRecordedVideosEvent(userSession, receivedMessage);
-                break;
-            case "requestUserData":
-                handleRequestUserDataEvent(userSession, receivedMessage);
-                break;
-            case "requestAllUsers":
-                handleRequestAllUsersEvent(userSession, receivedMessage);
-                break;
-            case "requestOnlineUsers":
-                handleRequestOnlineUsersEvent(userSession, receivedMessage);
-                break;
-            case "requestLiveStreamers":
-                handleRequestLiveStreamersEvent(userSession, receivedMessage);
-                break;
-            case "requestUserLocations":
-                handleRequestUserLocationsEvent(userSession, receivedMessage);
-                break;
-            case "requestUserLocation":
-                handleRequestUserLocationEvent(userSession, receivedMessage);
-                break;
-            case "requestMapItems":
-                handleRequestMapItemsEvent(userSession, receivedMessage);
-                break;
-            default:
-
-        }
-    }
-
     private void
-    handleRequestUserToStreamEvent(final UserSession userSession, final JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    handleRequestUserToStreamEvent(final UserSession userSession, final InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseRequestUserToStream(userSession, token)) {
-            String username = receivedMessage.get("user").getAsString();
+            String username = receivedMessage.getUser();
 
             UserSession userTarget = registry.getByName(username);
             JsonObject messsage = new JsonObject();
             messsage.addProperty("method", "request");
             messsage.addProperty("event", "requestLiveStreaming");
             messsage.addProperty("from", userSession.getUsername());
-            synchronized (userTarget.getSession()) {
-                userTarget.sendMessage(messsage);
-            }
+            userTarget.sendMessage(messsage);
         } else {
             User user = userRepository.getUser(userSession.getUsername());
             serverLogRepository.unauthorisedAction(user, "Request live streaming");
-            userSession.getSession().close();
+            userSession.close();
         }
     }
 
-    private void handleRequestTimelineEvent(final UserSession userSession, final JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleRequestTimelineEvent(final UserSession userSession, final InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseListTimeline(userSession, token)) {
             // target user
-            String forUser = receivedMessage.get("user").getAsString();
-            String dateString = receivedMessage.get("date").getAsString();
+            String forUser = receivedMessage.getUser();
+            String dateString = receivedMessage.getDate();
             User user = userRepository.getUser(forUser);
 
             //List<Action> actions = actionRepository.getTimeLineForUserOnDate(user, dateString);
-            List<ServerLog> serverLogs = serverLogRepository.getLogOnDateForUser(dateString, user);
-
-            JsonObject response = new JsonObject();
-            response.addProperty("method", "request");
-            response.addProperty("event", "requestTimeline");
-            response.addProperty("payload", gson.toJson(serverLogs));
-
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
+            sendList(userSession, receivedMessage, "requestTimeline",
+                    (after, limit) -> serverLogRepository.getLogOnDateForUser(dateString, user, after, limit),
+                    () -> serverLogRepository.getLogOnDateForUser(dateString, user));
         } else {
             User user = userRepository.getUser(userSession.getUsername());
             serverLogRepository.unauthorisedAction(user, "Request user timeline");
-            userSession.getSession().close();
+            userSession.close();
         }
     }
 
-    private void handleRequestServerLogEvent(final UserSession userSession, final JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleRequestServerLogEvent(final UserSession userSession, final InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseListTimeline(userSession, token)) {
-            String dateString = receivedMessage.get("date").getAsString();
-
-            List<ServerLog> serverLogs = serverLogRepository.getLogOnDate(dateString);
+            String dateString = receivedMessage.getDate();
 
-            JsonObject response = new JsonObject();
-            response.addProperty("method", "request");
-            response.addProperty("event", "requestServerLog");
-            response.addProperty("payload", gson.toJson(serverLogs));
-
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
+            sendList(userSession, receivedMessage, "requestServerLog",
+                    (after, limit) -> serverLogRepository.getLogOnDate(dateString, after, limit),
+                    () -> serverLogRepository.getLogOnDate(dateString));
         } else {
             User user = userRepository.getUser(userSession.getUsername());
             serverLogRepository.unauthorisedAction(user, "Request server log");
-            userSession.getSession().close();
+            userSession.close();
         }
     }
 
-    private void handleRequestRecordedVideosEvent(final UserSession userSession, final JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleRequestRecordedVideosEvent(final UserSession userSession, final InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseListRecordedVideos(userSession, token)) {
-            String forUser = null;
-            if (receivedMessage.has("user")) {
-                forUser = receivedMessage.get("user").getAsString();
-            }
-
-            String date = null;
+            String forUser = receivedMessage.getUser();
+            String date = receivedMessage.getDate();
             User user = userRepository.getUser(forUser);
+            Long userId = forUser != null ? user.getId() : null;
 
-            List<Video> videos = null;
+            sendList(userSession, receivedMessage, "requestRecordedVideos",
+                    (after, limit) -> {
+                        KeysetPage<Video> page = videoRepository.getVideos(userId, date, after, limit);
+                        if (userId == null) {
+                            setVideoUsernames(page.getItems());
+                        }
+                        return page;
+                    },
+                    () -> {
+                        if (userId != null) {
+                            return date != null
+                                    ? videoRepository.getListVideoForUserAtDate(userId, date)
+                                    : videoRepository.getListVideoForUser(userId);
+                        }
+                        return setVideoUsernames(date != null
+                                ? videoRepository.getAllVideosAtDate(date)
+                                : videoRepository.getAllVideos());
+                    });
+        } else {
+            User user = userRepository.getUser(userSession.getUsername());
+            serverLogRepository.unauthorisedAction(user, "Request recorded videos");
+            userSession.close();
+        }
+    }
 
-            if (forUser != null) {
-                if (receivedMessage.has("date")) {
-                    date = receivedMessage.get("date").getAsString();
-                    videos = videoRepository.getListVideoForUserAtDate(user.getId(), date);
-                } else {
-                    videos = videoRepository.getListVideoForUser(user.getId());
-                }
-            } else {
-                if (receivedMessage.has("date")) {
-                    date = receivedMessage.get("date").getAsString();
-                    videos = videoRepository.getAllVideosAtDate(date);
-                    for (Video video : videos) {
-                        video.setUsername(video.getUser().getUsername());
-                    }
-                } else {
-                    videos = videoRepository.getAllVideos();
-                    for (Video video : videos) {
-                        video.setUsername(video.getUser().getUsername());
-                    }
-                }
-            }
+    private static List<Video> setVideoUsernames(List<Video> videos) {
+        for (Video video : videos) {
+            video.setUsername(video.getUser().getUsername());
+        }
+        return videos;
+    }
 
-            JsonObject response = new JsonObject();
-            response.addProperty("method", "request");
-            response.addProperty("event", "requestRecordedVideos");
-            response.addProperty("payload", gson.toJson(videos));
+    /**
+     * Sends a list requested by a client.
+     * <p> The list is sent whole in one frame, as it always was, unless the request asks for a page, with an
+     * {@code after} cursor and / or a {@code limit}, or for a {@code stream}. A page frame has the cursor of the
+     * next page in {@code next}, null after the last page. A stream is sent as chunk frames by the
+     * {@link ResultStreamer}.</p>
+     * <p> The sources run on another thread for streams, they must not use the received message.</p>
+     */
+    private <T> void sendList(UserSession userSession, InboundMessage receivedMessage, String event,
+                              ResultStreamer.PageSource<T> pages, Supplier<List<T>> whole) {
+        if (receivedMessage.isStream()) {
+            resultStreamer.stream(userSession, "request", event, pages);
+            return;
+        }
 
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
+        OutboundFrame response = new OutboundFrame("request", event);
+        if (receivedMessage.getAfter() != null || receivedMessage.getLimit() > 0) {
+            int limit = receivedMessage.getLimit() > 0 ? Math.min(receivedMessage.getLimit(), maxPageSize) : maxPageSize;
+            KeysetPage<T> page = pages.page(receivedMessage.getAfter(), limit);
+            response.property("next", page.getNext())
+                    .payload(page.getItems());
         } else {
-            User user = userRepository.getUser(userSession.getUsername());
-            serverLogRepository.unauthorisedAction(user, "Request recorded videos");
-            userSession.getSession().close();
+            response.payload(whole.get());
         }
+        userSession.sendMessage(response);
     }
 
-    private void handleRequestUserDataEvent(final UserSession userSession, final JsonObject receivedMessage) throws IOException {
-        String requestedUsername = receivedMessage.get("user").getAsString();
-        String token = receivedMessage.get("token").getAsString();
+    private void handleRequestUserDataEvent(final UserSession userSession, final InboundMessage receivedMessage) throws IOException {
+        String requestedUsername = receivedMessage.getUser();
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseRequestUserData(userSession, requestedUsername, token)) {
             User userData = userRepository.getUser(requestedUsername);
 
-            JsonObject response = new JsonObject();
-            response.addProperty("method", "request");
-            response.addProperty("event", "requestUserData");
-            response.addProperty("payload", gson.toJson(userData));
+            OutboundFrame response = new OutboundFrame("request", "requestUserData")
+                    .payload(userData);
 
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
+            userSession.sendMessage(response);
         } else {
             User user = userRepository.getUser(userSession.getUsername());
             serverLogRepository.unauthorisedAction(user, "Request user data");
-            userSession.getSession().close();
+            userSession.close();
         }
     }
 
-    private void handleRequestAllUsersEvent(final UserSession userSession, final JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleRequestAllUsersEvent(final UserSession userSession, final InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseListUsers(userSession, token)) {
-
-            List<User> users = userRepository.getAllUsers();
-
-            JsonObject response = new JsonObject();
-            response.addProperty("method", "request");
-            response.addProperty("event", "requestAllUsers");
-            response.addProperty("payload", gson.toJson(users));
-
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
+            sendList(userSession, receivedMessage, "requestAllUsers",
+                    (after, limit) -> {
+                        KeysetPage<User> page = userRepository.getUsers(after, limit);
+                        presenceService.applyTo(page.getItems());
+                        return page;
+                    },
+                    () -> presenceService.applyTo(userRepository.getAllUsers()));
         } else {
             User user = userRepository.getUser(userSession.getUsername());
             serverLogRepository.unauthorisedAction(user, "Request all users data");
-            userSession.getSession().close();
+            userSession.close();
         }
     }
 
-    private void handleRequestOnlineUsersEvent(final UserSession userSession, final JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleRequestOnlineUsersEvent(final UserSession userSession, final InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseListUsers(userSession, token)) {
-            List<User> users = userRepository.getOnlineUsers();
+            List<User> users = presenceService.getOnlineUsers();
 
-            JsonObject response = new JsonObject();
-            response.addProperty("method", "request");
-            response.addProperty("event", "requestOnlineUsers");
-            response.addProperty("payload", gson.toJson(users));
+            OutboundFrame response = new OutboundFrame("request", "requestOnlineUsers")
+                    .payload(users);
 
-            synchronized (userSession.getSession()) {
-                userSession.sendMessage(response);
-            }
+            userSession.sendMessage(response);
         } else {
             User user = userRepository.getUser(userSession.getUsername());
             serverLogRepository.unauthorisedAction(user, "Request online users");
-            userSession.getSession().close();
+            userSession.close();
         }
     }
 
-    private void handleRequestLiveStreamersEvent(final UserSession session, final JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleRequestLiveStreamersEvent(final UserSession session, final InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseRequestLiveStreamers(session, token)) {
             List<LiveWatcher> liveStreamers = new ArrayList<>();
 
@@ -701,61 +744,78 @@ public class EndPointHandler extends TextWebSocketHandler {
                 liveStreamers.add(new LiveWatcher(user.getName(), user.getUsername()));
             }
 
-            JsonObject response = new JsonObject();
-            response.addProperty("method", "request");
-            response.addProperty("event", "requestLiveStreamers");
-            response.addProperty("payload", gson.toJson(liveStreamers));
+            OutboundFrame response = new OutboundFrame("request", "requestLiveStreamers")
+                    .payload(liveStreamers);
 
-            synchronized (session.getSession()) {
-                session.sendMessage(response);
-            }
+            session.sendMessage(response);
         } else {
             User user = userRepository.getUser(session.getUsername());
             serverLogRepository.unauthorisedAction(user, "Request live streamers");
-            session.getSession().close();
+            session.close();
         }
     }
 
-    private void handleRequestUserLocationsEvent(final UserSession session, final JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleRequestUserLocationsEvent(final UserSession session, final InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseRequestLocation(session, token)) {
             JsonObject response = new JsonObject();
 
             response.addProperty("method", "request");
             response.addProperty("event", "userLocations");
 
+            Collection<LocationUpdate> locations;
+            try {
+                locations = locationsOf(receivedMessage);
+            } catch (IllegalArgumentException e) {
+                response.addProperty("response", "fail");
+                session.sendMessage(response);
+                return;
+            }
+
             JsonArray jsonArray = new JsonArray();
-            for (String key : userLocations.keySet()) {
-                UserLocation currentLocation = userLocations.get(key);
+            for (LocationUpdate currentLocation : locations) {
                 JsonObject element = new JsonObject();
-                element.addProperty("username", key);
+                element.addProperty("username", currentLocation.getUsername());
                 element.addProperty("lat", currentLocation.getLat());
                 element.addProperty("lng", currentLocation.getLng());
                 jsonArray.add(element);
 
             }
             response.add("payload", jsonArray);
-            synchronized (session.getSession()) {
-                session.sendMessage(response);
-            }
+            session.sendMessage(response);
         } else {
             User user = userRepository.getUser(session.getUsername());
             serverLogRepository.unauthorisedAction(user, "Request live streaming");
-            session.getSession().close();
+            session.close();
         }
     }
 
-    private void handleRequestUserLocationEvent(final UserSession session, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    /**
+     * @return the locations in the area of the request payload, every location if the request has no area
+     * @throws IllegalArgumentException if the area is invalid
+     */
+    private Collection<LocationUpdate> locationsOf(InboundMessage receivedMessage) {
+        if (receivedMessage.hasBounds()) {
+            return locationPipeline.getLocations(new Viewport(receivedMessage.getSouth(), receivedMessage.getWest(),
+                    receivedMessage.getNorth(), receivedMessage.getEast()));
+        }
+        if (receivedMessage.hasLocation() && receivedMessage.getRadius() > 0) {
+            return locationPipeline.getLocationsWithin(receivedMessage.getLat(), receivedMessage.getLng(), receivedMessage.getRadius());
+        }
+        return locationPipeline.getLocations();
+    }
+
+    private void handleRequestUserLocationEvent(final UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.authoriseRequestLocation(session, token)) {
-            String username = receivedMessage.get("user").getAsString();
+            String username = receivedMessage.getUser();
             JsonObject response = new JsonObject();
 
             response.addProperty("method", "request");
             response.addProperty("event", "userLocation");
 
-            if (userLocations.containsKey(username)) {
-                UserLocation currentLocation = userLocations.get(username);
+            UserLocation currentLocation = locationPipeline.getLocation(username);
+            if (currentLocation != null) {
                 JsonObject payload = new JsonObject();
                 payload.addProperty("lat", currentLocation.getLat());
                 payload.addProperty("lng", currentLocation.getLng());
@@ -764,83 +824,62 @@ public class EndPointHandler extends TextWebSocketHandler {
                 response.addProperty("payload", "dataEmpty");
             }
 
-            synchronized (session.getSession()) {
-                session.sendMessage(response);
-            }
+            session.sendMessage(response);
         } else {
             User user = userRepository.getUser(session.getUsername());
             serverLogRepository.unauthorisedAction(user, "Request user location");
-            session.getSession().close();
+            session.close();
         }
     }
 
-    public void handleRequestMapItemsEvent(UserSession session, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
-        if (Authoriser.authoriseAccessMapItems(session, token)) {
-            JsonObject response = new JsonObject();
-
-            response.addProperty("method", "request");
-            response.addProperty("event", "requestMapItems");
-
-            List<MapItem> mapItems = mapItemRepository.getMapItems();
-            response.addProperty("payload", gson.toJson(mapItems));
+    /**
+     * Sends the positions of an user in a time range, from the track log.
+     * <p> The message contains the user and the range [from, to) in epoch milliseconds.</p>
+     */
+    private void handleRequestUserTrackEvent(final UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
+        if (Authoriser.authoriseRequestLocation(session, token)) {
+            String username = receivedMessage.getUser();
+            long from = receivedMessage.getFrom();
+            long to = receivedMessage.getTo();
 
-            synchronized (session.getSession()) {
-                session.sendMessage(response);
+            OutboundFrame response = new OutboundFrame("request", "requestUserTrack")
+                    .property("user", username);
+            User user = userRepository.getUser(username);
+            if (user == null) {
+                response.property("response", "fail");
+            } else {
+                try {
+                    List<TrackPoint> track = trackLog.query(Math.toIntExact(user.getId()), from, to);
+                    response.payload(track);
+                } catch (IOException e) {
+                    // the session stays open, only this request failed
+                    log.warn("Failed to read the track of user {}", username, e);
+                    response.property("response", "fail");
+                }
             }
+            session.sendMessage(response);
+        } else {
+            User user = userRepository.getUser(session.getUsername());
+            serverLogRepository.unauthorisedAction(user, "Request user track");
+            session.close();
+        }
+    }
+
+    public void handleRequestMapItemsEvent(UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
+        if (Authoriser.authoriseAccessMapItems(session, token)) {
+            session.sendMessage(mapSnapshotCache.getFrame(receivedMessage.getVersion()));
         } else {
             User user = userRepository.getUser(session.getUsername());
             serverLogRepository.unauthorisedAction(user, "Request map items");
-            session.getSession().close();
+            session.close();
         }
     }
     //endregion
 
     //region Media method message
 
-    /**
-     * Handles all media events
-     */
-    private void handleMediaMethodMessage(UserSession userSession, JsonObject receivedMessage) throws IOException {
-        switch (receivedMessage.get("event").getAsString()) {
-            case "iceCandidate":
-                handleIceCandidateEvent(userSession, receivedMessage);
-                break;
-            case "playVideoRequest":
-                handlePlayVideoRequestEvent(userSession, receivedMessage);
-                break;
-            case "pauseVideoRequest":
-                handlePauseVideoRequestEvent(userSession, receivedMessage);
-                break;
-            case "resumeVideoRequest":
-                handleResumeVideoRequestEvent(userSession, receivedMessage);
-                break;
-            case "getVideoPositionRequest":
-                handleGetVideoPositionRequestEvent(userSession, receivedMessage);
-                break;
-            case "seekVideoRequest":
-                handleSeekVideoRequestEvent(userSession, receivedMessage);
-                break;
-            case "stopVideoRequest":
-                handleStopVideoRequestEvent(userSession, receivedMessage);
-                break;
-            case "startVideoStreamRequest":
-                handleStartVideoStreamRequestEvent(userSession, receivedMessage);
-                break;
-            case "stopVideoStreamRequest":
-                handleStopVideoSteramRequestEvent(userSession, receivedMessage);
-                break;
-            case "startLiveVideoWatch":
-                handleLiveVideoWatchRequestEvent(userSession, receivedMessage);
-                break;
-            case "stopLiveVideoWatch":
-                handleStopWatchLiveVideoRequest(userSession, receivedMessage);
-                break;
-            default:
-
-        }
-    }
-
     /**
      * This method handles ice candidates received from client.
      * <p> Ice candidates can be candidates for live streaming, playback or live watching</p>
@@ -848,15 +887,14 @@ public class EndPointHandler extends TextWebSocketHandler {
      * @param session         is the websocket open connection of the message sender
      * @param receivedMessage is the message received by the server
      */
-    private void handleIceCandidateEvent(UserSession session, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleIceCandidateEvent(UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
-            JsonObject candidate = receivedMessage.get("candidate").getAsJsonObject();
-            String iceFor = candidate.get("iceFor").getAsString();
+            String iceFor = receivedMessage.getIceFor();
 
-            IceCandidate cand = new IceCandidate(candidate.get("candidate").getAsString(),
-                    candidate.get("sdpMid").getAsString(),
-                    candidate.get("sdpMLineIndex").getAsInt());
+            IceCandidate cand = new IceCandidate(receivedMessage.getCandidate(),
+                    receivedMessage.getSdpMid(),
+                    receivedMessage.getSdpMLineIndex());
             switch (iceFor) {
                 case ICE_FOR_LIVE:
                     session.addCandidateLive(cand);
@@ -870,7 +908,7 @@ public class EndPointHandler extends TextWebSocketHandler {
                     break;
             }
         }else{
-            session.getSession().close();
+            session.close();
         }
     }
 
@@ -911,8 +949,8 @@ public class EndPointHandler extends TextWebSocketHandler {
      *
      *                        </ul></p>
      */
-    private void handlePlayVideoRequestEvent(final UserSession session, final JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handlePlayVideoRequestEvent(final UserSession session, final InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
             JsonObject response = new JsonObject();
 
@@ -925,63 +963,23 @@ public class EndPointHandler extends TextWebSocketHandler {
                 serverLogRepository.userStartedPlayback(user);
 
 
-                String sdpOffer = receivedMessage.get("sdpOffer").getAsString();
-                String mediaPath = receivedMessage.get("path").getAsString();
+                String sdpOffer = receivedMessage.getSdpOffer();
+                String mediaPath = receivedMessage.getPath();
 
-                // create media pipeline
-                final PlayMediaPipeline playMediaPipeline = new PlayMediaPipeline(kurento, mediaPath, session.getSession());
+                // media logic, created without blocking this thread, the ice candidates of the user wait for it
+                final PlayMediaPipeline playMediaPipeline = new PlayMediaPipeline(mediaPath);
                 playPipelines.put(session.getSessionId(), playMediaPipeline);
 
-                // add error listener
-                playMediaPipeline.getPlayer().addErrorListener(new EventListener<ErrorEvent>() {
+                PlayMediaPipeline.Listener listener = new PlayMediaPipeline.Listener() {
                     @Override
-                    public void onEvent(ErrorEvent errorEvent) {
-                        System.out.println("Player error event...");
-                        //actionRepository.userEndedPlaybackVideo(user);
-                        serverLogRepository.userEndedPlayback(user);
-                        playMediaPipeline.sendPlayEnd(session.getSession());
-                        playPipelines.remove(session.getSessionId());
-                    }
-                });
-                playMediaPipeline.getPlayer().addEndOfStreamListener(new EventListener<EndOfStreamEvent>() {
-                    @Override
-                    public void onEvent(EndOfStreamEvent endOfStreamEvent) {
-                        System.out.println("Player end of stream event...");
-                        //actionRepository.userEndedPlaybackVideo(user);
-                        serverLogRepository.userEndedPlayback(user);
-                        playMediaPipeline.sendPlayEnd(session.getSession());
-                        playPipelines.remove(session.getSessionId());
-                    }
-                });
-
-                playMediaPipeline.getWebRtc().addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
-                    @Override
-                    public void onEvent(IceCandidateFoundEvent event) {
-                        JsonObject response = new JsonObject();
-                        response.addProperty("method", "media");
-                        response.addProperty("event", "iceCandidate");
-                        JsonObject candidate = new JsonObject();
-                        candidate.addProperty("for", SEND_ICE_FOR_PLAY);
-                        candidate.add("candidate", JsonUtils
-                                .toJsonObject(event.getCandidate()));
-                        response.add("candidate", candidate);
-                        synchronized (session.getSession()) {
-                            try {
-                                session.sendMessage(response);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
+                    public void onIceCandidate(IceCandidate candidate) {
+                        sendIceCandidate(session, SEND_ICE_FOR_PLAY, candidate);
                     }
-                });
 
-                // get video info and send it to the user
-                playMediaPipeline.getWebRtc().addMediaStateChangedListener(new EventListener<MediaStateChangedEvent>() {
+                    // get video info and send it to the user
                     @Override
-                    public void onEvent(MediaStateChangedEvent mediaStateChangedEvent) {
-                        System.out.println("Media state changed event...");
-                        VideoInfo videoInfo = playMediaPipeline.getPlayer().getVideoInfo();
-
+                    public void onVideoInfo(VideoInfo videoInfo) {
+                        log.debug("Player media state changed");
                         JsonObject response = new JsonObject();
                         response.addProperty("method", "media");
                         response.addProperty("event", "videoInfo");
@@ -990,31 +988,45 @@ public class EndPointHandler extends TextWebSocketHandler {
                         response.addProperty("endSeekable", videoInfo.getSeekableEnd());
                         response.addProperty("videoDuration", videoInfo.getDuration());
 
-                        synchronized (session.getSession()) {
-                            try {
-                                session.sendMessage(response);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
+                        session.sendMessage(response);
                     }
-                });
 
-                // SDP negotiation
-                String sdpAnswer = playMediaPipeline.generateSdpAnswer(sdpOffer);
-
-                response.addProperty("response", "accepted");
-                response.addProperty("sdpAnswer", sdpAnswer);
+                    @Override
+                    public void onError(String description) {
+                        log.warn("Player error: {}", description);
+                        //actionRepository.userEndedPlaybackVideo(user);
+                        serverLogRepository.userEndedPlayback(user);
+                        playMediaPipeline.sendPlayEnd(session);
+                        playPipelines.remove(session.getSessionId());
+                    }
 
-                // play
-                playMediaPipeline.play();
+                    @Override
+                    public void onEndOfStream() {
+                        log.debug("Player end of stream");
+                        //actionRepository.userEndedPlaybackVideo(user);
+                        serverLogRepository.userEndedPlayback(user);
+                        playMediaPipeline.sendPlayEnd(session);
+                        playPipelines.remove(session.getSessionId());
+                    }
+                };
+
+                // SDP negotiation and play
+                onMediaSetup(session, mediaSetupService.submit("playback of " + mediaPath,
+                        () -> playMediaPipeline.start(kurento, sdpOffer, listener)), (sdpAnswer, error) -> {
+                    if (error != null) {
+                        playPipelines.remove(session.getSessionId(), playMediaPipeline);
+                        playMediaPipeline.release();
+                        sendMediaSetupFailure(session, response, error);
+                        return;
+                    }
+                    response.addProperty("response", "accepted");
+                    response.addProperty("sdpAnswer", sdpAnswer);
 
-                synchronized (session.getSession()) {
                     session.sendMessage(response);
-                }
 
-                // gather candidates
-                playMediaPipeline.getWebRtc().gatherCandidates();
+                    // gather candidates
+                    logFailure(playMediaPipeline.gatherCandidates(), "gather the ice candidates of", session);
+                });
 
             } else {
                 response.addProperty("response", "rejected");
@@ -1022,7 +1034,7 @@ public class EndPointHandler extends TextWebSocketHandler {
                 session.sendMessage(response);
             }
         }else{
-            session.getSession().close();
+            session.close();
         }
     }
 
@@ -1033,8 +1045,8 @@ public class EndPointHandler extends TextWebSocketHandler {
      * @param session         is the user who requested the pause of the playback
      * @param receivedMessage is the message received by application server
      */
-    private void handlePauseVideoRequestEvent(UserSession session, JsonObject receivedMessage) {
-        String token = receivedMessage.get("token").getAsString();
+    private void handlePauseVideoRequestEvent(UserSession session, InboundMessage receivedMessage) {
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
             PlayMediaPipeline playMediaPipeline = playPipelines.get(session.getSessionId());
             if (playMediaPipeline == null)
@@ -1051,8 +1063,8 @@ public class EndPointHandler extends TextWebSocketHandler {
      * @param session         is the user who requested playback resume.
      * @param receivedMessage is the message received by application server
      */
-    private void handleResumeVideoRequestEvent(UserSession session, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleResumeVideoRequestEvent(UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
             PlayMediaPipeline playMediaPipeline = playPipelines.get(session.getSessionId());
             if (playMediaPipeline == null)
@@ -1069,11 +1081,9 @@ public class EndPointHandler extends TextWebSocketHandler {
             response.addProperty("endSeekable", videoInfo.getSeekableEnd());
             response.addProperty("videoDuration", videoInfo.getDuration());
 
-            synchronized (session) {
-                session.sendMessage(response);
-            }
+            session.sendMessage(response);
         }else{
-            session.getSession().close();
+            session.close();
         }
     }
 
@@ -1088,8 +1098,8 @@ public class EndPointHandler extends TextWebSocketHandler {
      * @param session         is the user who requested playback resume.
      * @param receivedMessage is the message received by application server
      */
-    private void handleGetVideoPositionRequestEvent(UserSession session, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleGetVideoPositionRequestEvent(UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
             PlayMediaPipeline playMediaPipeline = playPipelines.get(session.getSessionId());
             if (playMediaPipeline != null && !playMediaPipeline.isStreamEnded()) {
@@ -1100,12 +1110,10 @@ public class EndPointHandler extends TextWebSocketHandler {
                 response.addProperty("event", "getVideoPositionRequest");
                 response.addProperty("position", currentPosition);
 
-                synchronized (session.getSession()) {
-                    session.sendMessage(response);
-                }
+                session.sendMessage(response);
             }
         }else{
-            session.getSession().close();
+            session.close();
         }
     }
 
@@ -1116,12 +1124,12 @@ public class EndPointHandler extends TextWebSocketHandler {
      * @param session         is the user who requested playback resume.
      * @param receivedMessage is the message received by application server
      */
-    private void handleSeekVideoRequestEvent(UserSession session, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleSeekVideoRequestEvent(UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
             PlayMediaPipeline playMediaPipeline = playPipelines.get(session.getSessionId());
             try {
-                long position = receivedMessage.get("position").getAsLong();
+                long position = receivedMessage.getPosition();
                 playMediaPipeline.getPlayer().setPosition(position);
             } catch (KurentoException e) {
                 log.debug("The seek cannot be performed");
@@ -1130,12 +1138,10 @@ public class EndPointHandler extends TextWebSocketHandler {
                 response.addProperty("event", "seekVideoRequest");
                 response.addProperty("message", "Seek failed");
 
-                synchronized (session) {
-                    session.sendMessage(response);
-                }
+                session.sendMessage(response);
             }
         }else{
-            session.getSession().close();
+            session.close();
         }
     }
 
@@ -1145,8 +1151,8 @@ public class EndPointHandler extends TextWebSocketHandler {
      * @param session         is the user who requested playback resume.
      * @param receivedMessage is the message received by application server
      */
-    private void handleStopVideoRequestEvent(UserSession session, JsonObject receivedMessage) {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleStopVideoRequestEvent(UserSession session, InboundMessage receivedMessage) {
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
             User user = userRepository.getUser(session.getUsername());
             //actionRepository.userEndedPlaybackVideo(user);
@@ -1159,88 +1165,65 @@ public class EndPointHandler extends TextWebSocketHandler {
 
     /**
      * This method creates environment for recording the media streaming coming from user
-     * It follow the forwarding steps:
+     * It follow the forwarding steps, asynchronously through {@link MediaSetupService}:
      * <ul>
      *     <li> Creates the media logic (recording end point)</li>
      *     <li> sdp negotiation</li>
-     *     <li> gathers ice candidates</li>
      *     <li> sends the response to the client (sdp answer)</li>
+     *     <li> gathers ice candidates</li>
      * </ul>
      *
      * @param session         is the user who requested playback resume.
      * @param receivedMessage is the message received by application server
      */
-    private void handleStartVideoStreamRequestEvent(UserSession session, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleStartVideoStreamRequestEvent(UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
             String from = session.getUsername();
-            String sdpOffer = receivedMessage.getAsJsonPrimitive("sdpOffer").getAsString();
+            String sdpOffer = receivedMessage.getSdpOffer();
 
-            // media logic
-            RecordMediaPipeline recordMediaPipeline = new RecordMediaPipeline(kurento, from);
+            // media logic, created without blocking this thread, the ice candidates of the user wait for it
+            RecordMediaPipeline recordMediaPipeline = new RecordMediaPipeline(from);
 
             recordPipeline.put(session.getUsername(), recordMediaPipeline);
 
             session.setRecordMediaPipeline(recordMediaPipeline);
 
-            // sdp negotiating
-            String sdpAnswer = recordMediaPipeline.generateSdpAnswerFromRecordingEp(sdpOffer);
-
-            recordMediaPipeline.getRecordingWebRtcEndpoint().addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
-                @Override
-                public void onEvent(IceCandidateFoundEvent event) {
-                    JsonObject response = new JsonObject();
-                    response.addProperty("method", "media");
-                    response.addProperty("event", "iceCandidate");
-                    JsonObject candidate = new JsonObject();
-                    candidate.addProperty("for", SEND_ICE_FOR_REC);
-                    candidate.add("candidate", JsonUtils
-                            .toJsonObject(event.getCandidate()));
-                    response.add("candidate", candidate);
-                    try {
-                        synchronized (session) {
-                            session.sendMessage(response);
-                        }
-                    } catch (IOException e) {
-                        log.debug(e.getMessage());
-                    }
-                }
-            });
-
             JsonObject response = new JsonObject();
             response.addProperty("method", "media");
             response.addProperty("event", "startVideoStreaming");
-            response.addProperty("response", "accepted");
-            response.addProperty("sdpAnswer", sdpAnswer);
 
-            synchronized (session) {
-                session.sendMessage(response);
-            }
-
-            recordMediaPipeline.getRecordingWebRtcEndpoint().gatherCandidates();
-
-            recordMediaPipeline.getRecordingWebRtcEndpoint().addMediaFlowInStateChangeListener(new EventListener<MediaFlowInStateChangeEvent>() {
-                @Override
-                public void onEvent(MediaFlowInStateChangeEvent mediaFlowInStateChangeEvent) {
-                    System.out.println("Media flow incoming");
-                    recordMediaPipeline.record();
+            // sdp negotiating
+            onMediaSetup(session, mediaSetupService.submit("recording of " + from, () -> recordMediaPipeline.start(kurento, sdpOffer,
+                    candidate -> sendIceCandidate(session, SEND_ICE_FOR_REC, candidate))), (sdpAnswer, error) -> {
+                if (error != null) {
+                    recordPipeline.remove(from, recordMediaPipeline);
+                    recordMediaPipeline.release();
+                    sendMediaSetupFailure(session, response, error);
+                    return;
                 }
-            });
+                if (recordPipeline.get(from) != recordMediaPipeline || recordMediaPipeline.isReleased()) {
+                    // stopped or disconnected while the setup was running, nothing is announced
+                    log.debug("Stream of {} stopped during its setup", from);
+                    recordMediaPipeline.release();
+                    return;
+                }
+                response.addProperty("response", "accepted");
+                response.addProperty("sdpAnswer", sdpAnswer);
 
-            recordMediaPipeline.getRecordingWebRtcEndpoint().addMediaFlowOutStateChangeListener(mediaFlowOutStateChangeEvent -> {
-                System.out.println("Media out listener!");
-                recordMediaPipeline.record();
-            });
+                session.sendMessage(response);
 
+                logFailure(recordMediaPipeline.gatherCandidates(), "gather the ice candidates of", session);
 
-            User user = userRepository.getUser(session.getUsername());
-            //actionRepository.userStartedRecordingSession(user);
-            serverLogRepository.userStartStreaming(user);
-            Video video = new Video(recordMediaPipeline.getRecordingPath(), user, new Date());
-            videoRepository.addVideo(video);
-            subscriberController.notifySubscribersOnLiveStreamingStarted(new LiveWatcher(user.getName(), user.getUsername()));
+                User user = userRepository.getUser(from);
+                //actionRepository.userStartedRecordingSession(user);
+                serverLogRepository.userStartStreaming(user);
+                Video video = new Video(recordMediaPipeline.getRecordingPath(), user, new Date());
+                videoRepository.addVideo(video);
+                subscriberController.notifySubscribersOnLiveStreamingStarted(new LiveWatcher(user.getName(), user.getUsername()));
+            });
         }else{
-            session.getSession().close();
+            session.close();
         }
     }
 
@@ -1249,8 +1232,8 @@ public class EndPointHandler extends TextWebSocketHandler {
      *
      * @param session is the session that send the message
      */
-    private void handleStopVideoSteramRequestEvent(UserSession session, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleStopVideoSteramRequestEvent(UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
             RecordMediaPipeline pipeline = recordPipeline.get(session.getUsername());
             User user = userRepository.getUser(session.getUsername());
@@ -1261,121 +1244,171 @@ public class EndPointHandler extends TextWebSocketHandler {
             recordPipeline.remove(session.getUsername());
             subscriberController.notifySubscribersOnLiveStreamingStopped(new LiveWatcher(user.getName(), user.getUsername()));
         }else{
-            session.getSession().close();
+            session.close();
         }
     }
 
     //endregion
-    private void handleLiveVideoWatchRequestEvent(UserSession session, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
+    private void handleLiveVideoWatchRequestEvent(UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
-            UserSession userRecording = registry.getByName(receivedMessage.get("user").getAsString());
+            UserSession userRecording = registry.getByName(receivedMessage.getUser());
             RecordMediaPipeline recordMediaPipeline = recordPipeline.get(userRecording.getUsername());
 
-            recordMediaPipeline.addLiveWatcher(session);
             session.setRecordMediaPipeline(recordMediaPipeline);
 
-            // sdp negotiation
-            String sdpOffer = receivedMessage.get("sdpOffer").getAsString();
-            String sdpAnswer = recordMediaPipeline.getWebRtcEpOfSubscriber(session).processOffer(sdpOffer);
-
-            recordMediaPipeline.getWebRtcEpOfSubscriber(session).addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
-                @Override
-                public void onEvent(IceCandidateFoundEvent event) {
-                    JsonObject response = new JsonObject();
-                    response.addProperty("method", "media");
-                    response.addProperty("event", "iceCandidate");
-                    JsonObject candidate = new JsonObject();
-                    candidate.addProperty("for", SEND_ICE_FOR_LIVE);
-                    candidate.add("candidate", JsonUtils
-                            .toJsonObject(event.getCandidate()));
-                    response.add("candidate", candidate);
-                    try {
-                        synchronized (session) {
-                            session.sendMessage(response);
-                        }
-                    } catch (IOException e) {
-                        log.debug(e.getMessage());
-                    }
-                }
-            });
-
             JsonObject response = new JsonObject();
             response.addProperty("method", "media");
             response.addProperty("event", "liveWatchResponse");
-            response.addProperty("response", "accepted");
-            response.addProperty("sdpAnswer", sdpAnswer);
 
-            synchronized (session) {
-                System.out.println("Sending sdp ans message to " + session.getUsername());
+            // sdp negotiation
+            String sdpOffer = receivedMessage.getSdpOffer();
+            // registered now, the ice candidates of the watcher wait for its endpoint while the setup is queued
+            CompletableFuture<WebRtcEndpoint> liveWatcher = recordMediaPipeline.registerLiveWatcher(session);
+            onMediaSetup(session, mediaSetupService.submit("live watch of " + userRecording.getUsername(),
+                    () -> recordMediaPipeline.addLiveWatcher(session, liveWatcher, sdpOffer,
+                            candidate -> sendIceCandidate(session, SEND_ICE_FOR_LIVE, candidate))), (sdpAnswer, error) -> {
+                if (error != null) {
+                    recordMediaPipeline.unsubscribe(session);
+                    sendMediaSetupFailure(session, response, error);
+                    return;
+                }
+                response.addProperty("response", "accepted");
+                response.addProperty("sdpAnswer", sdpAnswer);
+
+                log.debug("Sending sdp answer to {}", session.getUsername());
                 session.sendMessage(response);
-            }
 
-            recordMediaPipeline.getWebRtcEpOfSubscriber(session).gatherCandidates();
+                logFailure(recordMediaPipeline.gatherLiveCandidates(session), "gather the live ice candidates of", session);
+            });
         }else{
-            session.getSession().close();
+            session.close();
         }
     }
 
-    public void handleStopWatchLiveVideoRequest(UserSession session, JsonObject receivedMessage){
-        String token = receivedMessage.get("token").getAsString();
+    public void handleStopWatchLiveVideoRequest(UserSession session, InboundMessage receivedMessage){
+        String token = receivedMessage.getToken();
         if (Authoriser.checkToken(session, token)) {
-            UserSession userRecording = registry.getByName(receivedMessage.get("user").getAsString());
+            UserSession userRecording = registry.getByName(receivedMessage.getUser());
             RecordMediaPipeline recordMediaPipeline = recordPipeline.get(userRecording.getUsername());
             // unsubscribe current session from live watch
             recordMediaPipeline.unsubscribe(session);
         }else{
-            System.out.println("ERROR: TOKEN INVALID (handleStopWatchLive)");
+            log.warn("Invalid token of user '{}' on stop watch live", session.getUsername());
         }
     }
     //endregion
 
-    /***/
-    private void handleSubscribeMethodMessage(UserSession session, JsonObject receivedMessage) throws IOException {
-        String token = receivedMessage.get("token").getAsString();
-        if (Authoriser.authoriseSubscribe(session, token)) {
-            switch (receivedMessage.get("event").getAsString()) {
-                case "userUpdated":
-                    subscriberController.addUserListListener(session);
-                    break;
-                case "liveStreamers":
-                    subscriberController.addLiveStreamerListener(session);
-                    break;
-                case "mapItems":
-                    subscriberController.addMapChangesSubscriber(session);
-                    break;
-                default:
-
+    /**
+     * Continues a media request once its setup is done, on a media thread of {@link MediaSetupService}.
+     *
+     * @param completion gets the result of the setup or why it failed, what it throws is logged
+     */
+    private <T> void onMediaSetup(UserSession session, CompletableFuture<T> setup, BiConsumer<T, Throwable> completion) {
+        setup.whenComplete((result, error) -> {
+            if (error != null) {
+                log.warn("Media setup of {} failed: {}", session.getUsername(), error.toString());
             }
+            try {
+                completion.accept(result, error);
+            } catch (RuntimeException e) {
+                log.error("Could not complete the media request of {}", session.getUsername(), e);
+            }
+        });
+    }
+
+    /**
+     * Rejects a media request whose setup failed, with reason "busy" when the media server is overloaded and the
+     * client may retry.
+     */
+    private static void sendMediaSetupFailure(UserSession session, JsonObject response, Throwable error) {
+        boolean busy = error instanceof RejectedExecutionException || error instanceof TimeoutException;
+        response.addProperty("response", "rejected");
+        response.addProperty("reason", busy ? "busy" : "mediaServerError");
+        session.sendMessage(response);
+    }
+
+    private static void logFailure(CompletableFuture<?> call, String what, UserSession session) {
+        call.exceptionally(error -> {
+            log.warn("Could not {} {}", what, session.getUsername(), error);
+            return null;
+        });
+    }
+
+    /**
+     * Sends an ice candidate found by the media server to the user, as a binary frame if the user negotiated it.
+     *
+     * @param iceFor is one of the {@code SEND_ICE_FOR_*} constants
+     */
+    private void sendIceCandidate(UserSession session, String iceFor, IceCandidate iceCandidate) {
+        JsonObject candidate = new JsonObject();
+        candidate.addProperty("for", iceFor);
+        candidate.add("candidate", JsonUtils.toJsonObject(iceCandidate));
+        OutboundFrame response = new OutboundFrame("media", "iceCandidate")
+                .property("candidate", candidate);
+        if (session.isBinaryFraming()) {
+            response.binary(BinaryCodec.encodeIceCandidate(iceFor, iceCandidate));
+        }
+
+        session.sendMessage(response);
+    }
+
+    /**
+     * Subscribes the user to a topic, only admins can subscribe.
+     *
+     * @param topic is the topic of the subscribe event
+     */
+    private void handleSubscribeEvent(UserSession session, InboundMessage receivedMessage, Topic topic) throws IOException {
+        String token = receivedMessage.getToken();
+        if (Authoriser.authoriseSubscribe(session, token)) {
+            subscriberController.subscribe(topic, session);
         }else{
-            session.getSession().close();
+            session.close();
         }
     }
 
-    private void handleUnsubscribeMethodMessage(UserSession session, JsonObject receivedMessage) {
-        switch (receivedMessage.get("event").getAsString()) {
-            case "userList":
-                subscriberController.removeUserListListener(session);
-                break;
-            case "liveStreamers":
-                subscriberController.removeLiveStreamerListener(session);
-                break;
-            case "mapItems":
-                subscriberController.removeMapChangesSubscriber(session);
-                break;
-            default:
+    /**
+     * Restricts the map locations sent to a subscriber to an area, given by its bounds or by a radius around a point.
+     * <p> The user is subscribed to the map changes if it was not already.</p>
+     */
+    private void handleViewportEvent(UserSession session, InboundMessage receivedMessage) throws IOException {
+        String token = receivedMessage.getToken();
+        if (Authoriser.authoriseSubscribe(session, token)) {
+            Viewport viewport;
+            try {
+                if (receivedMessage.hasBounds()) {
+                    viewport = new Viewport(receivedMessage.getSouth(), receivedMessage.getWest(),
+                            receivedMessage.getNorth(), receivedMessage.getEast());
+                } else if (receivedMessage.hasLocation() && receivedMessage.getRadius() > 0) {
+                    viewport = Viewport.around(receivedMessage.getLat(), receivedMessage.getLng(), receivedMessage.getRadius());
+                } else {
+                    viewport = null;
+                }
+            } catch (IllegalArgumentException e) {
+                viewport = null;
+            }
+
+            if (viewport == null) {
+                OutboundFrame response = new OutboundFrame("subscribe", "viewport")
+                        .property("response", "fail");
+                session.sendMessage(response);
+                return;
+            }
+            locationPipeline.setViewport(session, viewport);
+            subscriberController.subscribe(Topic.MAP_CHANGES, session);
+        }else{
+            session.close();
         }
     }
 
-    private void handleActivityMethodMessage(UserSession session, JsonObject receivedMessage) {
-        System.out.println(receivedMessage.get("event").getAsString() + ", " + receivedMessage.get("precision").getAsInt());
+    private void handleActivityMethodMessage(UserSession session, InboundMessage receivedMessage) {
+        log.debug("Activity {}, precision {}", receivedMessage.getEvent(), receivedMessage.getPrecision());
     }
 
     private void handleErrorResponse(Throwable throwable, final WebSocketSession session, String responseId)
             throws IOException {
 //        stop(session);
         log.error(throwable.getMessage(), throwable);
-        System.out.println("Error!: " + throwable.getMessage());
         JsonObject response = new JsonObject();
 
         response.addProperty("id", responseId);
@@ -1393,7 +1426,7 @@ public class EndPointHandler extends TextWebSocketHandler {
         if (stopperUser != null) {
             RecordMediaPipeline pipeline = recordPipeline.get(stopperUser.getUsername());
             if (pipeline != null) {
-                recordPipeline.remove(pipeline);
+                recordPipeline.remove(stopperUser.getUsername(), pipeline);
             }
             stopperUser.release();
         }
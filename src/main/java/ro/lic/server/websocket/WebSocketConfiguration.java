@@ -20,22 +20,31 @@ import org.springframework.web.socket.server.standard.ServletServerContainerFact
 import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 import ro.lic.server.model.enums.Role;
 import ro.lic.server.model.repository.UserRepository;
+import ro.lic.server.websocket.security.AuthenticationService;
 import ro.lic.server.websocket.utils.UserRegistry;
+import ro.lic.server.websocket.utils.log.EventLog;
+import ro.lic.server.websocket.utils.message.BinaryCodec;
+import ro.lic.server.websocket.utils.message.WireFormat;
 
 
 import java.io.IOException;
 import java.security.Principal;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import static ro.lic.server.constants.Constants.*;
 
 @Configuration
 @EnableWebSocket
 public class WebSocketConfiguration implements WebSocketConfigurer {
+    private static final EventLog log = EventLog.get(WebSocketConfiguration.class);
 
     @Autowired
     private UserRepository userDao;
 
+    @Autowired
+    private AuthenticationService authenticationService;
+
     @Bean
     public ServletServerContainerFactoryBean createWebSocketContainer() {
         ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
@@ -82,8 +91,6 @@ public class WebSocketConfiguration implements WebSocketConfigurer {
 
     private class HandShake implements HandshakeInterceptor {
 
-        private Role role = null;
-
         @Override
         public boolean beforeHandshake(ServerHttpRequest serverHttpRequest,
                                        ServerHttpResponse serverHttpResponse,
@@ -107,16 +114,26 @@ public class WebSocketConfiguration implements WebSocketConfigurer {
             username = username.substring(username.indexOf("[") + 1, username.indexOf("]"));
             password = password.substring(password.indexOf("[") + 1, password.indexOf("]"));
 
-           System.out.println(String.format("User %s is trying to connect", username));
+            log.debug("User {} is trying to connect", username);
 
-            role = userDao.authenticate(username, password);
+            Role role;
+            try {
+                role = authenticationService.authenticate(username, password);
+            } catch (RejectedExecutionException e) {
+                log.warn("Authentication of {} rejected: {}", username, e.getMessage());
+                serverHttpResponse.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+                return false;
+            }
 
             if (role != null) {
-                System.out.println("AUTH");
-                userDao.setUserOnline(username);
+                log.debug("User {} authenticated", username);
+                // set authorisation role
+                serverHttpResponse.getHeaders().add("role", role.name());
+                map.put(WireFormat.ATTRIBUTE, WireFormat.fromHeader(serverHttpRequest.getHeaders().getFirst(WireFormat.HEADER)));
+                map.put(BinaryCodec.ATTRIBUTE, Boolean.parseBoolean(serverHttpRequest.getHeaders().getFirst(BinaryCodec.HEADER)));
                 return true;
             } else {
-                System.out.println("ERROR");
+                log.info("Wrong credentials for user {}", username);
                 serverHttpResponse.setStatusCode(HttpStatus.UNAUTHORIZED);
                 return false;
             }
@@ -128,8 +145,6 @@ public class WebSocketConfiguration implements WebSocketConfigurer {
                                    ServerHttpResponse serverHttpResponse,
                                    org.springframework.web.socket.WebSocketHandler webSocketHandler,
                                    Exception e) {
-            // set authorisation role
-            serverHttpResponse.getHeaders().add("role", role.name());
         }
 
 
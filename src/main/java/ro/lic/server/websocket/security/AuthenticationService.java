@@ -0,0 +1,233 @@
+package ro.lic.server.websocket.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ro.lic.server.model.enums.Role;
+import ro.lic.server.model.repository.UserRepository;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Authentication stage of the websocket handshake.
+ * <p> A bounded concurrency gate: the password checks (a database lookup and a BCrypt match) run on a small dedicated
+ * pool with a bounded queue, so at most {@code auth.executor.threads} of them use the cpu at the same time. The
+ * handshake thread still waits for its check, up to the timeout; what the gate bounds is how many handshakes wait.
+ * When the queue is full, or a check takes longer than the timeout, the connection attempt is rejected with a
+ * {@link RejectedExecutionException} right away and the client retries later, instead of adding to the wait of the
+ * servlet threads.</p>
+ * <p> Successful checks are remembered for a short time as a salted digest of the password, so a device that
+ * reconnects with the same credentials skips the BCrypt match. A check that started before the account was
+ * modified or disabled is not remembered, like the loads of the user cache.</p>
+ */
+@Component
+public class AuthenticationService {
+
+    private static final Logger log = LoggerFactory.getLogger(AuthenticationService.class);
+
+    @Autowired
+    private UserRepository userRepository;
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+    private final long cacheTtlMillis;
+
+    /**
+     * key is username
+     */
+    private final ConcurrentHashMap<String, RecentCredentials> recentCredentials = new ConcurrentHashMap<>();
+    private final byte[] salt = new byte[16];
+    /**
+     * incremented by every invalidation, guarded by this
+     */
+    private long generation;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder checkNanos = new LongAdder();
+    private final LongAdder checks = new LongAdder();
+
+    public AuthenticationService(@Value("${auth.executor.threads:4}") int threads,
+                                 @Value("${auth.executor.queue-capacity:64}") int queueCapacity,
+                                 @Value("${auth.timeout-ms:3000}") long timeoutMillis,
+                                 @Value("${auth.cache.ttl-ms:300000}") long cacheTtlMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.cacheTtlMillis = cacheTtlMillis;
+        new SecureRandom().nextBytes(salt);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "auth-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Checks the credentials of a user, the calling thread waits for the check.
+     *
+     * @return the role of the user, or null if the credentials are wrong or the account is disabled
+     * @throws RejectedExecutionException if the check could not be done in time, the client should retry later
+     */
+    public Role authenticate(String username, String password) {
+        requests.increment();
+        byte[] digest = digest(password);
+
+        RecentCredentials recent = recentCredentials.get(username);
+        if (recent != null && recent.matches(digest, System.currentTimeMillis())) {
+            cacheHits.increment();
+            return recent.role;
+        }
+
+        long checkedAt = generation();
+        Future<Role> check;
+        try {
+            check = executor.submit(() -> timedCheck(username, password));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+
+        try {
+            Role role = check.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (role != null) {
+                remember(username, new RecentCredentials(digest, role, System.currentTimeMillis() + cacheTtlMillis), checkedAt);
+            }
+            return role;
+        } catch (TimeoutException e) {
+            check.cancel(true);
+            timeouts.increment();
+            throw new RejectedExecutionException(String.format("Authentication of %s timed out", username));
+        } catch (InterruptedException e) {
+            check.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while authenticating " + username);
+        } catch (ExecutionException e) {
+            failures.increment();
+            log.error("Authentication of {} failed", username, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the remembered credentials of a user, called when the account is modified or disabled.
+     */
+    public synchronized void invalidate(String username) {
+        generation++;
+        recentCredentials.remove(username);
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * @param checkedAt the {@link #generation()} taken before the check, the credentials are not remembered if an
+     *                  account was invalidated since
+     */
+    private synchronized void remember(String username, RecentCredentials credentials, long checkedAt) {
+        if (checkedAt == generation) {
+            recentCredentials.put(username, credentials);
+        }
+    }
+
+    private Role timedCheck(String username, String password) {
+        long start = System.nanoTime();
+        try {
+            return userRepository.authenticate(username, password);
+        } finally {
+            checks.increment();
+            checkNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] digest(String password) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(salt);
+            return messageDigest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    //region Metrics
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return attempts rejected because the queue was full
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveChecks() {
+        return executor.getActiveCount();
+    }
+
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    public double getMeanCheckTime(TimeUnit unit) {
+        long count = checks.sum();
+        return count == 0 ? 0 : (double) checkNanos.sum() / count / unit.toNanos(1);
+    }
+    //endregion
+
+    private static final class RecentCredentials {
+        private final byte[] digest;
+        private final Role role;
+        private final long expiresAt;
+
+        private RecentCredentials(byte[] digest, Role role, long expiresAt) {
+            this.digest = digest;
+            this.role = role;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean matches(byte[] digest, long now) {
+            return now < expiresAt && MessageDigest.isEqual(this.digest, digest);
+        }
+    }
+}
@@ -4,11 +4,12 @@ import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTVerificationException;
-import com.auth0.jwt.interfaces.Claim;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import ro.lic.server.model.enums.Role;
 import ro.lic.server.websocket.utils.UserSession;
 
+import java.util.Date;
+
 /**
  * Class used to authorise user to do certain tasks
  *
@@ -24,9 +25,16 @@ public class Authoriser {
     private static Authoriser INSTANCE = new Authoriser();
 
     private static Algorithm algorithm;
+    /**
+     * immutable and thread safe, shared by all checks
+     */
+    private static JWTVerifier verifier;
 
     private Authoriser(){
         algorithm = Algorithm.HMAC256("appsAlgPass");
+        verifier = JWT.require(algorithm)
+                .withIssuer("AppServer")
+                .build();
     }
 
     public static Authoriser getInstance(){
@@ -37,129 +45,97 @@ public class Authoriser {
         return algorithm;
     }
 
-    private static boolean checkToken(String token, Role requiredRole){
-        JWTVerifier verifier = JWT.require(algorithm)
-                .withIssuer("AppServer")
-                .build();
+    /**
+     * Verifies the token sent by the user.
+     * <p> The token must be the one issued to the session. The signature is verified on first use and the claims are
+     * cached on the session, later checks only compare the token and its expiration time.</p>
+     *
+     * @return the claims of the token, or null if the token is not valid
+     */
+    private static VerifiedToken verify(UserSession session, String token){
+        if(token == null || !token.equals(session.getToken()))
+            return null;
+
+        VerifiedToken verified = session.getVerifiedToken();
+        if(verified != null && verified.isValidFor(token, System.currentTimeMillis()))
+            return verified;
+
         try {
             DecodedJWT jwt = verifier.verify(token);
-            Claim role = jwt.getClaim("role");
-            return Role.valueOf(role.asString()) == requiredRole;
+            String role = jwt.getClaim("role").asString();
+            Date expiresAt = jwt.getExpiresAt();
+            verified = new VerifiedToken(token,
+                    role == null ? null : Role.valueOf(role),
+                    expiresAt == null ? Long.MAX_VALUE : expiresAt.getTime());
+            session.setVerifiedToken(verified);
+            return verified;
         }
-        catch (JWTVerificationException e){
-            return false;
+        catch (JWTVerificationException | IllegalArgumentException e){
+            return null;
         }
     }
 
-    private static boolean checkToken(String token){
-        JWTVerifier verifier = JWT.require(algorithm)
-                .withIssuer("AppServer")
-                .build();
-        try {
-            DecodedJWT jwt = verifier.verify(token);
-            return true;
-        }
-        catch (JWTVerificationException e){
-            return false;
-        }
+    private static boolean checkToken(UserSession session, String token, Role requiredRole){
+        VerifiedToken verified = verify(session, token);
+        return verified != null && verified.getRole() == requiredRole;
     }
 
     public static boolean checkToken(UserSession session, String token){
-        if(!session.getToken().equals(token))
-            return false;
-        return checkToken(token);
+        return verify(session, token) != null;
     }
 
     public static boolean authoriseEnroll(UserSession session, String token) {
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authorisePlayVideo(UserSession session, String token) {
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseListRecordedVideos(UserSession session, String token){
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseListUsers(UserSession session, String token){
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseListTimeline(UserSession session, String token){
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseEditUser(UserSession session, String token) {
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseRequestUserData(UserSession session, String requestedUsername, String token){
-        if(!session.getToken().equals(token))
-            return false;
-        if(session.getUsername().equals(requestedUsername) && checkToken(token)){
+        if(session.getUsername().equals(requestedUsername) && checkToken(session, token)){
             return true;
         }
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseRequestUserToStream(UserSession session, String token){
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseRequestLiveStreamers(UserSession session, String token){
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseToDisableUser(UserSession session, String token){
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseRequestLocation(UserSession session, String token){
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseAccessMapItems(UserSession session, String token){
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 
     public static boolean authoriseSubscribe(UserSession session, String token){
-        if(!session.getToken().equals(token))
-            return false;
-
-        return checkToken(token, Role.ADMIN);
+        return checkToken(session, token, Role.ADMIN);
     }
 }
@@ -0,0 +1,41 @@
+package ro.lic.server.websocket.security;
+
+import ro.lic.server.model.enums.Role;
+
+/**
+ * Claims of a token that passed the signature verification, kept on the {@link ro.lic.server.websocket.utils.UserSession}
+ * so the token is verified only once until it expires.
+ */
+public final class VerifiedToken {
+    private final String token;
+    private final Role role;
+    private final long expiresAt;
+
+    VerifiedToken(String token, Role role, long expiresAt) {
+        this.token = token;
+        this.role = role;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return the role claim, or {@code null} if the token has none
+     */
+    public Role getRole() {
+        return role;
+    }
+
+    /**
+     * @return expiration time in milliseconds since epoch
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isValidFor(String token, long now) {
+        return now < expiresAt && this.token.equals(token);
+    }
+}
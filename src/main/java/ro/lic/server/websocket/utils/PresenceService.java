@@ -0,0 +1,177 @@
+package ro.lic.server.websocket.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ro.lic.server.model.enums.Status;
+import ro.lic.server.model.repository.UserRepository;
+import ro.lic.server.model.tables.User;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Online / offline state of the users.
+ * <p> The state is kept in memory and is the source of truth, the {@code status} column of the users is only a
+ * snapshot: changes are written every {@code presence.persist-interval-ms} by a background thread, one update per
+ * user that changed since the last write, whatever the number of reconnects in between. With an interval of 0 the
+ * column is never written. Disabled users are never overwritten.</p>
+ * <p> Every online status left in the database by a previous run is reset at startup.</p>
+ */
+@Component
+public class PresenceService {
+
+    private static final Logger log = LoggerFactory.getLogger(PresenceService.class);
+
+    private static final Comparator<User> BY_NAME = Comparator.comparing(User::getName, Comparator.nullsLast(Comparator.naturalOrder()));
+
+    @Autowired
+    private UserRepository userRepository;
+
+    private final Set<String> online = ConcurrentHashMap.newKeySet();
+
+    /**
+     * status to persist, by username
+     */
+    private final ConcurrentHashMap<String, Status> pending = new ConcurrentHashMap<>();
+
+    private final long persistIntervalMillis;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence-persist");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    public PresenceService(@Value("${presence.persist-interval-ms:5000}") long persistIntervalMillis) {
+        this.persistIntervalMillis = persistIntervalMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        int reset = userRepository.resetPresence();
+        if (reset > 0) {
+            log.info("Reset the status of {} users left online", reset);
+        }
+        if (persistIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::safePersist, persistIntervalMillis, persistIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        if (persistIntervalMillis > 0) {
+            safePersist();
+        }
+    }
+
+    public void setOnline(String username) {
+        if (online.add(username)) {
+            changed(username, Status.ONLINE);
+        }
+    }
+
+    public void setOffline(String username) {
+        if (online.remove(username)) {
+            changed(username, Status.OFFLINE);
+        }
+    }
+
+    public boolean isOnline(String username) {
+        return online.contains(username);
+    }
+
+    /**
+     * @return the online users ordered by name, with their current status
+     */
+    public List<User> getOnlineUsers() {
+        List<User> users = new ArrayList<>(online.size());
+        for (String username : online) {
+            User user = userRepository.getUser(username);
+            if (user != null) {
+                users.add(user.withStatus(Status.ONLINE.name()));
+            }
+        }
+        users.sort(BY_NAME);
+        return users;
+    }
+
+    /**
+     * Sets the current status on users read from the database, disabled users are left as they are.
+     *
+     * @param users users that are not shared, as the ones of a query
+     * @return the same list
+     */
+    public List<User> applyTo(List<User> users) {
+        for (User user : users) {
+            if (!Status.DISABLED.name().equals(user.getStatus())) {
+                user.setStatus(isOnline(user.getUsername()) ? Status.ONLINE.name() : Status.OFFLINE.name());
+            }
+        }
+        return users;
+    }
+
+    private void changed(String username, Status status) {
+        changes.increment();
+        if (persistIntervalMillis > 0) {
+            pending.put(username, status);
+        }
+    }
+
+    private void safePersist() {
+        try {
+            persist();
+        } catch (RuntimeException e) {
+            log.warn("Could not persist the presence of the users", e);
+        }
+    }
+
+    private void persist() {
+        for (Map.Entry<String, Status> entry : pending.entrySet()) {
+            Status status = entry.getValue();
+            try {
+                userRepository.persistPresence(entry.getKey(), status);
+            } catch (RuntimeException e) {
+                // left pending, the next run tries again
+                log.warn("Could not persist the presence of {}", entry.getKey(), e);
+                continue;
+            }
+            writes.increment();
+            // only removed once written and if it did not change meanwhile, a newer status is written on the next run
+            pending.remove(entry.getKey(), status);
+        }
+    }
+
+    //region Metrics
+    public int getOnlineCount() {
+        return online.size();
+    }
+
+    public long getChanges() {
+        return changes.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public int getPendingWrites() {
+        return pending.size();
+    }
+    //endregion
+}
@@ -2,6 +2,8 @@ package ro.lic.server.websocket.utils;
 
 import org.springframework.web.socket.WebSocketSession;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
 
 /***/
@@ -22,6 +24,17 @@ public class UserRegistry {
         return usersBySessionId.get(session.getId());
     }
 
+    /**
+     * @return a live view of the registered sessions
+     */
+    public Collection<UserSession> getSessions() {
+        return Collections.unmodifiableCollection(usersBySessionId.values());
+    }
+
+    public int size() {
+        return usersBySessionId.size();
+    }
+
     public boolean exists(String name) {
         return usersByName.keySet().contains(name);
     }
@@ -1,15 +1,21 @@
 package ro.lic.server.websocket.utils;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.kurento.client.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 import ro.lic.server.model.enums.Role;
+import ro.lic.server.websocket.security.VerifiedToken;
+import ro.lic.server.websocket.utils.message.OutboundFrame;
+import ro.lic.server.websocket.utils.message.WireFormat;
+import ro.lic.server.websocket.utils.outbound.SessionOutboundQueue;
 import ro.lic.server.websocket.utils.pipeline.RecordMediaPipeline;
 
-import java.io.IOException;
 
 /***/
 public class UserSession {
@@ -19,15 +25,23 @@ public class UserSession {
     private final String username;
     private final WebSocketSession session;
     private final Role role;
+    private final WireFormat wireFormat;
+    private final boolean binaryFraming;
+    private final SessionOutboundQueue outbound;
     private String token;
+    private volatile VerifiedToken verifiedToken;
+    private int userId;
 
     private RecordMediaPipeline recordMediaPipeline = null;
 
-    public UserSession(WebSocketSession session, String name, Role role) {
+    public UserSession(WebSocketSession session, String name, Role role, WireFormat wireFormat, boolean binaryFraming,
+                       SessionOutboundQueue outbound) {
         this.session = session;
         this.username = name;
         this.role = role;
-
+        this.wireFormat = wireFormat;
+        this.binaryFraming = binaryFraming;
+        this.outbound = outbound;
     }
 
     public String getToken(){
@@ -36,12 +50,35 @@ public class UserSession {
 
     public void setToken(String token) {
         this.token = token;
+        this.verifiedToken = null;
+    }
+
+    /**
+     * @return the cached claims of the session token, see {@link ro.lic.server.websocket.security.Authoriser}
+     */
+    public VerifiedToken getVerifiedToken() {
+        return verifiedToken;
+    }
+
+    public void setVerifiedToken(VerifiedToken verifiedToken) {
+        this.verifiedToken = verifiedToken;
     }
 
     public Role getRole() {
         return role;
     }
 
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * @return true if the client negotiated the binary encoding of the frequent messages
+     */
+    public boolean isBinaryFraming() {
+        return binaryFraming;
+    }
+
     public WebSocketSession getSession() {
         return session;
     }
@@ -50,9 +87,64 @@ public class UserSession {
         return username;
     }
 
-    public void sendMessage(JsonObject message) throws IOException {
-        log.debug("Sending message from user '{}': {}", username, message);
-        session.sendMessage(new TextMessage(message.toString()));
+    /**
+     * @return the database id of the user
+     */
+    public int getUserId() {
+        return userId;
+    }
+
+    public void setUserId(int userId) {
+        this.userId = userId;
+    }
+
+    /*
+     * Messages are queued and written by the outbound queue of the session, the send methods never block and can be
+     * called from any thread.
+     */
+
+    public void sendMessage(JsonObject message) {
+        // the content may hold a token or a session description, only its kind is logged
+        if (log.isDebugEnabled()) {
+            log.debug("Sending {}/{} to user '{}'", propertyOf(message, "method"), propertyOf(message, "event"), username);
+        }
+        sendMessage(new TextMessage(message.toString()));
+    }
+
+    private static String propertyOf(JsonObject message, String name) {
+        JsonElement value = message.get(name);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+
+    public void sendMessage(OutboundFrame frame) {
+        log.debug("Sending {}/{} to user '{}'", frame.getMethod(), frame.getEvent(), username);
+        outbound.offer(frame.toMessage(wireFormat, binaryFraming), frame.getCoalesceKey());
+    }
+
+    public void sendMessage(WebSocketMessage<?> message) {
+        outbound.offer(message, null);
+    }
+
+    /**
+     * Closes the connection after the messages already queued are sent.
+     */
+    public void close(CloseStatus status) {
+        outbound.close(status);
+    }
+
+    public void close() {
+        close(CloseStatus.NORMAL);
+    }
+
+    public boolean isOpen() {
+        return session.isOpen();
+    }
+
+    /**
+     * @return the number of messages waiting to be sent to the user
+     */
+    public int getOutboundDepth() {
+        return outbound.getDepth();
     }
 
     public String getSessionId() {
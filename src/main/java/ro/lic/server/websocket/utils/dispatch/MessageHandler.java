@@ -0,0 +1,14 @@
+package ro.lic.server.websocket.utils.dispatch;
+
+import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.message.InboundMessage;
+
+import java.io.IOException;
+
+/**
+ * Handles one (method, event) route of the websocket protocol.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+    void handle(UserSession session, InboundMessage receivedMessage) throws IOException;
+}
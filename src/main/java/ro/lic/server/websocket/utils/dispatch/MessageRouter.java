@@ -0,0 +1,95 @@
+package ro.lic.server.websocket.utils.dispatch;
+
+import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.message.InboundMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dispatch table for the websocket protocol.
+ * <p> Every message has a <i>method</i> and an <i>event</i>. Handlers are registered once, at startup, for a
+ * (method, event) pair or for a whole method, and are resolved with two hash lookups for each message.</p>
+ * <p> Each route keeps its own {@link RouteStats}.</p>
+ */
+public class MessageRouter {
+
+    private final Map<String, Map<String, Route>> routes = new HashMap<>();
+    private final Map<String, Route> methodRoutes = new HashMap<>();
+    private final List<RouteStats> stats = new ArrayList<>();
+
+    /**
+     * Registers the handler of a (method, event) pair.
+     */
+    public MessageRouter register(String method, String event, MessageHandler handler) {
+        Route route = new Route(handler, new RouteStats(method, event));
+        if (routes.computeIfAbsent(method, key -> new HashMap<>()).putIfAbsent(event, route) != null) {
+            throw new IllegalStateException(String.format("Route %s/%s is already registered", method, event));
+        }
+        stats.add(route.stats);
+        return this;
+    }
+
+    /**
+     * Registers the handler used for every event of a method that has no route of its own.
+     */
+    public MessageRouter register(String method, MessageHandler handler) {
+        Route route = new Route(handler, new RouteStats(method, null));
+        if (methodRoutes.putIfAbsent(method, route) != null) {
+            throw new IllegalStateException(String.format("Route %s/* is already registered", method));
+        }
+        stats.add(route.stats);
+        return this;
+    }
+
+    /**
+     * Dispatches the message to the handler of its route.
+     *
+     * @return false if no handler is registered for the message
+     */
+    public boolean dispatch(UserSession session, InboundMessage receivedMessage) throws IOException {
+        Route route = resolve(receivedMessage.getMethod(), receivedMessage.getEvent());
+        if (route == null) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            route.handler.handle(session, receivedMessage);
+            failed = false;
+        } finally {
+            route.stats.record(System.nanoTime() - start, failed);
+        }
+        return true;
+    }
+
+    private Route resolve(String method, String event) {
+        Map<String, Route> events = routes.get(method);
+        if (events != null) {
+            Route route = events.get(event);
+            if (route != null) {
+                return route;
+            }
+        }
+        return methodRoutes.get(method);
+    }
+
+    public List<RouteStats> getStats() {
+        return Collections.unmodifiableList(stats);
+    }
+
+    private static final class Route {
+        private final MessageHandler handler;
+        private final RouteStats stats;
+
+        private Route(MessageHandler handler, RouteStats stats) {
+            this.handler = handler;
+            this.stats = stats;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package ro.lic.server.websocket.utils.dispatch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings of a single route of the {@link MessageRouter}.
+ * <p> All counters are updated without locking, so they can be read at any time while messages are handled.</p>
+ */
+public class RouteStats {
+    private final String method;
+    private final String event;
+
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    RouteStats(String method, String event) {
+        this.method = method;
+        this.event = event;
+    }
+
+    void record(long elapsedNanos, boolean failed) {
+        invocations.increment();
+        totalNanos.add(elapsedNanos);
+        if (failed) {
+            failures.increment();
+        }
+        long max = maxNanos.get();
+        while (elapsedNanos > max && !maxNanos.compareAndSet(max, elapsedNanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the event of the route, or {@code null} if the route handles every event of its method
+     */
+    public String getEvent() {
+        return event;
+    }
+
+    public long getInvocations() {
+        return invocations.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getTotalTime(TimeUnit unit) {
+        return unit.convert(totalNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxTime(TimeUnit unit) {
+        return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public double getMeanTime(TimeUnit unit) {
+        long count = invocations.sum();
+        return count == 0 ? 0 : (double) getTotalTime(TimeUnit.NANOSECONDS) / count / unit.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s/%s: %d calls, %d failed, mean %.3f ms, max %d ms",
+                method, event == null ? "*" : event,
+                getInvocations(), getFailures(), getMeanTime(TimeUnit.MILLISECONDS), getMaxTime(TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,94 @@
+package ro.lic.server.websocket.utils.location;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Uniform grid over latitude and longitude, indexing the {@link LocationStore} slots by the cell of their latest
+ * position.
+ * <p> The grid is only changed when a user moves to another cell. A box query visits only the cells overlapping the
+ * box, or every non empty cell when the box covers more cells than are in use. The callers filter the candidates
+ * with the exact positions.</p>
+ */
+class LocationGrid {
+    private final double cellDegrees;
+
+    /**
+     * key is the cell, see {@link #cellOf}
+     */
+    private final ConcurrentHashMap<Long, Set<Integer>> cells = new ConcurrentHashMap<>();
+
+    LocationGrid(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+    }
+
+    long cellOf(double lat, double lng) {
+        return key(index(lat), index(lng));
+    }
+
+    /**
+     * @param from the previous cell of the slot, or {@link LocationStore#NO_CELL}
+     */
+    void move(int slot, long from, long to) {
+        if (from != LocationStore.NO_CELL) {
+            remove(slot, from);
+        }
+        cells.computeIfAbsent(to, key -> ConcurrentHashMap.newKeySet()).add(slot);
+    }
+
+    void remove(int slot, long cell) {
+        Set<Integer> slots = cells.get(cell);
+        if (slots != null) {
+            slots.remove(slot);
+        }
+    }
+
+    /**
+     * Visits the slots whose cell overlaps the viewport, some of them may be outside of it and a slot moving between
+     * cells may be visited twice.
+     */
+    void query(Viewport viewport, IntConsumer visitor) {
+        if (viewport.crossesAntimeridian()) {
+            query(viewport.getSouth(), viewport.getWest(), viewport.getNorth(), 180, visitor);
+            query(viewport.getSouth(), -180, viewport.getNorth(), viewport.getEast(), visitor);
+        } else {
+            query(viewport.getSouth(), viewport.getWest(), viewport.getNorth(), viewport.getEast(), visitor);
+        }
+    }
+
+    private void query(double south, double west, double north, double east, IntConsumer visitor) {
+        int minRow = index(south);
+        int maxRow = index(north);
+        int minColumn = index(west);
+        int maxColumn = index(east);
+        long area = (long) (maxRow - minRow + 1) * (maxColumn - minColumn + 1);
+
+        if (area > cells.size()) {
+            cells.forEach((cell, slots) -> {
+                int row = (int) (cell >> 32);
+                int column = (int) (long) cell;
+                if (row >= minRow && row <= maxRow && column >= minColumn && column <= maxColumn) {
+                    slots.forEach(visitor::accept);
+                }
+            });
+            return;
+        }
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                Set<Integer> slots = cells.get(key(row, column));
+                if (slots != null) {
+                    slots.forEach(visitor::accept);
+                }
+            }
+        }
+    }
+
+    private int index(double degrees) {
+        return (int) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long key(int row, int column) {
+        return ((long) row << 32) | (column & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,233 @@
+package ro.lic.server.websocket.utils.location;
+
+import ro.lic.server.model.non_db_models.UserLocation;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latest position of every user, in primitive arrays.
+ * <p> A user is interned once into a slot, the slot is then written in place, so an update allocates nothing. The
+ * slots live in segments of {@value #SEGMENT_SIZE}, added as users are interned, and are never released: a user who
+ * disconnects only has its slot marked empty.</p>
+ * <p> Each slot is guarded by a seqlock: a writer makes the version odd, writes the fields and makes it even again,
+ * a reader retries until it reads the same even version before and after the fields. Readers never block writers
+ * and never see a half written position.</p>
+ * <p> Every write and removal takes the next number of a global sequence while it holds the lock of the slot, so
+ * once a reader has read the {@link #head()} every slot stamped with a number up to it is either written or locked,
+ * and its read waits for the write. A reader can then send the slots in (previous head, head] without missing one.</p>
+ * <p> A removed user keeps its slot, stamped with the sequence number of the removal, so the readers can tell their
+ * clients it is gone.</p>
+ */
+class LocationStore {
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * cell of a slot that is not in the grid
+     */
+    static final long NO_CELL = Long.MIN_VALUE;
+
+    /**
+     * key is username, value is its slot
+     */
+    private final ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<>();
+    private volatile Segment[] segments = new Segment[0];
+    private volatile int size = 0;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @return the slot of the user, interned on first use
+     */
+    int slotOf(String username) {
+        Integer slot = slots.get(username);
+        return slot != null ? slot : intern(username);
+    }
+
+    /**
+     * @return the slot of the user, or -1 if the user never had a position
+     */
+    int findSlot(String username) {
+        Integer slot = slots.get(username);
+        return slot != null ? slot : -1;
+    }
+
+    private synchronized int intern(String username) {
+        Integer existing = slots.get(username);
+        if (existing != null) {
+            return existing;
+        }
+        int slot = size;
+        if ((slot >> SEGMENT_BITS) == segments.length) {
+            Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+            grown[segments.length] = new Segment();
+            segments = grown;
+        }
+        segment(slot).usernames[slot & SEGMENT_MASK] = username;
+        size = slot + 1;
+        // publishes the segment to the threads that find the slot
+        slots.put(username, slot);
+        return slot;
+    }
+
+    /**
+     * @return the number of slots in use, the valid slots are 0 to size - 1
+     */
+    int size() {
+        return size;
+    }
+
+    String usernameOf(int slot) {
+        return segment(slot).usernames[slot & SEGMENT_MASK];
+    }
+
+    /**
+     * @return the latest sequence number taken, the slots stamped up to it are readable
+     */
+    long head() {
+        return sequence.get();
+    }
+
+    /**
+     * @return the sequence number of the write
+     */
+    long write(int slot, double lat, double lng, long timestamp) {
+        Segment segment = segment(slot);
+        int i = slot & SEGMENT_MASK;
+        long version = lock(segment, i);
+        long stamp = sequence.incrementAndGet();
+        segment.lat[i] = lat;
+        segment.lng[i] = lng;
+        segment.sequence[i] = stamp;
+        segment.timestamp[i] = timestamp;
+        segment.removed[i] = false;
+        VarHandle.releaseFence();
+        segment.version.set(i, version + 2);
+        return stamp;
+    }
+
+    /**
+     * Marks the user of the slot removed, its last position is kept for the readers sending the removal.
+     */
+    void clear(int slot) {
+        Segment segment = segment(slot);
+        int i = slot & SEGMENT_MASK;
+        long version = lock(segment, i);
+        if (segment.sequence[i] != 0) {
+            segment.sequence[i] = sequence.incrementAndGet();
+            segment.removed[i] = true;
+        }
+        VarHandle.releaseFence();
+        segment.version.set(i, version + 2);
+    }
+
+    /**
+     * Reads a consistent copy of a slot, including a removed one.
+     *
+     * @return false if the slot was never written
+     */
+    boolean read(int slot, Reading into) {
+        Segment segment = segment(slot);
+        int i = slot & SEGMENT_MASK;
+        while (true) {
+            long before = segment.version.get(i);
+            if ((before & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            double lat = segment.lat[i];
+            double lng = segment.lng[i];
+            long sequence = segment.sequence[i];
+            long timestamp = segment.timestamp[i];
+            boolean removed = segment.removed[i];
+            VarHandle.acquireFence();
+            if (segment.version.get(i) == before) {
+                into.lat = lat;
+                into.lng = lng;
+                into.sequence = sequence;
+                into.timestamp = timestamp;
+                into.removed = removed;
+                return sequence != 0;
+            }
+        }
+    }
+
+    /**
+     * Reads the position of a slot into an existing location.
+     *
+     * @return false if the slot is empty or removed, the location is then unchanged
+     */
+    boolean read(int slot, UserLocation into, Reading scratch) {
+        if (!read(slot, scratch) || scratch.removed) {
+            return false;
+        }
+        into.setLatLng(scratch.lat, scratch.lng);
+        return true;
+    }
+
+    /**
+     * The grid cell of a slot, only used by the thread updating the user.
+     */
+    long cellOf(int slot) {
+        return segment(slot).cell[slot & SEGMENT_MASK];
+    }
+
+    void setCell(int slot, long cell) {
+        segment(slot).cell[slot & SEGMENT_MASK] = cell;
+    }
+
+    private static long lock(Segment segment, int i) {
+        while (true) {
+            long version = segment.version.get(i);
+            if ((version & 1) == 0 && segment.version.compareAndSet(i, version, version + 1)) {
+                return version;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private Segment segment(int slot) {
+        return segments[slot >> SEGMENT_BITS];
+    }
+
+    /**
+     * Mutable copy of a slot, reused by a reader between reads.
+     */
+    static final class Reading {
+        double lat;
+        double lng;
+        long sequence;
+        long timestamp;
+        boolean removed;
+
+        LocationUpdate toUpdate(String username) {
+            return new LocationUpdate(username, lat, lng, sequence, removed);
+        }
+
+        /**
+         * @return the removal of the user, whatever the state of the slot
+         */
+        LocationUpdate toRemoval(String username) {
+            return new LocationUpdate(username, lat, lng, sequence, true);
+        }
+    }
+
+    private static final class Segment {
+        private final String[] usernames = new String[SEGMENT_SIZE];
+        private final double[] lat = new double[SEGMENT_SIZE];
+        private final double[] lng = new double[SEGMENT_SIZE];
+        private final long[] sequence = new long[SEGMENT_SIZE];
+        private final long[] timestamp = new long[SEGMENT_SIZE];
+        private final long[] cell = new long[SEGMENT_SIZE];
+        private final boolean[] removed = new boolean[SEGMENT_SIZE];
+        private final AtomicLongArray version = new AtomicLongArray(SEGMENT_SIZE);
+
+        private Segment() {
+            Arrays.fill(cell, NO_CELL);
+        }
+    }
+}
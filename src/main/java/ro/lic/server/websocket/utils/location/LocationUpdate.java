@@ -0,0 +1,45 @@
+package ro.lic.server.websocket.utils.location;
+
+/**
+ * Latest known position of an user, stamped with the sequence number of the update, or the removal of the user from
+ * the map of a subscriber.
+ */
+public final class LocationUpdate {
+    private final String username;
+    private final double lat;
+    private final double lng;
+    private final long sequence;
+    private final boolean removed;
+
+    LocationUpdate(String username, double lat, double lng, long sequence, boolean removed) {
+        this.username = username;
+        this.lat = lat;
+        this.lng = lng;
+        this.sequence = sequence;
+        this.removed = removed;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLng() {
+        return lng;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return true if the user disconnected or left the viewport of the subscriber, the position is then the last
+     * one known
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+}
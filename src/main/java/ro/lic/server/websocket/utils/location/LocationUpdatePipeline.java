@@ -0,0 +1,367 @@
+package ro.lic.server.websocket.utils.location;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ro.lic.server.model.non_db_models.UserLocation;
+import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.message.BinaryCodec;
+import ro.lic.server.websocket.utils.message.OutboundFrame;
+import ro.lic.server.websocket.utils.outbound.FanOutEngine;
+import ro.lic.server.websocket.utils.subscribe.SubscriberController;
+import ro.lic.server.websocket.utils.subscribe.Topic;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Location stage between the devices and the map subscribers.
+ * <p> An update only replaces the latest position of the user in the {@link LocationStore}, stamped with a global
+ * sequence number, and allocates nothing unless the user is new or moved to another grid cell. On every tick
+ * the positions that changed since the last flush of a subscriber are sent to it in one {@code mapItemLocations}
+ * frame, so a subscriber gets at most one frame per tick whatever the number of devices. A user who disconnected
+ * is sent as removed.</p>
+ * <p> Each subscriber has a cursor, the last sequence number it was sent. Subscribers with the same cursor share the
+ * same frame. A subscriber is skipped while its last flush is more recent than the maximum rate allows, or while its
+ * outbound queue is backed up, it then gets a larger delta on a later tick.</p>
+ * <p> Positions are indexed in a {@link LocationGrid}. A subscriber can register a {@link Viewport}, it then only gets
+ * the positions inside it, and a new viewport starts with every position inside it. A user the subscriber was sent
+ * who moves out of its viewport is sent as removed.</p>
+ */
+@Component
+public class LocationUpdatePipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(LocationUpdatePipeline.class);
+
+    /**
+     * a subscriber with more messages waiting is not sent new positions until it catches up
+     */
+    private static final int MAX_PENDING_MESSAGES = 4;
+
+    @Autowired
+    private SubscriberController subscriberController;
+
+    @Autowired
+    private FanOutEngine fanOutEngine;
+
+    private final LocationStore store = new LocationStore();
+    private final LocationGrid grid;
+
+    /**
+     * key is session id
+     */
+    private final ConcurrentHashMap<String, Viewport> viewports = new ConcurrentHashMap<>();
+
+    /**
+     * key is session id, only used by the flush thread
+     */
+    private final Map<String, Cursor> cursors = new HashMap<>();
+
+    private final long flushIntervalMillis;
+    private final long minFlushIntervalNanos;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "location-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+
+    public LocationUpdatePipeline(@Value("${location.flush-interval-ms:250}") long flushIntervalMillis,
+                                  @Value("${location.subscriber-max-rate:4}") double subscriberMaxRate,
+                                  @Value("${location.grid-cell-degrees:0.05}") double gridCellDegrees) {
+        this.grid = new LocationGrid(gridCellDegrees);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.minFlushIntervalNanos = subscriberMaxRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / subscriberMaxRate) : 0;
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::safeFlush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Records the position of an user, it is sent to the subscribers on the next tick.
+     * <p> The updates of an user must not be concurrent, which holds as they come from the user's session.</p>
+     */
+    public void update(String username, double lat, double lng) {
+        int slot = store.slotOf(username);
+
+        // the slot is moved first, a flush which sees the new position finds it in the new cell
+        long cell = grid.cellOf(lat, lng);
+        long previousCell = store.cellOf(slot);
+        if (cell != previousCell) {
+            grid.move(slot, previousCell, cell);
+            store.setCell(slot, cell);
+        }
+        store.write(slot, lat, lng, System.currentTimeMillis());
+        updates.increment();
+    }
+
+    /**
+     * Forgets the position of an user who disconnected, the subscribers are sent the removal on the next tick.
+     */
+    public void remove(String username) {
+        int slot = store.findSlot(username);
+        if (slot < 0) {
+            return;
+        }
+        store.clear(slot);
+        grid.remove(slot, store.cellOf(slot));
+        store.setCell(slot, LocationStore.NO_CELL);
+    }
+
+    /**
+     * Restricts the positions sent to a map subscriber.
+     *
+     * @param viewport the area watched by the subscriber, null for the whole map
+     */
+    public void setViewport(UserSession subscriber, Viewport viewport) {
+        if (viewport == null) {
+            viewports.remove(subscriber.getSessionId());
+        } else {
+            viewports.put(subscriber.getSessionId(), viewport);
+        }
+    }
+
+    public void removeSubscriber(UserSession subscriber) {
+        viewports.remove(subscriber.getSessionId());
+    }
+
+    public UserLocation getLocation(String username) {
+        int slot = store.findSlot(username);
+        UserLocation location = new UserLocation(0, 0);
+        return slot >= 0 && store.read(slot, location, new LocationStore.Reading()) ? location : null;
+    }
+
+    /**
+     * @return the latest position of every user, the values are not updated afterwards
+     */
+    public List<LocationUpdate> getLocations() {
+        return collect(0, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the latest position of the users inside the viewport
+     */
+    public List<LocationUpdate> getLocations(Viewport viewport) {
+        return collect(viewport, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the latest position of the users closer than the radius to a point
+     */
+    public List<LocationUpdate> getLocationsWithin(double lat, double lng, double radiusMeters) {
+        List<LocationUpdate> locations = collect(Viewport.around(lat, lng, radiusMeters), 0, Long.MAX_VALUE);
+        locations.removeIf(location -> Viewport.distanceMeters(lat, lng, location.getLat(), location.getLng()) > radiusMeters);
+        return locations;
+    }
+
+    /**
+     * @return the positions inside the viewport with a sequence number in (from, to]
+     */
+    private List<LocationUpdate> collect(Viewport viewport, long from, long to) {
+        return collect(viewport, from, to, null);
+    }
+
+    /**
+     * @param visible the slots the subscriber was sent inside the viewport, null if there is no subscriber. It is
+     *                updated, and the slots of it changed in (from, to] which are removed or moved out of the viewport
+     *                are returned as removed.
+     * @return the positions inside the viewport with a sequence number in (from, to]
+     */
+    private List<LocationUpdate> collect(Viewport viewport, long from, long to, BitSet visible) {
+        BitSet visited = new BitSet();
+        LocationStore.Reading reading = new LocationStore.Reading();
+        List<LocationUpdate> locations = new ArrayList<>();
+        grid.query(viewport, slot -> {
+            if (visited.get(slot)) {
+                return;
+            }
+            visited.set(slot);
+            if (store.read(slot, reading) && !reading.removed && reading.sequence > from && reading.sequence <= to
+                    && viewport.contains(reading.lat, reading.lng)) {
+                locations.add(reading.toUpdate(store.usernameOf(slot)));
+                if (visible != null) {
+                    visible.set(slot);
+                }
+            }
+        });
+        if (visible == null) {
+            return locations;
+        }
+
+        // the slots which left are no longer in the cells of the viewport
+        for (int slot = visible.nextSetBit(0); slot >= 0; slot = visible.nextSetBit(slot + 1)) {
+            if (store.read(slot, reading) && reading.sequence > from && reading.sequence <= to
+                    && (reading.removed || !viewport.contains(reading.lat, reading.lng))) {
+                locations.add(reading.toRemoval(store.usernameOf(slot)));
+                visible.clear(slot);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * @return every position with a sequence number in (from, to], with the users removed since {@code from} unless
+     * it is 0
+     */
+    private List<LocationUpdate> collect(long from, long to) {
+        LocationStore.Reading reading = new LocationStore.Reading();
+        List<LocationUpdate> locations = new ArrayList<>();
+        int size = store.size();
+        for (int slot = 0; slot < size; slot++) {
+            if (store.read(slot, reading) && reading.sequence > from && reading.sequence <= to
+                    && (from > 0 || !reading.removed)) {
+                locations.add(reading.toUpdate(store.usernameOf(slot)));
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * @return the slots of the users with a position
+     */
+    private BitSet present() {
+        LocationStore.Reading reading = new LocationStore.Reading();
+        BitSet present = new BitSet();
+        int size = store.size();
+        for (int slot = 0; slot < size; slot++) {
+            if (store.read(slot, reading) && !reading.removed) {
+                present.set(slot);
+            }
+        }
+        return present;
+    }
+
+    private void safeFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // an exception would cancel the next ticks
+            log.error("Failed to flush locations", e);
+        }
+    }
+
+    void flush() {
+        // a position stamped up to the head is readable, see LocationStore
+        long head = store.head();
+        long now = System.nanoTime();
+        List<UserSession> subscribers = subscriberController.getSubscribers(Topic.MAP_CHANGES);
+
+        Set<String> subscribed = new HashSet<>();
+        // subscribers due for a flush, grouped by cursor
+        Map<Long, List<UserSession>> due = new HashMap<>();
+        for (UserSession subscriber : subscribers) {
+            subscribed.add(subscriber.getSessionId());
+            // a new subscriber starts with every known position
+            Cursor cursor = cursors.computeIfAbsent(subscriber.getSessionId(), id -> new Cursor(now - minFlushIntervalNanos));
+            Viewport viewport = viewports.get(subscriber.getSessionId());
+            if (cursor.viewport != viewport) {
+                // the positions already sent may be outside of the new viewport, they are sent as removed
+                if (viewport == null) {
+                    cursor.visible.clear();
+                } else if (cursor.viewport == null && cursor.lastSequence > 0) {
+                    cursor.visible = present();
+                }
+                cursor.viewport = viewport;
+                cursor.lastSequence = 0;
+            }
+            if (cursor.lastSequence >= head
+                    || now - cursor.lastFlush < minFlushIntervalNanos
+                    || subscriber.getOutboundDepth() >= MAX_PENDING_MESSAGES) {
+                continue;
+            }
+
+            if (viewport != null) {
+                // viewports are rarely shared, the subscriber gets its own frame
+                List<LocationUpdate> delta = collect(viewport, cursor.lastSequence, head, cursor.visible);
+                if (!delta.isEmpty()) {
+                    subscriber.sendMessage(toFrame(delta));
+                    frames.increment();
+                }
+                cursor.lastSequence = head;
+                cursor.lastFlush = now;
+                continue;
+            }
+            due.computeIfAbsent(cursor.lastSequence, lastSequence -> new ArrayList<>()).add(subscriber);
+        }
+        cursors.keySet().retainAll(subscribed);
+
+        for (Map.Entry<Long, List<UserSession>> group : due.entrySet()) {
+            // newer positions are left for the next tick, they are above the cursor saved below
+            List<LocationUpdate> delta = collect(group.getKey(), head);
+
+            if (!delta.isEmpty()) {
+                fanOutEngine.broadcast(toFrame(delta), group.getValue());
+                frames.add(group.getValue().size());
+            }
+            for (UserSession subscriber : group.getValue()) {
+                Cursor cursor = cursors.get(subscriber.getSessionId());
+                cursor.lastSequence = head;
+                cursor.lastFlush = now;
+            }
+        }
+    }
+
+    private static OutboundFrame toFrame(List<LocationUpdate> delta) {
+        JsonArray payload = new JsonArray();
+        for (LocationUpdate update : delta) {
+            JsonObject element = new JsonObject();
+            element.addProperty("username", update.getUsername());
+            if (update.isRemoved()) {
+                element.addProperty("removed", true);
+            } else {
+                element.addProperty("lat", update.getLat());
+                element.addProperty("lng", update.getLng());
+            }
+            payload.add(element);
+        }
+        return new OutboundFrame("subscribe", "mapItemLocations")
+                .payload(payload)
+                .binary(BinaryCodec.encodeMapItemLocations(delta));
+    }
+
+    //region Metrics
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    /**
+     * @return location frames sent to subscribers
+     */
+    public long getFrames() {
+        return frames.sum();
+    }
+    //endregion
+
+    private static final class Cursor {
+        private long lastSequence = 0;
+        private long lastFlush;
+        private Viewport viewport;
+        /**
+         * slots sent inside the viewport and not removed since
+         */
+        private BitSet visible = new BitSet();
+
+        private Cursor(long lastFlush) {
+            this.lastFlush = lastFlush;
+        }
+    }
+}
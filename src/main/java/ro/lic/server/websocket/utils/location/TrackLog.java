@@ -0,0 +1,305 @@
+package ro.lic.server.websocket.utils.location;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only history of every location update, in memory mapped files.
+ * <p> Each day has its own segments, {@code track-<day>-<n>.log}, of fixed size. A record is 32 bytes:
+ * time (epoch millis, long), lat (double), lng (double), user id (int) and 4 reserved bytes. The time is written
+ * last, so the records of a segment end at the first record with a zero time; on startup the log continues after
+ * the last record of the current day.</p>
+ * <p> Appending is a few writes in a mapped buffer, the operating system writes the pages to disk. A full segment is
+ * forced to disk by a background thread, the current one on shutdown, so a crash of the machine (not of the server)
+ * can lose the last updates.</p>
+ * <p> The time of a record is taken when it is appended, under the lock, and never goes back even if the clock does,
+ * so the times increase within a segment and queries use a binary search to find the start of a range.</p>
+ * <p> The days older than {@code track.retention-days} are deleted on startup and when a new day starts, queries
+ * are limited to the days kept.</p>
+ */
+@Component
+public class TrackLog {
+
+    private static final Logger log = LoggerFactory.getLogger(TrackLog.class);
+
+    static final int RECORD_SIZE = 32;
+    private static final int TIME_OFFSET = 0;
+    private static final int LAT_OFFSET = 8;
+    private static final int LNG_OFFSET = 16;
+    private static final int USER_OFFSET = 24;
+
+    private final Path directory;
+    private final int recordsPerSegment;
+    private final int retentionDays;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    /**
+     * forces the full segments and deletes the old days, off the threads appending
+     */
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "track-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // current segment, guarded by this
+    private LocalDate day;
+    private long dayEnd;
+    private int segmentNumber;
+    private MappedByteBuffer segment;
+    private Path segmentPath;
+    private long lastTime;
+    /**
+     * records written in the current segment, read without the lock by the queries
+     */
+    private volatile int written;
+
+    public TrackLog(@Value("${track.directory:tracks}") String directory,
+                    @Value("${track.segment-size-mb:64}") int segmentSizeMb,
+                    @Value("${track.retention-days:30}") int retentionDays) {
+        if (retentionDays < 1) {
+            throw new IllegalArgumentException("The track log must keep at least the current day");
+        }
+        this.directory = Paths.get(directory);
+        this.recordsPerSegment = (int) Math.min(Integer.MAX_VALUE, (long) segmentSizeMb * 1024 * 1024) / RECORD_SIZE;
+        this.retentionDays = retentionDays;
+    }
+
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        long now = System.currentTimeMillis();
+        LocalDate today = dayOf(now);
+        List<Path> segments = segmentsOf(today);
+        if (segments.isEmpty()) {
+            openSegment(today, 0);
+        } else {
+            // continue after the last record of the current day
+            Path last = segments.get(segments.size() - 1);
+            openSegment(today, numberOf(last));
+            written = findEnd(segment, recordsPerSegment);
+            if (written > 0) {
+                lastTime = segment.getLong((written - 1) * RECORD_SIZE + TIME_OFFSET);
+            }
+            log.info("Track log continues {} after {} records", last.getFileName(), written);
+        }
+        background.execute(() -> deleteDaysBefore(today));
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (segment != null) {
+                MappedByteBuffer last = segment;
+                segment = null;
+                segmentPath = null;
+                background.execute(last::force);
+            }
+        }
+        background.shutdown();
+        background.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Appends the current position of an user, with the current time.
+     */
+    public synchronized void append(int userId, double lat, double lng) {
+        if (segment == null) {
+            return;
+        }
+        long time = Math.max(System.currentTimeMillis(), lastTime);
+        MappedByteBuffer full = segment;
+        try {
+            if (time >= dayEnd) {
+                LocalDate today = dayOf(time);
+                openSegment(today, 0);
+                background.execute(() -> deleteDaysBefore(today));
+            } else if (written == recordsPerSegment) {
+                openSegment(day, segmentNumber + 1);
+            }
+        } catch (IOException e) {
+            log.error("Failed to open a track segment, the position of user {} is lost", userId, e);
+            return;
+        }
+
+        int position = written * RECORD_SIZE;
+        segment.putDouble(position + LAT_OFFSET, lat);
+        segment.putDouble(position + LNG_OFFSET, lng);
+        segment.putInt(position + USER_OFFSET, userId);
+        segment.putLong(position + TIME_OFFSET, time);
+        written = written + 1;
+        lastTime = time;
+
+        if (segment != full) {
+            // the appends go on in the new segment meanwhile
+            background.execute(full::force);
+        }
+    }
+
+    /**
+     * @return the positions of the user with a time in [from, to), in time order, from the days kept
+     */
+    public List<TrackPoint> query(int userId, long from, long to) throws IOException {
+        List<TrackPoint> points = new ArrayList<>();
+        LocalDate today = dayOf(System.currentTimeMillis());
+        from = Math.max(from, startOf(firstDayKept(today)));
+        to = Math.min(to, startOf(today.plusDays(1)));
+        if (from >= to) {
+            return points;
+        }
+        for (LocalDate date = dayOf(from); !date.isAfter(dayOf(to - 1)); date = date.plusDays(1)) {
+            for (Path path : segmentsOf(date)) {
+                ByteBuffer records;
+                int count;
+                synchronized (this) {
+                    if (path.equals(segmentPath)) {
+                        records = segment.duplicate();
+                        count = written;
+                    } else {
+                        records = null;
+                        count = 0;
+                    }
+                }
+                if (records == null) {
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                        records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    }
+                    count = findEnd(records, (int) (records.capacity() / RECORD_SIZE));
+                }
+                scan(records, count, userId, from, to, points);
+            }
+        }
+        return points;
+    }
+
+    private static void scan(ByteBuffer records, int count, int userId, long from, long to, List<TrackPoint> into) {
+        // first record at or after from
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (records.getLong(middle * RECORD_SIZE + TIME_OFFSET) < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < count; i++) {
+            int position = i * RECORD_SIZE;
+            long time = records.getLong(position + TIME_OFFSET);
+            if (time >= to) {
+                break;
+            }
+            if (records.getInt(position + USER_OFFSET) == userId) {
+                into.add(new TrackPoint(time, records.getDouble(position + LAT_OFFSET), records.getDouble(position + LNG_OFFSET)));
+            }
+        }
+    }
+
+    /**
+     * @return the number of records, the index of the first record with a zero time
+     */
+    private static int findEnd(ByteBuffer records, int capacity) {
+        int low = 0;
+        int high = capacity;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (records.getLong(middle * RECORD_SIZE + TIME_OFFSET) != 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void openSegment(LocalDate date, int number) throws IOException {
+        Path path = directory.resolve(String.format("track-%s-%03d.log", date, number));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_SIZE);
+        }
+        segmentPath = path;
+        segmentNumber = number;
+        day = date;
+        dayEnd = startOf(date.plusDays(1));
+        written = 0;
+    }
+
+    private LocalDate firstDayKept(LocalDate today) {
+        return today.minusDays(retentionDays - 1);
+    }
+
+    /**
+     * Deletes the segments of the days no longer kept, on the background thread.
+     */
+    private void deleteDaysBefore(LocalDate today) {
+        LocalDate first = firstDayKept(today);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "track-*.log")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                LocalDate date;
+                try {
+                    date = LocalDate.parse(name.substring("track-".length(), "track-".length() + 10));
+                } catch (DateTimeParseException | IndexOutOfBoundsException e) {
+                    continue;
+                }
+                if (date.isBefore(first)) {
+                    Files.deleteIfExists(path);
+                    log.info("Deleted track segment {}", name);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to delete the track segments before {}", first, e);
+        }
+    }
+
+    /**
+     * @return the segments of a day, in order
+     */
+    private List<Path> segmentsOf(LocalDate date) throws IOException {
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "track-" + date + "-*.log")) {
+            for (Path path : stream) {
+                segments.put(numberOf(path), path);
+            }
+        }
+        return new ArrayList<>(segments.values());
+    }
+
+    private static int numberOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(name.lastIndexOf('-') + 1, name.length() - ".log".length()));
+    }
+
+    private LocalDate dayOf(long time) {
+        return Instant.ofEpochMilli(time).atZone(zone).toLocalDate();
+    }
+
+    private long startOf(LocalDate date) {
+        return date.atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,36 @@
+package ro.lic.server.websocket.utils.location;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * A position of an user from the {@link TrackLog}.
+ */
+public final class TrackPoint {
+    @Expose
+    private final long time;
+    @Expose
+    private final double lat;
+    @Expose
+    private final double lng;
+
+    TrackPoint(long time, double lat, double lng) {
+        this.time = time;
+        this.lat = lat;
+        this.lng = lng;
+    }
+
+    /**
+     * @return the time of the update, in epoch milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLng() {
+        return lng;
+    }
+}
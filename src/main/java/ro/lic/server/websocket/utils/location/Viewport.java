@@ -0,0 +1,93 @@
+package ro.lic.server.websocket.utils.location;
+
+/**
+ * Bounding box in degrees. A box whose west edge is greater than its east edge crosses the antimeridian.
+ */
+public final class Viewport {
+    private static final double EARTH_RADIUS_METERS = 6_371_000;
+
+    private final double south;
+    private final double west;
+    private final double north;
+    private final double east;
+
+    public Viewport(double south, double west, double north, double east) {
+        if (south > north) {
+            throw new IllegalArgumentException("South edge is above the north edge");
+        }
+        this.south = south;
+        this.west = west;
+        this.north = north;
+        this.east = east;
+    }
+
+    /**
+     * @return the box around a circle, the points of its corners are farther than the radius
+     */
+    public static Viewport around(double lat, double lng, double radiusMeters) {
+        double latDelta = Math.toDegrees(radiusMeters / EARTH_RADIUS_METERS);
+        double south = Math.max(-90, lat - latDelta);
+        double north = Math.min(90, lat + latDelta);
+        double maxAbsLat = Math.max(Math.abs(south), Math.abs(north));
+        if (maxAbsLat >= 90) {
+            // the circle contains a pole, every longitude is in range
+            return new Viewport(south, -180, north, 180);
+        }
+        double lngDelta = Math.min(180, latDelta / Math.cos(Math.toRadians(maxAbsLat)));
+        if (lngDelta >= 180) {
+            return new Viewport(south, -180, north, 180);
+        }
+        return new Viewport(south, normalizeLng(lng - lngDelta), north, normalizeLng(lng + lngDelta));
+    }
+
+    /**
+     * @return the great circle distance between two points, in meters
+     */
+    public static double distanceMeters(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    public boolean contains(double lat, double lng) {
+        if (lat < south || lat > north) {
+            return false;
+        }
+        if (crossesAntimeridian()) {
+            return lng >= west || lng <= east;
+        }
+        return lng >= west && lng <= east;
+    }
+
+    public boolean crossesAntimeridian() {
+        return west > east;
+    }
+
+    public double getSouth() {
+        return south;
+    }
+
+    public double getWest() {
+        return west;
+    }
+
+    public double getNorth() {
+        return north;
+    }
+
+    public double getEast() {
+        return east;
+    }
+
+    private static double normalizeLng(double lng) {
+        if (lng < -180) {
+            return lng + 360;
+        }
+        if (lng > 180) {
+            return lng - 360;
+        }
+        return lng;
+    }
+}
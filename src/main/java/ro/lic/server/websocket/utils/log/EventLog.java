@@ -0,0 +1,233 @@
+package ro.lic.server.websocket.utils.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.FormattingTuple;
+import org.slf4j.helpers.MessageFormatter;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging for the hot paths of the server: message handlers, media callbacks.
+ * <p> Same api as a slf4j logger, with {@code {}} placeholders. Events below the level configured for the logger
+ * ({@code logging.level.*}) cost a level check. The others are put in a lock-free ring buffer and formatted,
+ * redacted (tokens, passwords, session descriptions, see {@link Redactor}) and written by a single background thread,
+ * so the threads that log never wait on the console or on each other. Mutable arguments, e.g. a json object, are
+ * turned into strings when the event is logged, so the event shows them as they were then.</p>
+ * <p> When the buffer is full debug and info events are dropped and counted, warnings and errors are written by the
+ * caller. High rate events can be logged through a {@link Sampled} logger.</p>
+ */
+public final class EventLog {
+
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 16384;
+    private static final int DRAIN_BATCH = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Logger self = LoggerFactory.getLogger(EventLog.class);
+    private static final LogRingBuffer buffer = new LogRingBuffer(CAPACITY);
+    private static final LongAdder written = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+    private static long reportedDropped = 0;
+
+    static {
+        Thread writer = new Thread(EventLog::run, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::flush, "event-log-flush"));
+    }
+
+    private final Logger logger;
+
+    private EventLog(Logger logger) {
+        this.logger = logger;
+    }
+
+    public static EventLog get(Class<?> type) {
+        return new EventLog(LoggerFactory.getLogger(type));
+    }
+
+    //region Logging
+    public boolean isDebugEnabled() {
+        return logger.isDebugEnabled();
+    }
+
+    public void trace(String format, Object... arguments) {
+        if (logger.isTraceEnabled()) {
+            enqueue(Level.TRACE, format, arguments);
+        }
+    }
+
+    public void debug(String format, Object... arguments) {
+        if (logger.isDebugEnabled()) {
+            enqueue(Level.DEBUG, format, arguments);
+        }
+    }
+
+    public void info(String format, Object... arguments) {
+        if (logger.isInfoEnabled()) {
+            enqueue(Level.INFO, format, arguments);
+        }
+    }
+
+    public void warn(String format, Object... arguments) {
+        if (logger.isWarnEnabled()) {
+            enqueue(Level.WARN, format, arguments);
+        }
+    }
+
+    public void error(String format, Object... arguments) {
+        if (logger.isErrorEnabled()) {
+            enqueue(Level.ERROR, format, arguments);
+        }
+    }
+    //endregion
+
+    /**
+     * @param oneIn one event in this many is logged, at random
+     * @return a logger for a high rate event, e.g. every location update
+     */
+    public Sampled sampled(int oneIn) {
+        return new Sampled(this, oneIn);
+    }
+
+    /**
+     * Logs a random sample of the events.
+     */
+    public static final class Sampled {
+        private final EventLog log;
+        private final int oneIn;
+
+        private Sampled(EventLog log, int oneIn) {
+            this.log = log;
+            this.oneIn = Math.max(1, oneIn);
+        }
+
+        private boolean sample() {
+            return oneIn == 1 || ThreadLocalRandom.current().nextInt(oneIn) == 0;
+        }
+
+        public void debug(String format, Object... arguments) {
+            if (log.logger.isDebugEnabled() && sample()) {
+                log.enqueue(Level.DEBUG, format, arguments);
+            }
+        }
+
+        public void info(String format, Object... arguments) {
+            if (log.logger.isInfoEnabled() && sample()) {
+                log.enqueue(Level.INFO, format, arguments);
+            }
+        }
+    }
+
+    private void enqueue(Level level, String format, Object[] arguments) {
+        if (buffer.offer(level, logger, format, snapshot(arguments))) {
+            return;
+        }
+        dropped.increment();
+        if (level.compareTo(Level.WARN) >= 0) {
+            write(level, logger, format, arguments, Thread.currentThread().getName());
+        }
+    }
+
+    /**
+     * Replaces the arguments which may change before the writer formats them by their string, in place.
+     */
+    private static Object[] snapshot(Object[] arguments) {
+        for (int i = 0; i < arguments.length; i++) {
+            Object argument = arguments[i];
+            if (argument != null && !isImmutable(argument)) {
+                arguments[i] = argument.toString();
+            }
+        }
+        return arguments;
+    }
+
+    private static boolean isImmutable(Object argument) {
+        // a throwable is kept, the formatter takes the last argument as the exception of the event
+        return argument instanceof String || argument instanceof Integer || argument instanceof Long
+                || argument instanceof Double || argument instanceof Float || argument instanceof Boolean
+                || argument instanceof Enum || argument instanceof Throwable;
+    }
+
+    //region Writer
+    private static void run() {
+        while (true) {
+            try {
+                if (drain() == 0) {
+                    reportDropped();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (RuntimeException e) {
+                self.warn("Could not write a log event", e);
+            }
+        }
+    }
+
+    private static void flush() {
+        while (drain() > 0) {
+            // until empty
+        }
+    }
+
+    /**
+     * The buffer has a single consumer, the writer thread, except at shutdown when the remaining events are flushed.
+     */
+    private static int drain() {
+        synchronized (buffer) {
+            return buffer.drain(EventLog::write, DRAIN_BATCH);
+        }
+    }
+
+    private static void reportDropped() {
+        long total = dropped.sum();
+        if (total != reportedDropped) {
+            self.warn("{} log events dropped, the log buffer of {} events was full", total - reportedDropped, buffer.capacity());
+            reportedDropped = total;
+        }
+    }
+
+    private static void write(LogRingBuffer.Entry entry) {
+        write(entry.level, entry.logger, entry.format, entry.arguments, entry.thread);
+    }
+
+    private static void write(Level level, Logger logger, String format, Object[] arguments, String thread) {
+        FormattingTuple formatted = MessageFormatter.arrayFormat(format, arguments);
+        String message = "[" + thread + "] " + Redactor.redact(formatted.getMessage());
+        Throwable throwable = formatted.getThrowable();
+        switch (level) {
+            case TRACE:
+                logger.trace(message, throwable);
+                break;
+            case DEBUG:
+                logger.debug(message, throwable);
+                break;
+            case INFO:
+                logger.info(message, throwable);
+                break;
+            case WARN:
+                logger.warn(message, throwable);
+                break;
+            default:
+                logger.error(message, throwable);
+        }
+        written.increment();
+    }
+    //endregion
+
+    //region Metrics
+    public static long getWritten() {
+        return written.sum();
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+    //endregion
+}
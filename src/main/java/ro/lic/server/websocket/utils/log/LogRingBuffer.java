@@ -0,0 +1,113 @@
+package ro.lic.server.websocket.utils.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free queue of log events, many producers and one consumer.
+ * <p> Producers claim a slot with a compare and set on the tail and publish it by setting the sequence of the slot,
+ * the consumer reads the slots in order. The slots are allocated once and reused, logging does not allocate besides
+ * the arguments of the event. When the buffer is full the event is refused, a producer never waits.</p>
+ */
+final class LogRingBuffer {
+
+    /**
+     * A slot of the buffer, only valid while it is handed to the consumer.
+     */
+    static final class Entry {
+        EventLog.Level level;
+        org.slf4j.Logger logger;
+        String format;
+        Object[] arguments;
+        String thread;
+
+        private void clear() {
+            logger = null;
+            format = null;
+            arguments = null;
+            thread = null;
+        }
+    }
+
+    private final Entry[] entries;
+    private final int mask;
+    /**
+     * sequence of each slot: equal to the position when the slot is free for that position, position + 1 once the
+     * event at that position is published
+     */
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.entries = new Entry[size];
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    boolean offer(EventLog.Level level, org.slf4j.Logger logger, String format, Object[] arguments) {
+        long position;
+        while (true) {
+            position = tail.get();
+            long difference = sequences.get((int) position & mask) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            // otherwise another producer claimed the slot, retry at the new tail
+        }
+        int index = (int) position & mask;
+        Entry entry = entries[index];
+        entry.level = level;
+        entry.logger = logger;
+        entry.format = format;
+        entry.arguments = arguments;
+        entry.thread = Thread.currentThread().getName();
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Hands the published events to the consumer, in order. Only called by the consumer thread.
+     *
+     * @return the number of events drained
+     */
+    int drain(Consumer<Entry> consumer, int max) {
+        int drained = 0;
+        while (drained < max) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Entry entry = entries[index];
+            try {
+                consumer.accept(entry);
+            } finally {
+                entry.clear();
+                sequences.set(index, head + entries.length);
+                head++;
+                drained++;
+            }
+        }
+        return drained;
+    }
+
+    int capacity() {
+        return entries.length;
+    }
+}
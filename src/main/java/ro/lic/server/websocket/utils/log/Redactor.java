@@ -0,0 +1,44 @@
+package ro.lic.server.websocket.utils.log;
+
+import java.util.regex.Pattern;
+
+/**
+ * Masks the secrets found in log messages: json web tokens, passwords and session descriptions.
+ */
+final class Redactor {
+    static final String MASK = "<redacted>";
+
+    /**
+     * json string values of the sensitive fields of the protocol
+     */
+    private static final Pattern SENSITIVE_FIELDS = Pattern.compile(
+            "(\"(?:token|password|sdpOffer|sdpAnswer|sdp|candidate)\"\\s*:\\s*)\"(?:[^\"\\\\]|\\\\.)*\"");
+    /**
+     * header.payload.signature, each part base64url, the header always starts with {"
+     */
+    private static final Pattern JWT = Pattern.compile("eyJ[A-Za-z0-9_-]*\\.[A-Za-z0-9_-]+\\.[A-Za-z0-9_-]*");
+    /**
+     * a session description outside of json, starts with its version line
+     */
+    private static final Pattern SDP = Pattern.compile("v=0(?:\\\\r|\\r)?(?:\\\\n|\\n)o=[\\s\\S]*");
+
+    private Redactor() {
+    }
+
+    static String redact(String message) {
+        if (message == null || message.isEmpty()) {
+            return message;
+        }
+        String redacted = message;
+        if (redacted.indexOf('"') >= 0) {
+            redacted = SENSITIVE_FIELDS.matcher(redacted).replaceAll("$1\"" + MASK + "\"");
+        }
+        if (redacted.contains("eyJ")) {
+            redacted = JWT.matcher(redacted).replaceAll(MASK);
+        }
+        if (redacted.contains("v=0")) {
+            redacted = SDP.matcher(redacted).replaceAll(MASK);
+        }
+        return redacted;
+    }
+}
@@ -0,0 +1,93 @@
+package ro.lic.server.websocket.utils.map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import ro.lic.server.model.repository.MapItemRepository;
+import ro.lic.server.websocket.utils.message.OutboundFrame;
+import ro.lic.server.websocket.utils.message.WireFormat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code requestMapItems} response, built once per version of the map.
+ * <p> The map is read from the database, in one query, only when its version changed since the last read. The frame
+ * is shared by every client and its text is encoded once per wire format, see {@link OutboundFrame}.</p>
+ * <p> A client that sends the version it already has gets a short not modified frame instead.</p>
+ */
+@Component
+public class MapSnapshotCache {
+
+    @Autowired
+    private MapItemRepository mapItemRepository;
+
+    private volatile MapSnapshot snapshot;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+
+    /**
+     * Frames of one version of the map.
+     */
+    private static final class MapSnapshot {
+        private final long version;
+        private final OutboundFrame frame;
+        private final OutboundFrame notModifiedFrame;
+
+        MapSnapshot(MapItemRepository.Snapshot snapshot) {
+            this.version = snapshot.getVersion();
+            this.frame = new OutboundFrame("request", "requestMapItems")
+                    .property("version", version)
+                    .payload(snapshot.getItems());
+            this.notModifiedFrame = new OutboundFrame("request", "requestMapItems")
+                    .property("version", version)
+                    .property("notModified", true);
+            // most clients use the default format, encoded here rather than by the first of them
+            frame.encode(WireFormat.COMPACT);
+        }
+    }
+
+    /**
+     * @param knownVersion the version of the map the client has, or a negative value
+     * @return the map items frame, or a not modified frame if the client has the current version
+     */
+    public OutboundFrame getFrame(long knownVersion) {
+        MapSnapshot current = current();
+        if (knownVersion >= 0 && knownVersion == current.version) {
+            notModified.increment();
+            return current.notModifiedFrame;
+        }
+        return current.frame;
+    }
+
+    private MapSnapshot current() {
+        MapSnapshot current = snapshot;
+        if (current != null && current.version == mapItemRepository.getVersion()) {
+            hits.increment();
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            if (current == null || current.version != mapItemRepository.getVersion()) {
+                current = new MapSnapshot(mapItemRepository.getSnapshot());
+                snapshot = current;
+                rebuilds.increment();
+            }
+            return current;
+        }
+    }
+
+    //region Metrics
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getNotModified() {
+        return notModified.sum();
+    }
+
+    public long getRebuilds() {
+        return rebuilds.sum();
+    }
+    //endregion
+}
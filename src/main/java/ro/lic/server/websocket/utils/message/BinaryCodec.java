@@ -0,0 +1,163 @@
+package ro.lic.server.websocket.utils.message;
+
+import org.kurento.client.IceCandidate;
+import ro.lic.server.websocket.utils.location.LocationUpdate;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static ro.lic.server.constants.JsonConstants.*;
+
+/**
+ * Fixed layout binary encoding of the most frequent messages, used by the clients that negotiate it at handshake
+ * with the {@value #HEADER} header.
+ * <p> Every frame starts with a one byte type, numbers are big endian and strings are utf-8 prefixed by their
+ * length as an unsigned short. The sender of a client frame is the session it arrives on, so client frames carry no
+ * token.</p>
+ * <ul>
+ *     <li> <b>location</b> (client): type, lat (double), lng (double)</li>
+ *     <li> <b>mapItemLocations</b> (server): type, count (unsigned short), then count times lat (double),
+ *     lng (double), username</li>
+ *     <li> <b>iceCandidate</b> (both): type, target (byte), sdpMLineIndex (unsigned short), sdpMid, candidate</li>
+ * </ul>
+ * <p> The ice target is 0 for recording, 1 for live watching and 2 for playback. A missing sdpMid is an empty string.
+ * A user removed from the map is sent with NaN lat and lng.</p>
+ */
+public final class BinaryCodec {
+    public static final String HEADER = "binaryFraming";
+    /**
+     * Websocket session attribute, true if the client negotiated binary frames.
+     */
+    public static final String ATTRIBUTE = "binaryFraming";
+
+    public static final byte TYPE_LOCATION = 1;
+    public static final byte TYPE_ICE_CANDIDATE = 3;
+    public static final byte TYPE_MAP_ITEM_LOCATIONS = 4;
+
+    private static final byte ICE_TARGET_REC = 0;
+    private static final byte ICE_TARGET_LIVE = 1;
+    private static final byte ICE_TARGET_PLAY = 2;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Decodes a client frame into the message instance of the calling thread, like {@link MessageDecoder#decode}.
+     *
+     * @param payload      the binary frame
+     * @param sessionToken the token of the session the frame arrived on
+     * @throws IllegalArgumentException if the frame is malformed or of an unknown type
+     */
+    public static InboundMessage decode(ByteBuffer payload, String sessionToken) {
+        InboundMessage message = MessageDecoder.acquire();
+        message.setToken(sessionToken);
+        try {
+            byte type = payload.get();
+            switch (type) {
+                case TYPE_LOCATION:
+                    message.setMethod("update");
+                    message.setEvent("location");
+                    message.setLat(payload.getDouble());
+                    message.setLng(payload.getDouble());
+                    break;
+                case TYPE_ICE_CANDIDATE:
+                    message.setMethod("media");
+                    message.setEvent("iceCandidate");
+                    message.setIceFor(iceForOf(payload.get()));
+                    message.setSdpMLineIndex(Short.toUnsignedInt(payload.getShort()));
+                    String sdpMid = readString(payload);
+                    message.setSdpMid(sdpMid.isEmpty() ? null : sdpMid);
+                    message.setCandidate(readString(payload));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown binary frame type " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary frame", e);
+        }
+        return message;
+    }
+
+    public static byte[] encodeMapItemLocations(List<LocationUpdate> locations) {
+        if (locations.size() > 0xFFFF) {
+            throw new IllegalArgumentException("Too many locations for a binary frame");
+        }
+        byte[][] names = new byte[locations.size()][];
+        int size = 1 + 2;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = locations.get(i).getUsername().getBytes(StandardCharsets.UTF_8);
+            size += 8 + 8 + 2 + names[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(TYPE_MAP_ITEM_LOCATIONS)
+                .putShort((short) locations.size());
+        for (int i = 0; i < names.length; i++) {
+            LocationUpdate location = locations.get(i);
+            buffer.putDouble(location.isRemoved() ? Double.NaN : location.getLat())
+                    .putDouble(location.isRemoved() ? Double.NaN : location.getLng());
+            putBytes(buffer, names[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param sendIceFor one of the {@code SEND_ICE_FOR_*} constants
+     */
+    public static byte[] encodeIceCandidate(String sendIceFor, IceCandidate candidate) {
+        // kurento may leave the media id out, it is sent as an empty string
+        byte[] sdpMid = candidate.getSdpMid() == null ? new byte[0] : candidate.getSdpMid().getBytes(StandardCharsets.UTF_8);
+        byte[] value = candidate.getCandidate().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 1 + 2 + 2 + sdpMid.length + 2 + value.length);
+        buffer.put(TYPE_ICE_CANDIDATE)
+                .put(targetOf(sendIceFor))
+                .putShort((short) candidate.getSdpMLineIndex());
+        putBytes(buffer, sdpMid);
+        putBytes(buffer, value);
+        return buffer.array();
+    }
+
+    private static String iceForOf(byte target) {
+        switch (target) {
+            case ICE_TARGET_REC:
+                return ICE_FOR_REC;
+            case ICE_TARGET_LIVE:
+                return ICE_FOR_LIVE;
+            case ICE_TARGET_PLAY:
+                return ICE_FOR_PLAY;
+            default:
+                throw new IllegalArgumentException("Unknown ice target " + target);
+        }
+    }
+
+    private static byte targetOf(String sendIceFor) {
+        switch (sendIceFor) {
+            case SEND_ICE_FOR_REC:
+                return ICE_TARGET_REC;
+            case SEND_ICE_FOR_LIVE:
+                return ICE_TARGET_LIVE;
+            case SEND_ICE_FOR_PLAY:
+                return ICE_TARGET_PLAY;
+            default:
+                throw new IllegalArgumentException("Unknown ice target " + sendIceFor);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated binary frame");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String too long for a binary frame");
+        }
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+}
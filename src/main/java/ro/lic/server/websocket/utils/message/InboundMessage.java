@@ -0,0 +1,393 @@
+package ro.lic.server.websocket.utils.message;
+
+import ro.lic.server.model.tables.MapItem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Typed view of a message received from a client.
+ * <p> Instances are reused by the {@link MessageDecoder}, one per thread, so a handler must copy the values it needs
+ * before handing work to another thread. Fields missing from the message are {@code null} (or zero for numbers).</p>
+ */
+public class InboundMessage {
+    private String method;
+    private String event;
+    private String token;
+    private String user;
+    private String date;
+    private String path;
+    private String sdpOffer;
+
+    /**
+     * payload sent as a json string, e.g. the enrolled user
+     */
+    private String payload;
+
+    // coordinates present in the payload, a location or an area is only complete with all of them
+    private static final int LAT = 1;
+    private static final int LNG = 1 << 1;
+    private static final int NORTH = 1 << 2;
+    private static final int SOUTH = 1 << 3;
+    private static final int EAST = 1 << 4;
+    private static final int WEST = 1 << 5;
+    private static final int LOCATION = LAT | LNG;
+    private static final int BOUNDS = NORTH | SOUTH | EAST | WEST;
+    private int coordinates;
+
+    private double lat;
+    private double lng;
+
+    // area of a location query or viewport, in degrees, and radius in meters around lat, lng
+    private double north;
+    private double south;
+    private double east;
+    private double west;
+    private double radius;
+
+    private long position;
+    private int precision;
+
+    // time range of a query, in epoch milliseconds
+    private long from;
+    private long to;
+
+    // list requests
+    private String after;
+    private int limit;
+    private boolean stream;
+
+    // ice candidate
+    private String iceFor;
+    private String candidate;
+    private String sdpMid;
+    private int sdpMLineIndex;
+
+    // map items
+    private final List<MapItem> paths = new ArrayList<>();
+    private final List<MapItem> zones = new ArrayList<>();
+    private final List<MapItem> markers = new ArrayList<>();
+
+    // map changes
+    private final List<MapItem> updatedItems = new ArrayList<>();
+    private final List<Long> removedItems = new ArrayList<>();
+    private long version = -1;
+
+    void reset() {
+        method = null;
+        event = null;
+        token = null;
+        user = null;
+        date = null;
+        path = null;
+        sdpOffer = null;
+        payload = null;
+        coordinates = 0;
+        lat = 0;
+        lng = 0;
+        north = 0;
+        south = 0;
+        east = 0;
+        west = 0;
+        radius = 0;
+        position = 0;
+        precision = 0;
+        from = 0;
+        to = 0;
+        after = null;
+        limit = 0;
+        stream = false;
+        iceFor = null;
+        candidate = null;
+        sdpMid = null;
+        sdpMLineIndex = 0;
+        paths.clear();
+        zones.clear();
+        markers.clear();
+        updatedItems.clear();
+        removedItems.clear();
+        version = -1;
+    }
+
+    //region Getters and setters
+    public String getMethod() {
+        return method;
+    }
+
+    void setMethod(String method) {
+        this.method = method;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    void setEvent(String event) {
+        this.event = event;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    void setToken(String token) {
+        this.token = token;
+    }
+
+    /**
+     * @return the username the message refers to
+     */
+    public String getUser() {
+        return user;
+    }
+
+    void setUser(String user) {
+        this.user = user;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    void setDate(String date) {
+        this.date = date;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getSdpOffer() {
+        return sdpOffer;
+    }
+
+    void setSdpOffer(String sdpOffer) {
+        this.sdpOffer = sdpOffer;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    void setPayload(String payload) {
+        this.payload = payload;
+    }
+
+    /**
+     * @return true if the payload was an object with lat and lng
+     */
+    public boolean hasLocation() {
+        return (coordinates & LOCATION) == LOCATION;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    void setLat(double lat) {
+        this.lat = lat;
+        coordinates |= LAT;
+    }
+
+    public double getLng() {
+        return lng;
+    }
+
+    void setLng(double lng) {
+        this.lng = lng;
+        coordinates |= LNG;
+    }
+
+    /**
+     * @return true if the payload was an object with north, south, east and west
+     */
+    public boolean hasBounds() {
+        return (coordinates & BOUNDS) == BOUNDS;
+    }
+
+    public double getNorth() {
+        return north;
+    }
+
+    void setNorth(double north) {
+        this.north = north;
+        coordinates |= NORTH;
+    }
+
+    public double getSouth() {
+        return south;
+    }
+
+    void setSouth(double south) {
+        this.south = south;
+        coordinates |= SOUTH;
+    }
+
+    public double getEast() {
+        return east;
+    }
+
+    void setEast(double east) {
+        this.east = east;
+        coordinates |= EAST;
+    }
+
+    public double getWest() {
+        return west;
+    }
+
+    void setWest(double west) {
+        this.west = west;
+        coordinates |= WEST;
+    }
+
+    /**
+     * @return the radius in meters around lat and lng, 0 if not set
+     */
+    public double getRadius() {
+        return radius;
+    }
+
+    void setRadius(double radius) {
+        this.radius = radius;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    void setPosition(long position) {
+        this.position = position;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    void setFrom(long from) {
+        this.from = from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    void setTo(long to) {
+        this.to = to;
+    }
+
+    /**
+     * @return the cursor of the page to send, as returned with the previous page, or null for the first page
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    void setAfter(String after) {
+        this.after = after;
+    }
+
+    /**
+     * @return the maximum number of items of the page, 0 if not set
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return true if the list is to be sent as a sequence of chunks
+     */
+    public boolean isStream() {
+        return stream;
+    }
+
+    void setStream(boolean stream) {
+        this.stream = stream;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    void setPrecision(int precision) {
+        this.precision = precision;
+    }
+
+    public String getIceFor() {
+        return iceFor;
+    }
+
+    void setIceFor(String iceFor) {
+        this.iceFor = iceFor;
+    }
+
+    public String getCandidate() {
+        return candidate;
+    }
+
+    void setCandidate(String candidate) {
+        this.candidate = candidate;
+    }
+
+    public String getSdpMid() {
+        return sdpMid;
+    }
+
+    void setSdpMid(String sdpMid) {
+        this.sdpMid = sdpMid;
+    }
+
+    public int getSdpMLineIndex() {
+        return sdpMLineIndex;
+    }
+
+    void setSdpMLineIndex(int sdpMLineIndex) {
+        this.sdpMLineIndex = sdpMLineIndex;
+    }
+
+    public List<MapItem> getPaths() {
+        return paths;
+    }
+
+    public List<MapItem> getZones() {
+        return zones;
+    }
+
+    public List<MapItem> getMarkers() {
+        return markers;
+    }
+
+    /**
+     * @return the existing map items to change, with the new values of all their fields
+     */
+    public List<MapItem> getUpdatedItems() {
+        return updatedItems;
+    }
+
+    /**
+     * @return the ids of the map items to remove
+     */
+    public List<Long> getRemovedItems() {
+        return removedItems;
+    }
+
+    /**
+     * @return the version of the map the client knows, -1 if not set
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+    //endregion
+}
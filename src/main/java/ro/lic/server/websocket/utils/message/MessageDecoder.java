@@ -0,0 +1,295 @@
+package ro.lic.server.websocket.utils.message;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import ro.lic.server.model.tables.Coordinates;
+import ro.lic.server.model.tables.MapItem;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes client messages with a streaming json reader, straight into an {@link InboundMessage}.
+ * <p> No json tree is built. Payloads sent as json strings inside the message (the map items) are decoded in the
+ * same pass as the message that carries them.</p>
+ */
+public final class MessageDecoder {
+
+    private static final ThreadLocal<InboundMessage> messages = ThreadLocal.withInitial(InboundMessage::new);
+
+    private MessageDecoder() {
+    }
+
+    /**
+     * Decodes a message into the instance owned by the calling thread.
+     * The returned message is overwritten by the next call made from the same thread.
+     *
+     * @throws JsonSyntaxException if the text is not a valid message
+     */
+    public static InboundMessage decode(String text) {
+        InboundMessage message = acquire();
+        try (JsonReader reader = new JsonReader(new StringReader(text))) {
+            readMessage(reader, message);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+        return message;
+    }
+
+    /**
+     * @return the cleared message instance of the calling thread
+     */
+    static InboundMessage acquire() {
+        InboundMessage message = messages.get();
+        message.reset();
+        return message;
+    }
+
+    private static void readMessage(JsonReader reader, InboundMessage message) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "method":
+                    message.setMethod(readString(reader));
+                    break;
+                case "event":
+                    message.setEvent(readString(reader));
+                    break;
+                case "token":
+                    message.setToken(readString(reader));
+                    break;
+                case "user":
+                    message.setUser(readString(reader));
+                    break;
+                case "date":
+                    message.setDate(readString(reader));
+                    break;
+                case "path":
+                    message.setPath(readString(reader));
+                    break;
+                case "sdpOffer":
+                    message.setSdpOffer(readString(reader));
+                    break;
+                case "position":
+                    message.setPosition(reader.nextLong());
+                    break;
+                case "from":
+                    message.setFrom(reader.nextLong());
+                    break;
+                case "to":
+                    message.setTo(reader.nextLong());
+                    break;
+                case "after":
+                    message.setAfter(readString(reader));
+                    break;
+                case "limit":
+                    message.setLimit(reader.nextInt());
+                    break;
+                case "stream":
+                    message.setStream(reader.nextBoolean());
+                    break;
+                case "precision":
+                    message.setPrecision(reader.nextInt());
+                    break;
+                case "payload":
+                    readPayload(reader, message);
+                    break;
+                case "candidate":
+                    readCandidate(reader, message);
+                    break;
+                case "paths":
+                    readMapItems(reader, "PATH", message.getPaths());
+                    break;
+                case "zones":
+                    readMapItems(reader, "ZONE", message.getZones());
+                    break;
+                case "marks":
+                    readMapItems(reader, "MARKER", message.getMarkers());
+                    break;
+                case "updated":
+                    readMapItems(reader, null, message.getUpdatedItems());
+                    break;
+                case "removed":
+                    readIds(reader, message.getRemovedItems());
+                    break;
+                case "version":
+                    message.setVersion(reader.nextLong());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /**
+     * The payload is either a json string (handled by the event handler) or an object with a location, a radius
+     * around it or the bounds of an area.
+     */
+    private static void readPayload(JsonReader reader, InboundMessage message) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            message.setPayload(readString(reader));
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "lat":
+                    message.setLat(reader.nextDouble());
+                    break;
+                case "lng":
+                    message.setLng(reader.nextDouble());
+                    break;
+                case "radius":
+                    message.setRadius(reader.nextDouble());
+                    break;
+                case "north":
+                    message.setNorth(reader.nextDouble());
+                    break;
+                case "south":
+                    message.setSouth(reader.nextDouble());
+                    break;
+                case "east":
+                    message.setEast(reader.nextDouble());
+                    break;
+                case "west":
+                    message.setWest(reader.nextDouble());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readCandidate(JsonReader reader, InboundMessage message) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "iceFor":
+                    message.setIceFor(readString(reader));
+                    break;
+                case "candidate":
+                    message.setCandidate(readString(reader));
+                    break;
+                case "sdpMid":
+                    message.setSdpMid(readString(reader));
+                    break;
+                case "sdpMLineIndex":
+                    message.setSdpMLineIndex(reader.nextInt());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readIds(JsonReader reader, List<Long> into) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            into.add(reader.nextLong());
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Map items are sent either as json objects or as json strings holding the object.
+     *
+     * @param type the type of new items, or null for changes of existing items, which have an id and their own type
+     */
+    private static void readMapItems(JsonReader reader, String type, List<MapItem> into) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.STRING) {
+                try (JsonReader itemReader = new JsonReader(new StringReader(reader.nextString()))) {
+                    into.add(readMapItem(itemReader, type));
+                }
+            } else {
+                into.add(readMapItem(reader, type));
+            }
+        }
+        reader.endArray();
+    }
+
+    private static MapItem readMapItem(JsonReader reader, String type) throws IOException {
+        // the items of a list of a given type are new ones, the others are changes of existing items
+        boolean existing = type == null;
+        Long id = null;
+        String name = null;
+        String description = null;
+        int color = 0;
+        // null for a change of an existing item which keeps its coordinates
+        List<Coordinates> coordinates = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = reader.nextLong();
+                    break;
+                case "type":
+                    String itemType = readString(reader);
+                    if (type == null) {
+                        type = itemType;
+                    }
+                    break;
+                case "name":
+                    name = readString(reader);
+                    break;
+                case "description":
+                    description = readString(reader);
+                    break;
+                case "color":
+                    color = reader.nextInt();
+                    break;
+                case "coordinates":
+                    coordinates = new ArrayList<>();
+                    readCoordinates(reader, coordinates);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!existing || id == null) {
+            return new MapItem(name, description, color, type, coordinates == null ? new ArrayList<>() : coordinates);
+        }
+        return new MapItem(id, name, description, color, type, coordinates);
+    }
+
+    private static void readCoordinates(JsonReader reader, List<Coordinates> into) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            double latitude = 0;
+            double longitude = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "latitude":
+                        latitude = reader.nextDouble();
+                        break;
+                    case "longitude":
+                        longitude = reader.nextDouble();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            into.add(new Coordinates(latitude, longitude));
+        }
+        reader.endArray();
+    }
+}
@@ -0,0 +1,249 @@
+package ro.lic.server.websocket.utils.message;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Message sent by the server: method, event, a few properties and an optional payload.
+ * <p> The payload is serialized according to the {@link WireFormat} of the receiver. With
+ * {@link WireFormat#COMPACT} it is written inline, with {@link WireFormat#LEGACY} it is pretty printed and written as
+ * a json string, as the server always did. Payloads that are already json trees ({@link JsonElement}) are inline in
+ * both formats.</p>
+ * <p> The text of each format is encoded once and cached, as is the websocket message built from it, so a frame can
+ * be shared by many sessions and threads. Properties and payload must be set before the frame is first encoded, the
+ * frame is immutable afterwards.</p>
+ */
+public class OutboundFrame {
+    private static final String DATE_FORMAT = "MMM dd, yyyy, h:mm:ss a";
+    private static final Gson compactGson = new GsonBuilder().setDateFormat(DATE_FORMAT).excludeFieldsWithoutExposeAnnotation().disableHtmlEscaping().create();
+    private static final Gson legacyGson = new GsonBuilder().setDateFormat(DATE_FORMAT).setPrettyPrinting().excludeFieldsWithoutExposeAnnotation().create();
+
+    private static final int MAX_RETAINED_BUFFER = 1 << 20;
+    private static final ThreadLocal<StringBuilderWriter> buffers = ThreadLocal.withInitial(StringBuilderWriter::new);
+
+    private final String method;
+    private final String event;
+    private final Map<String, Object> properties = new LinkedHashMap<>();
+    private Object payload;
+    private boolean hasPayload = false;
+    private byte[] binary;
+    private String coalesceKey;
+
+    private volatile String compactText;
+    private volatile String legacyText;
+    private volatile TextMessage compactMessage;
+    private volatile TextMessage legacyMessage;
+
+    public OutboundFrame(String method, String event) {
+        this.method = method;
+        this.event = event;
+    }
+
+    /**
+     * Adds a property written next to method and event.
+     *
+     * @param value a string, number, boolean or json tree
+     */
+    public OutboundFrame property(String name, Object value) {
+        properties.put(name, value);
+        return this;
+    }
+
+    public OutboundFrame payload(Object payload) {
+        this.payload = payload;
+        this.hasPayload = true;
+        return this;
+    }
+
+    /**
+     * Sets the {@link BinaryCodec} encoding of the frame, sent instead of the text to the sessions that negotiated
+     * binary frames.
+     */
+    public OutboundFrame binary(byte[] binary) {
+        this.binary = binary;
+        return this;
+    }
+
+    /**
+     * Marks the frame as a state update, a newer frame with the same key replaces it in the queue of a slow client.
+     * See {@link ro.lic.server.websocket.utils.outbound.OverflowPolicy#COALESCE}.
+     */
+    public OutboundFrame coalesceKey(String coalesceKey) {
+        this.coalesceKey = coalesceKey;
+        return this;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    /**
+     * @return the binary encoding of the frame, or {@code null} if the frame is only sent as text
+     */
+    public byte[] getBinary() {
+        return binary;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    /**
+     * @return the text of the frame in the given format
+     */
+    public String encode(WireFormat format) {
+        String text = format == WireFormat.LEGACY ? legacyText : compactText;
+        if (text != null) {
+            return text;
+        }
+        synchronized (this) {
+            if (format == WireFormat.LEGACY) {
+                if (legacyText == null) {
+                    legacyText = write(WireFormat.LEGACY);
+                }
+                return legacyText;
+            }
+            if (compactText == null) {
+                compactText = write(WireFormat.COMPACT);
+            }
+            return compactText;
+        }
+    }
+
+    /**
+     * @param binaryFraming true if the receiver negotiated binary frames
+     * @return the websocket message for a receiver, text messages are the same instance for every receiver with the
+     * same format
+     */
+    public WebSocketMessage<?> toMessage(WireFormat format, boolean binaryFraming) {
+        if (binaryFraming && binary != null) {
+            // the container consumes the byte buffer of a binary message, only the bytes are shared
+            return new BinaryMessage(binary);
+        }
+        TextMessage message = format == WireFormat.LEGACY ? legacyMessage : compactMessage;
+        if (message == null) {
+            message = new TextMessage(encode(format));
+            if (format == WireFormat.LEGACY) {
+                legacyMessage = message;
+            } else {
+                compactMessage = message;
+            }
+        }
+        return message;
+    }
+
+    private String write(WireFormat format) {
+        StringBuilderWriter buffer = buffers.get();
+        try {
+            JsonWriter writer = compactGson.newJsonWriter(buffer);
+            writer.beginObject();
+            writer.name("method").value(method);
+            writer.name("event").value(event);
+            for (Map.Entry<String, Object> property : properties.entrySet()) {
+                writer.name(property.getKey());
+                writeValue(writer, property.getValue());
+            }
+            if (hasPayload) {
+                writer.name("payload");
+                writePayload(writer, format);
+            }
+            writer.endObject();
+            writer.flush();
+            return buffer.toString();
+        } catch (IOException e) {
+            // the buffer does not do I/O
+            throw new IllegalStateException(e);
+        } finally {
+            buffer.reset();
+        }
+    }
+
+    private void writePayload(JsonWriter writer, WireFormat format) throws IOException {
+        if (payload == null) {
+            writer.nullValue();
+        } else if (payload instanceof JsonElement) {
+            compactGson.toJson((JsonElement) payload, writer);
+        } else if (format == WireFormat.LEGACY) {
+            writer.value(legacyGson.toJson(payload));
+        } else {
+            compactGson.toJson(payload, payload.getClass(), writer);
+        }
+    }
+
+    private static void writeValue(JsonWriter writer, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof JsonElement) {
+            compactGson.toJson((JsonElement) value, writer);
+        } else {
+            writer.value(value.toString());
+        }
+    }
+
+    /**
+     * Writer over a {@link StringBuilder} that is kept between frames encoded by the same thread.
+     */
+    private static final class StringBuilderWriter extends Writer {
+        private StringBuilder builder = new StringBuilder(1024);
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            builder.append(chars, offset, length);
+        }
+
+        @Override
+        public void write(int c) {
+            builder.append((char) c);
+        }
+
+        @Override
+        public void write(String str, int offset, int length) {
+            builder.append(str, offset, offset + length);
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            builder.append(csq);
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void reset() {
+            if (builder.capacity() > MAX_RETAINED_BUFFER) {
+                builder = new StringBuilder(1024);
+            } else {
+                builder.setLength(0);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ro.lic.server.websocket.utils.message;
+
+/**
+ * Encoding of the payloads the server sends, negotiated by the client at handshake with the
+ * {@value #HEADER} header.
+ */
+public enum WireFormat {
+    /**
+     * Payloads are written inline, as nested json values, without pretty printing.
+     */
+    COMPACT,
+    /**
+     * Payloads are pretty printed and sent as json strings inside the message.
+     * Kept for the clients that still parse the payload a second time.
+     */
+    LEGACY;
+
+    public static final String HEADER = "wireFormat";
+    /**
+     * Websocket session attribute holding the negotiated format.
+     */
+    public static final String ATTRIBUTE = "wireFormat";
+
+    /**
+     * @param header value of the handshake header, may be null
+     * @return the requested format, {@link #COMPACT} if the header is missing or unknown
+     */
+    public static WireFormat fromHeader(String header) {
+        if (header != null && header.trim().equalsIgnoreCase(LEGACY.name())) {
+            return LEGACY;
+        }
+        return COMPACT;
+    }
+}
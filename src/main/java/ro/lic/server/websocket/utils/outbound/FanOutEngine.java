@@ -0,0 +1,129 @@
+package ro.lic.server.websocket.utils.outbound;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.message.OutboundFrame;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broadcasts a frame to many sessions without blocking the caller.
+ * <p> The frame is encoded once per wire format and the same message is handed to the outbound queue of every
+ * receiver. Receivers are split over a fixed number of lanes, each lane is a single thread, so broadcasts are spread
+ * over the cores while a receiver always gets the frames in the order they were broadcast.</p>
+ * <p> The fan-out latency, from the broadcast call until the frame is queued for the last receiver, is recorded in a
+ * {@link LatencyHistogram}.</p>
+ */
+@Component
+public class FanOutEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(FanOutEngine.class);
+
+    private final ExecutorService[] lanes;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+
+    public FanOutEngine(@Value("${fanout.lanes:0}") int lanes) {
+        int count = lanes > 0 ? lanes : Runtime.getRuntime().availableProcessors();
+        this.lanes = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            String name = "fanout-" + (i + 1);
+            this.lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Queues the frame for every receiver and returns right away.
+     *
+     * @param receivers is read on the calling thread, it can be modified once the call returns
+     */
+    public void broadcast(OutboundFrame frame, Collection<UserSession> receivers) {
+        if (receivers.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        broadcasts.increment();
+
+        List<List<UserSession>> byLane = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            byLane.add(null);
+        }
+        int used = 0;
+        for (UserSession receiver : receivers) {
+            int lane = laneOf(receiver);
+            List<UserSession> sessions = byLane.get(lane);
+            if (sessions == null) {
+                byLane.set(lane, sessions = new ArrayList<>());
+                used++;
+            }
+            sessions.add(receiver);
+        }
+
+        AtomicInteger remaining = new AtomicInteger(used);
+        for (int i = 0; i < lanes.length; i++) {
+            List<UserSession> sessions = byLane.get(i);
+            if (sessions == null) {
+                continue;
+            }
+            lanes[i].execute(() -> {
+                for (UserSession session : sessions) {
+                    try {
+                        session.sendMessage(frame);
+                    } catch (RuntimeException e) {
+                        log.warn("Failed to queue {}/{} for user '{}'", frame.getMethod(), frame.getEvent(), session.getUsername(), e);
+                    }
+                }
+                deliveries.add(sessions.size());
+                if (remaining.decrementAndGet() == 0) {
+                    latency.record(System.nanoTime() - start);
+                }
+            });
+        }
+    }
+
+    private int laneOf(UserSession session) {
+        return Math.floorMod(session.getSessionId().hashCode(), lanes.length);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    //region Metrics
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    public long getFanOutLatency(double percentile, TimeUnit unit) {
+        return latency.getPercentile(percentile, unit);
+    }
+    //endregion
+}
@@ -0,0 +1,169 @@
+package ro.lic.server.websocket.utils.outbound;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, recorded in nanoseconds.
+ * <p> Buckets are logarithmic with 8 linear sub buckets per power of two, so a percentile is reported with less than
+ * 12.5% error, from nanoseconds up to about 18 minutes. Recording is a couple of atomic increments and can be done
+ * from any thread.</p>
+ * <p> The histogram covers every duration recorded since it was created, a {@link Window} gives the percentiles of
+ * the durations recorded between two of its rolls.</p>
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        count.incrementAndGet();
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return unit.convert(Math.min(upperBoundOf(i), max.get()), TimeUnit.NANOSECONDS);
+            }
+        }
+        return getMax(unit);
+    }
+
+    /**
+     * @return a window over the durations recorded from now on, empty until its first roll
+     */
+    public Window newWindow() {
+        return new Window(this);
+    }
+
+    /**
+     * The durations recorded in the last period of a histogram, the period ends when the window is rolled.
+     * <p> A window copies the counts of the histogram on each roll and keeps the difference with the previous copy,
+     * recording is not slowed down. It is rolled by one thread and may be read by any.</p>
+     */
+    public static final class Window {
+        private final LatencyHistogram histogram;
+        private final long[] previous = new long[BUCKETS];
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+
+        private Window(LatencyHistogram histogram) {
+            this.histogram = histogram;
+            for (int i = 0; i < BUCKETS; i++) {
+                previous[i] = histogram.counts.get(i);
+            }
+        }
+
+        /**
+         * Ends the period, the window then holds the durations recorded since the previous roll.
+         */
+        public synchronized void roll() {
+            count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long current = histogram.counts.get(i);
+                counts[i] = current - previous[i];
+                previous[i] = current;
+                count += counts[i];
+            }
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the upper bound of the bucket of the longest duration of the period, 0 if there was none
+         */
+        public synchronized long getMax(TimeUnit unit) {
+            for (int i = BUCKETS - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return unit.convert(Math.min(upperBoundOf(i), histogram.max.get()), TimeUnit.NANOSECONDS);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket holding the percentile, 0 if nothing was recorded in the period
+         */
+        public synchronized long getPercentile(double percentile, TimeUnit unit) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return unit.convert(Math.min(upperBoundOf(i), histogram.max.get()), TimeUnit.NANOSECONDS);
+                }
+            }
+            return getMax(unit);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d p50=%dus p99=%dus p999=%dus max=%dus", getCount(),
+                getPercentile(50, TimeUnit.MICROSECONDS), getPercentile(99, TimeUnit.MICROSECONDS),
+                getPercentile(99.9, TimeUnit.MICROSECONDS), getMax(TimeUnit.MICROSECONDS));
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        if (exponent == MAX_EXPONENT && value >>> MAX_EXPONENT > 1) {
+            // out of range, counted in the last bucket
+            subBucket = SUB_BUCKETS - 1;
+        }
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,121 @@
+package ro.lic.server.websocket.utils.outbound;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import javax.annotation.PreDestroy;
+import javax.websocket.Session;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Creates the {@link SessionOutboundQueue} of each session and runs their writers on a shared pool.
+ * <p> The writers block on the network, so the pool is sized for the number of slow clients tolerated at the same
+ * time, not for the cpu count. A write blocked longer than {@code outbound.send-timeout-ms} fails, so a stalled
+ * client gives its writer back and is disconnected.</p>
+ */
+@Component
+public class OutboundDispatcher {
+    /**
+     * User property of a Tomcat websocket session bounding its blocking writes, in milliseconds
+     */
+    private static final String BLOCKING_SEND_TIMEOUT = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+    private final ExecutorService executor;
+    private final int maxDepth;
+    private final OverflowPolicy overflowPolicy;
+    private final long sendTimeoutMillis;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+
+    public OutboundDispatcher(@Value("${outbound.writer-threads:8}") int writerThreads,
+                              @Value("${outbound.max-depth:256}") int maxDepth,
+                              @Value("${outbound.overflow-policy:COALESCE}") OverflowPolicy overflowPolicy,
+                              @Value("${outbound.send-timeout-ms:5000}") long sendTimeoutMillis) {
+        this.maxDepth = maxDepth;
+        this.overflowPolicy = overflowPolicy;
+        this.sendTimeoutMillis = sendTimeoutMillis;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(writerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "ws-writer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public SessionOutboundQueue newQueue(WebSocketSession session) {
+        if (session instanceof NativeWebSocketSession) {
+            Session nativeSession = ((NativeWebSocketSession) session).getNativeSession(Session.class);
+            if (nativeSession != null) {
+                nativeSession.getUserProperties().put(BLOCKING_SEND_TIMEOUT, sendTimeoutMillis);
+            }
+        }
+        return new SessionOutboundQueue(session, this, maxDepth, overflowPolicy);
+    }
+
+    void execute(Runnable writer) {
+        executor.execute(writer);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    //region Metrics
+    /**
+     * @param latencyNanos time from queuing the message to the end of its write
+     */
+    void onSent(long latencyNanos) {
+        sent.increment();
+        sendLatency.record(latencyNanos);
+    }
+
+    void onDropped() {
+        dropped.increment();
+    }
+
+    void onCoalesced() {
+        coalesced.increment();
+    }
+
+    void onDisconnected() {
+        disconnected.increment();
+    }
+
+    /**
+     * @return the time messages spend in the queues of the sessions until written, since the start of the server
+     */
+    public LatencyHistogram getSendLatency() {
+        return sendLatency;
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return sessions closed because their queue overflowed
+     */
+    public long getDisconnected() {
+        return disconnected.sum();
+    }
+    //endregion
+}
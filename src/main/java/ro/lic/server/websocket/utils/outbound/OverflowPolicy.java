@@ -0,0 +1,22 @@
+package ro.lic.server.websocket.utils.outbound;
+
+/**
+ * What a {@link SessionOutboundQueue} does when a client does not read its messages fast enough.
+ * <p> Only messages with a coalesce key are ever discarded, when the others alone fill the queue the client is
+ * disconnected whatever the policy.</p>
+ */
+public enum OverflowPolicy {
+    /**
+     * The oldest pending messages with a coalesce key are discarded to make room for the new ones.
+     */
+    DROP_OLDEST,
+    /**
+     * A message with a coalesce key replaces the pending message with the same key, so a slow client only gets the
+     * latest state. If the queue is still full the oldest pending messages with a key are discarded.
+     */
+    COALESCE,
+    /**
+     * The client is disconnected, it will reconnect and request a fresh state.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,203 @@
+package ro.lic.server.websocket.utils.outbound;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ro.lic.server.model.repository.KeysetPage;
+import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.message.OutboundFrame;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends large lists as a sequence of chunk frames.
+ * <p> Each chunk is a page read with keyset pagination, so the server holds one chunk per list being sent, whatever
+ * the size of the list. The next page is only read once the client's outbound queue went down to
+ * {@code stream.max-pending-chunks} messages: a slow client slows down its own reads instead of filling the queue,
+ * where the {@link OverflowPolicy} would drop chunks. A list is abandoned when the client does not make progress
+ * for {@code stream.stall-timeout-ms} or disconnects.</p>
+ * <p> Lists are sent by a small pool, {@code stream.threads}, so a few clients reading a year of logs do not hold the
+ * threads of the websocket container. A list waiting for its client is rescheduled instead of holding a thread, so
+ * the pool sends the other lists meanwhile. At most {@code stream.threads + stream.queue-capacity} lists are sent at
+ * the same time, further requests are refused as busy.</p>
+ */
+@Component
+public class ResultStreamer {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultStreamer.class);
+
+    /**
+     * delay before checking again the queue of a client which has too many chunks waiting
+     */
+    private static final long RETRY_MILLIS = 5;
+
+    /**
+     * Reads a page of a list.
+     */
+    @FunctionalInterface
+    public interface PageSource<T> {
+        /**
+         * @param after the cursor of the previous page, null for the first page
+         */
+        KeysetPage<T> page(String after, int limit);
+    }
+
+    private final ScheduledExecutorService executor;
+    private final int maxStreams;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final int chunkSize;
+    private final int maxPendingChunks;
+    private final long stallTimeoutMillis;
+
+    private final LongAdder streams = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+
+    public ResultStreamer(@Value("${stream.threads:2}") int threads,
+                          @Value("${stream.queue-capacity:32}") int queueCapacity,
+                          @Value("${stream.chunk-size:200}") int chunkSize,
+                          @Value("${stream.max-pending-chunks:2}") int maxPendingChunks,
+                          @Value("${stream.stall-timeout-ms:30000}") long stallTimeoutMillis) {
+        this.chunkSize = chunkSize;
+        this.maxPendingChunks = maxPendingChunks;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+        this.maxStreams = threads + queueCapacity;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "stream-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends a list to a session as frames with the given method and event, a {@code chunk} number, a {@code last}
+     * flag and the items of the chunk as payload. If too many lists are being sent, a single frame with
+     * {@code error: "busy"} is sent instead.
+     */
+    public <T> void stream(UserSession session, String method, String event, PageSource<T> source) {
+        if (activeStreams.incrementAndGet() > maxStreams) {
+            activeStreams.decrementAndGet();
+            rejected.increment();
+            session.sendMessage(new OutboundFrame(method, event).property("error", "busy"));
+            return;
+        }
+        streams.increment();
+        new Stream<>(session, method, event, source).next();
+    }
+
+    /**
+     * A list being sent, each step sends at most one chunk and schedules the next one.
+     */
+    private final class Stream<T> {
+        private final UserSession session;
+        private final String method;
+        private final String event;
+        private final PageSource<T> source;
+
+        private KeysetPage<T> page;
+        private String cursor;
+        private int chunk;
+        /**
+         * the list is abandoned if the client has not read its chunks by then
+         */
+        private long deadline;
+
+        private Stream(UserSession session, String method, String event, PageSource<T> source) {
+            this.session = session;
+            this.method = method;
+            this.event = event;
+            this.source = source;
+            this.deadline = System.currentTimeMillis() + stallTimeoutMillis;
+        }
+
+        private void next() {
+            schedule(0);
+        }
+
+        private void schedule(long delayMillis) {
+            try {
+                executor.schedule(this::step, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                activeStreams.decrementAndGet();
+            }
+        }
+
+        private void step() {
+            try {
+                if (!session.isOpen() || System.currentTimeMillis() > deadline) {
+                    abandoned.increment();
+                    activeStreams.decrementAndGet();
+                    log.debug("Abandoned {}/{} for user '{}' after {} chunks", method, event, session.getUsername(), chunk);
+                    return;
+                }
+                if (page == null) {
+                    page = source.page(cursor, chunkSize);
+                }
+                if (session.getOutboundDepth() > maxPendingChunks) {
+                    // the thread sends the other lists meanwhile
+                    schedule(RETRY_MILLIS);
+                    return;
+                }
+
+                cursor = page.getNext();
+                session.sendMessage(new OutboundFrame(method, event)
+                        .property("chunk", chunk++)
+                        .property("last", cursor == null)
+                        .payload(page.getItems()));
+                chunks.increment();
+                page = null;
+                deadline = System.currentTimeMillis() + stallTimeoutMillis;
+            } catch (RuntimeException e) {
+                abandoned.increment();
+                activeStreams.decrementAndGet();
+                log.warn("Could not send {}/{} to user '{}'", method, event, session.getUsername(), e);
+                session.sendMessage(new OutboundFrame(method, event).property("error", "failed"));
+                return;
+            }
+
+            if (cursor == null) {
+                activeStreams.decrementAndGet();
+            } else {
+                next();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    //region Metrics
+    public long getStreams() {
+        return streams.sum();
+    }
+
+    public long getChunks() {
+        return chunks.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getAbandoned() {
+        return abandoned.sum();
+    }
+
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+    //endregion
+}
@@ -0,0 +1,256 @@
+package ro.lic.server.websocket.utils.outbound;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Messages waiting to be sent to one websocket session.
+ * <p> Any thread can offer a message without blocking. A single writer, scheduled on the executor of the
+ * {@link OutboundDispatcher} only while there is something to send, writes them to the session in order, so a slow
+ * client only delays its own messages.</p>
+ * <p> The queue is bounded, see {@link OverflowPolicy} for what happens when it is full. Only messages with a
+ * coalesce key, which carry a state the client gets again with the next one, are ever dropped. Signalling messages
+ * (the token, sdp answers, ice candidates, ...) are not; when they alone fill the queue the session is closed.</p>
+ * <p> The session is only written and closed by the writer, a write blocked longer than the send timeout of the
+ * dispatcher fails and closes the session.</p>
+ */
+public class SessionOutboundQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionOutboundQueue.class);
+
+    /**
+     * messages sent by a writer before it gives the thread to the other sessions
+     */
+    private static final int MAX_BATCH = 64;
+
+    private final WebSocketSession session;
+    private final OutboundDispatcher dispatcher;
+    private final int maxDepth;
+    private final OverflowPolicy overflowPolicy;
+
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * messages not yet taken from the queue, by the writer or by an overflow, and close requests
+     */
+    private final AtomicInteger depth = new AtomicInteger();
+    private final ConcurrentHashMap<String, Pending> pendingByKey = new ConcurrentHashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    SessionOutboundQueue(WebSocketSession session, OutboundDispatcher dispatcher, int maxDepth, OverflowPolicy overflowPolicy) {
+        this.session = session;
+        this.dispatcher = dispatcher;
+        this.maxDepth = maxDepth;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Queues a message for the session.
+     *
+     * @param coalesceKey identifies the state carried by the message, e.g. the location of an user, a newer message
+     *                    with the same key makes the pending one useless. Can be null.
+     * @return false if the session is closed or closing and the message was discarded
+     */
+    public boolean offer(WebSocketMessage<?> message, String coalesceKey) {
+        if (closed) {
+            return false;
+        }
+
+        if (coalesceKey != null && overflowPolicy == OverflowPolicy.COALESCE) {
+            Pending previous = pendingByKey.get(coalesceKey);
+            if (previous != null && previous.replace(message)) {
+                dispatcher.onCoalesced();
+                return true;
+            }
+            Pending pending = new Pending(message, coalesceKey);
+            pendingByKey.put(coalesceKey, pending);
+            enqueue(pending);
+        } else {
+            // the key still marks the message as one that may be dropped
+            enqueue(new Pending(message, coalesceKey));
+        }
+        return true;
+    }
+
+    /**
+     * Closes the session after the messages queued before are sent.
+     */
+    public void close(CloseStatus status) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        enqueue(Pending.close(status));
+    }
+
+    /**
+     * @return the number of messages waiting to be sent
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    private void enqueue(Pending pending) {
+        queue.add(pending);
+        if (depth.incrementAndGet() > maxDepth) {
+            overflow();
+        }
+        schedule();
+    }
+
+    private void overflow() {
+        if (overflowPolicy != OverflowPolicy.DISCONNECT) {
+            // drop the oldest state messages, the writer may take any of them meanwhile
+            for (Iterator<Pending> pending = queue.iterator(); pending.hasNext() && depth.get() > maxDepth; ) {
+                Pending dropped = pending.next();
+                if (dropped.key != null && dropped.take() != null) {
+                    pending.remove();
+                    depth.decrementAndGet();
+                    pendingByKey.remove(dropped.key, dropped);
+                    dispatcher.onDropped();
+                }
+            }
+            if (depth.get() <= maxDepth) {
+                return;
+            }
+        }
+
+        if (!closed) {
+            log.warn("Session {} cannot keep up with {} pending messages, disconnecting", session.getId(), depth.get());
+            dispatcher.onDisconnected();
+            discard();
+            // the writer closes the session, it may be writing to it now
+            queue.add(Pending.close(CloseStatus.SESSION_NOT_RELIABLE));
+            depth.incrementAndGet();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            dispatcher.execute(this::drain);
+        }
+    }
+
+    /**
+     * Runs on one thread at a time, guarded by {@link #scheduled}.
+     */
+    private void drain() {
+        int sent = 0;
+        while (true) {
+            if (sent == MAX_BATCH) {
+                // let the other sessions use the thread, the queue is still scheduled
+                dispatcher.execute(this::drain);
+                return;
+            }
+
+            Pending pending = queue.poll();
+            if (pending == null) {
+                scheduled.set(false);
+                // a message offered after the poll and before the flag was cleared would be left behind
+                if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+
+            if (pending.closeStatus != null) {
+                depth.decrementAndGet();
+                closeNow(pending.closeStatus);
+                continue;
+            }
+            if (pending.key != null) {
+                pendingByKey.remove(pending.key, pending);
+            }
+            WebSocketMessage<?> message = pending.take();
+            if (message == null) {
+                // dropped by an overflow, which counted it
+                continue;
+            }
+            depth.decrementAndGet();
+
+            if (!session.isOpen()) {
+                discard();
+                continue;
+            }
+            try {
+                session.sendMessage(message);
+                dispatcher.onSent(System.nanoTime() - pending.queuedAt);
+                sent++;
+            } catch (IOException | IllegalStateException e) {
+                log.debug("Failed to send message to session {}: {}", session.getId(), e.getMessage());
+                discard();
+            }
+        }
+    }
+
+    private void discard() {
+        closed = true;
+        pendingByKey.clear();
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            if (pending.closeStatus != null || pending.take() != null) {
+                depth.decrementAndGet();
+            }
+        }
+    }
+
+    private void closeNow(CloseStatus status) {
+        try {
+            if (session.isOpen()) {
+                session.close(status);
+            }
+        } catch (IOException e) {
+            log.debug("Failed to close session {}: {}", session.getId(), e.getMessage());
+        }
+    }
+
+    private static final class Pending {
+        private final AtomicReference<WebSocketMessage<?>> message;
+        private final String key;
+        private final CloseStatus closeStatus;
+        /**
+         * when the first message of the entry was queued, a coalesced message keeps the time of the one it replaced
+         */
+        private final long queuedAt = System.nanoTime();
+
+        private Pending(WebSocketMessage<?> message, String key) {
+            this.message = new AtomicReference<>(message);
+            this.key = key;
+            this.closeStatus = null;
+        }
+
+        private Pending(CloseStatus closeStatus) {
+            this.message = new AtomicReference<>();
+            this.key = null;
+            this.closeStatus = closeStatus;
+        }
+
+        private static Pending close(CloseStatus status) {
+            return new Pending(status);
+        }
+
+        /**
+         * @return false if the writer already took the message
+         */
+        private boolean replace(WebSocketMessage<?> newer) {
+            WebSocketMessage<?> current = message.get();
+            return current != null && message.compareAndSet(current, newer);
+        }
+
+        private WebSocketMessage<?> take() {
+            return message.getAndSet(null);
+        }
+    }
+}
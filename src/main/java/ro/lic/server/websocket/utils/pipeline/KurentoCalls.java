@@ -0,0 +1,61 @@
+package ro.lic.server.websocket.utils.pipeline;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.ListenerSubscription;
+import ro.lic.server.metrics.KurentoMetrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Adapts the asynchronous calls of the Kurento client, made with a {@link Continuation}, to {@link CompletableFuture},
+ * so the steps of a media pipeline can be composed.
+ * <p> The futures complete on the threads of the Kurento client. The stages composed on them must only make other
+ * asynchronous calls, a blocking call there waits for an answer the same threads have to deliver.</p>
+ */
+final class KurentoCalls {
+
+    private KurentoCalls() {
+    }
+
+    /**
+     * Makes an asynchronous call to the media server, timed by {@link KurentoMetrics}.
+     *
+     * @param call makes the call with the given continuation, e.g. {@code endpoint::gatherCandidates}
+     * @return completes with the answer of the media server
+     */
+    static <T> CompletableFuture<T> call(String operation, Consumer<Continuation<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            call.accept(KurentoMetrics.timed(operation, new Continuation<T>() {
+                @Override
+                public void onSuccess(T answer) {
+                    result.complete(answer);
+                }
+
+                @Override
+                public void onError(Throwable cause) {
+                    result.completeExceptionally(cause);
+                }
+            }));
+        } catch (RuntimeException e) {
+            // the client fails right away when it is not connected
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Invokes an operation without an answer, e.g. {@code connect}.
+     */
+    static CompletableFuture<Void> invoke(String operation, Consumer<Continuation<Void>> call) {
+        return call(operation, call);
+    }
+
+    /**
+     * Subscribes a listener to the events of a media object.
+     */
+    static CompletableFuture<ListenerSubscription> subscribe(String operation, Consumer<Continuation<ListenerSubscription>> call) {
+        return call(operation, call);
+    }
+}
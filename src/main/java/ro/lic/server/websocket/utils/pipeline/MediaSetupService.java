@@ -0,0 +1,180 @@
+package ro.lic.server.websocket.utils.pipeline;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Limits the media pipelines being set up on the media server at the same time.
+ * <p> A setup is an asynchronous flow of calls to the media server, see {@link RecordMediaPipeline#start}. At most
+ * {@code media.setup.max-concurrent} run together, the others wait in a bounded queue. When the queue is full the
+ * setup is rejected with a {@link RejectedExecutionException}, when it is not done within
+ * {@code media.setup.timeout-ms} from its submission it fails with a {@link TimeoutException}; the caller releases the
+ * pipeline in both cases. A setup which timed out no longer counts against the limit.</p>
+ * <p> The returned futures complete on the media threads of the service, not on those of the Kurento client, so
+ * the stages composed on them may block, e.g. on the database.</p>
+ */
+@Component
+public class MediaSetupService {
+
+    private final int maxConcurrent;
+    private final long timeoutMillis;
+    private final Semaphore permits;
+    private final BlockingQueue<PendingSetup<?>> waiting;
+    private final ExecutorService executor;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder setupNanos = new LongAdder();
+    private final LongAdder setups = new LongAdder();
+
+    public MediaSetupService(@Value("${media.setup.max-concurrent:16}") int maxConcurrent,
+                             @Value("${media.setup.queue-capacity:64}") int queueCapacity,
+                             @Value("${media.setup.timeout-ms:10000}") long timeoutMillis,
+                             @Value("${media.executor.threads:4}") int threads) {
+        this.maxConcurrent = maxConcurrent;
+        this.timeoutMillis = timeoutMillis;
+        permits = new Semaphore(maxConcurrent);
+        waiting = new ArrayBlockingQueue<>(queueCapacity);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "media-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs a setup once fewer than {@code media.setup.max-concurrent} are running.
+     *
+     * @param what  names the setup in the errors
+     * @param setup starts the setup, it must not block
+     * @return completes on a media thread with the result of the setup, or fails with a {@link TimeoutException} or
+     * a {@link RejectedExecutionException}
+     */
+    public <T> CompletableFuture<T> submit(String what, Supplier<CompletableFuture<T>> setup) {
+        requests.increment();
+        PendingSetup<T> pending = new PendingSetup<>(setup);
+        if (!waiting.offer(pending)) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Too many media setups waiting, rejected " + what));
+        }
+
+        // the timer runs the timeout on a media thread, so the stages of the caller do too
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS, executor).execute(() -> {
+            if (pending.result.completeExceptionally(new TimeoutException(String.format("Setup of %s timed out", what)))) {
+                timeouts.increment();
+            }
+        });
+
+        drain();
+        return pending.result;
+    }
+
+    /**
+     * Starts the waiting setups while there are permits.
+     */
+    private void drain() {
+        while (!waiting.isEmpty() && permits.tryAcquire()) {
+            PendingSetup<?> next = waiting.poll();
+            if (next == null || next.result.isDone()) {
+                // taken by another thread, or timed out while waiting
+                permits.release();
+                continue;
+            }
+            start(next);
+        }
+    }
+
+    private <T> void start(PendingSetup<T> pending) {
+        pending.result.whenComplete((result, error) -> {
+            permits.release();
+            drain();
+        });
+
+        long start = System.nanoTime();
+        CompletableFuture<T> running;
+        try {
+            running = pending.setup.get();
+        } catch (RuntimeException e) {
+            running = CompletableFuture.failedFuture(e);
+        }
+        running.whenComplete((result, error) -> {
+            setups.increment();
+            setupNanos.add(System.nanoTime() - start);
+            try {
+                executor.execute(() -> complete(pending, result, error));
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                pending.result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private <T> void complete(PendingSetup<T> pending, T result, Throwable error) {
+        if (error == null) {
+            pending.result.complete(result);
+        } else if (pending.result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error)) {
+            failures.increment();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    //region Metrics
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return setups rejected because the queue was full
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public int getQueueDepth() {
+        return waiting.size();
+    }
+
+    public int getActiveSetups() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    public long getSetups() {
+        return setups.sum();
+    }
+
+    public long getTotalSetupTime(TimeUnit unit) {
+        return unit.convert(setupNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+    //endregion
+
+    private static final class PendingSetup<T> {
+        private final Supplier<CompletableFuture<T>> setup;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private PendingSetup(Supplier<CompletableFuture<T>> setup) {
+            this.setup = setup;
+        }
+    }
+}
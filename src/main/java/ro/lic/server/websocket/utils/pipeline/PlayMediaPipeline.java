@@ -19,118 +19,171 @@ package ro.lic.server.websocket.utils.pipeline;
 
 import com.google.gson.JsonObject;
 import org.kurento.client.*;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
-import org.springframework.web.socket.WebSocketSession;
+import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.log.EventLog;
 
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ro.lic.server.websocket.utils.pipeline.KurentoCalls.invoke;
+import static ro.lic.server.websocket.utils.pipeline.KurentoCalls.subscribe;
 
 
 /**
  * Media Pipeline (connection of Media Elements) for playing the recorded one to one video
  * communication.
+ * <p> Nothing is created on the media server until {@link #start}, which makes its calls asynchronously. Ice
+ * candidates received before the endpoint is ready wait for it.</p>
  *
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @since 6.1.1
  */
 public class PlayMediaPipeline {
 
-    private static final Logger log = LoggerFactory.getLogger(PlayMediaPipeline.class);
-    private boolean isStreamEnded = false;
-
-    private final MediaPipeline pipeline;
-    private WebRtcEndpoint webRtc;
-    private final PlayerEndpoint player;
-
-    public PlayMediaPipeline(KurentoClient kurento, final String path, final WebSocketSession session) {
-        // Media pipeline
-        pipeline = kurento.createMediaPipeline();
-
-        // Media Elements (WebRtcEndpoint, PlayerEndpoint)
-        webRtc = new WebRtcEndpoint.Builder(pipeline).build();
-        webRtc.setMaxVideoRecvBandwidth(3000, new Continuation<Void>() {
-            @Override
-            public void onSuccess(Void aVoid) throws Exception {
-                System.out.println("Set max video recv band");
-            }
-
-            @Override
-            public void onError(Throwable throwable) throws Exception {
-                System.out.println("Failed to set max video recv band");
-            }
-        }); // unit kbps (set it to 2.5 mbs)
-        webRtc.setMaxVideoSendBandwidth(3000, new Continuation<Void>() {
-            @Override
-            public void onSuccess(Void aVoid) throws Exception {
-                System.out.println("Set max video recv band");
-            }
-
-            @Override
-            public void onError(Throwable throwable) throws Exception {
-                System.out.println("Failed to set max video recv band");
-            }
-        });
-
-        webRtc.setMaxOutputBitrate(3000);
-        webRtc.setMinOutputBitrate(3000);
-
-        //player = new PlayerEndpoint.Builder(pipeline, RECORDING_PATH + user + RECORDING_EXT).build();
-        player = new PlayerEndpoint.Builder(pipeline, path).build();
-
-        // Connection
-        player.connect(webRtc);
+    private static final EventLog log = EventLog.get(PlayMediaPipeline.class);
+    private volatile boolean isStreamEnded = false;
+
+    private final String path;
+    private final CompletableFuture<MediaPipeline> pipeline = new CompletableFuture<>();
+    /**
+     * completes once the offer is answered
+     */
+    private final CompletableFuture<WebRtcEndpoint> webRtc = new CompletableFuture<>();
+    private volatile PlayerEndpoint player;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Receives the events of the playback, on the threads of the Kurento client.
+     */
+    public interface Listener {
+        void onIceCandidate(IceCandidate candidate);
+
+        void onVideoInfo(VideoInfo videoInfo);
+
+        void onError(String description);
+
+        void onEndOfStream();
     }
 
-    public void sendPlayEnd(WebSocketSession session) {
-        try {
-            isStreamEnded = true;
-            JsonObject response = new JsonObject();
-            response.addProperty("method", "media");
-            response.addProperty("event", "playbackEnd");
-
-            synchronized (session) {
-                session.sendMessage(new TextMessage(response.toString()));
-            }
-        } catch (IOException e) {
-            log.error("Error sending playEndOfStream message", e);
-        }
+    public PlayMediaPipeline(final String path) {
+        this.path = path;
+    }
 
-        // Release pipeline
-        pipeline.release();
-        this.webRtc = null;
+    /**
+     * Creates the media logic of the playback, answers the offer and starts playing, without blocking the caller.
+     * <p> If a step fails the pipeline is released.</p>
+     *
+     * @return completes with the sdp answer
+     */
+    public CompletableFuture<String> start(KurentoClient kurento, String sdpOffer, Listener listener) {
+        return KurentoCalls.<MediaPipeline>call("createMediaPipeline", kurento::createMediaPipeline)
+                .thenCompose(mediaPipeline -> {
+                    pipeline.complete(mediaPipeline);
+
+                    // Media Elements (WebRtcEndpoint, PlayerEndpoint)
+                    CompletableFuture<WebRtcEndpoint> webRtcEndpoint = KurentoCalls.<WebRtcEndpoint>call("createWebRtcEndpoint",
+                            new WebRtcEndpoint.Builder(mediaPipeline)::buildAsync);
+                    CompletableFuture<PlayerEndpoint> playerEndpoint = KurentoCalls.<PlayerEndpoint>call("createPlayerEndpoint",
+                            new PlayerEndpoint.Builder(mediaPipeline, path)::buildAsync);
+
+                    return CompletableFuture.allOf(webRtcEndpoint, playerEndpoint)
+                            .thenCompose(ignored -> connect(webRtcEndpoint.join(), playerEndpoint.join(), listener))
+                            .thenCompose(ignored -> KurentoCalls.<String>call("processOffer",
+                                    continuation -> webRtcEndpoint.join().processOffer(sdpOffer, continuation)))
+                            // play
+                            .thenCompose(sdpAnswer -> invoke("play", playerEndpoint.join()::play)
+                                    .thenApply(ignored -> {
+                                        webRtc.complete(webRtcEndpoint.join());
+                                        return sdpAnswer;
+                                    }));
+                })
+                .whenComplete((sdpAnswer, error) -> {
+                    if (error != null) {
+                        webRtc.completeExceptionally(error);
+                        release();
+                    }
+                });
     }
 
-    public void play() {
-        player.play();
+    private CompletableFuture<Void> connect(WebRtcEndpoint webRtcEndpoint, PlayerEndpoint playerEndpoint, Listener listener) {
+        player = playerEndpoint;
+        return CompletableFuture.allOf(
+                // unit kbps (set it to 2.5 mbs)
+                invoke("setMaxVideoRecvBandwidth", continuation -> webRtcEndpoint.setMaxVideoRecvBandwidth(3000, continuation)),
+                invoke("setMaxVideoSendBandwidth", continuation -> webRtcEndpoint.setMaxVideoSendBandwidth(3000, continuation)),
+                invoke("setMaxOutputBitrate", continuation -> webRtcEndpoint.setMaxOutputBitrate(3000, continuation)),
+                invoke("setMinOutputBitrate", continuation -> webRtcEndpoint.setMinOutputBitrate(3000, continuation)),
+
+                // Connection
+                invoke("connect", continuation -> playerEndpoint.connect(webRtcEndpoint, continuation)),
+
+                subscribe("addErrorListener", continuation -> playerEndpoint.addErrorListener(
+                        errorEvent -> listener.onError(errorEvent.getDescription()), continuation)),
+                subscribe("addEndOfStreamListener", continuation -> playerEndpoint.addEndOfStreamListener(
+                        endOfStreamEvent -> listener.onEndOfStream(), continuation)),
+                subscribe("addIceCandidateFoundListener", continuation -> webRtcEndpoint.addIceCandidateFoundListener(
+                        event -> listener.onIceCandidate(event.getCandidate()), continuation)),
+                // get video info and send it to the user
+                subscribe("addMediaStateChangedListener", continuation -> webRtcEndpoint.addMediaStateChangedListener(
+                        mediaStateChangedEvent -> KurentoCalls.<VideoInfo>call("getVideoInfo", playerEndpoint::getVideoInfo)
+                                .thenAccept(listener::onVideoInfo)
+                                .exceptionally(error -> {
+                                    log.warn("Could not get the video info of {}", path, error);
+                                    return null;
+                                }), continuation)));
     }
 
-    public void addIceCandidate(IceCandidate iceCandidate) {
-        webRtc.addIceCandidate(iceCandidate, new Continuation<Void>() {
-            @Override
-            public void onSuccess(Void aVoid) throws Exception {
-                System.out.println("Candidate added successfully!");
-            }
-
-            @Override
-            public void onError(Throwable throwable) throws Exception {
-                System.out.println("Error at adding candidates...");
-            }
-        });
+    public void sendPlayEnd(UserSession session) {
+        isStreamEnded = true;
+        JsonObject response = new JsonObject();
+        response.addProperty("method", "media");
+        response.addProperty("event", "playbackEnd");
+
+        session.sendMessage(response);
+
+        // Release pipeline
+        release();
     }
 
-    public String generateSdpAnswer(String sdpOffer) {
-        return webRtc.processOffer(sdpOffer);
+    /**
+     * Starts gathering the ice candidates, call it once the sdp answer is sent.
+     */
+    public CompletableFuture<Void> gatherCandidates() {
+        return webRtc.thenCompose(endpoint -> invoke("gatherCandidates", endpoint::gatherCandidates));
     }
 
-    public MediaPipeline getPipeline() {
-        return pipeline;
+    /**
+     * Adds the candidate once the offer is answered, candidates may arrive before.
+     */
+    public void addIceCandidate(IceCandidate iceCandidate) {
+        webRtc.thenCompose(endpoint -> invoke("addIceCandidate", continuation -> endpoint.addIceCandidate(iceCandidate, continuation)))
+                .whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        log.trace("Ice candidate added");
+                    } else {
+                        log.warn("Could not add an ice candidate", error);
+                    }
+                });
     }
 
-    public WebRtcEndpoint getWebRtc() {
-        return webRtc;
+    /**
+     * Releases the pipeline, waits for it if it is still being created. Only the first call has an effect.
+     */
+    public CompletableFuture<Void> release() {
+        if (!released.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return pipeline.thenCompose(mediaPipeline -> invoke("release", mediaPipeline::release))
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        log.warn("Could not release the pipeline of {}", path, error);
+                    }
+                });
     }
 
+    /**
+     * @return the player, null until the pipeline is created
+     */
     public PlayerEndpoint getPlayer() {
         return player;
     }
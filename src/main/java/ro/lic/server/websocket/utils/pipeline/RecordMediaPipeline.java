@@ -2,140 +2,187 @@ package ro.lic.server.websocket.utils.pipeline;
 
 import org.kurento.client.*;
 import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.log.EventLog;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static ro.lic.server.websocket.utils.pipeline.KurentoCalls.invoke;
+import static ro.lic.server.websocket.utils.pipeline.KurentoCalls.subscribe;
 
 /**
  * Encapsulate the media pipeline need to record videos from a user
  * Is also contains a map of webrtc endpoints needed to catch the live stream
+ * <p> Nothing is created on the media server until {@link #start}, which makes its calls asynchronously. Ice
+ * candidates received before an endpoint is ready wait for it.</p>
  */
 public class RecordMediaPipeline {
+    private static final EventLog log = EventLog.get(RecordMediaPipeline.class);
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd__HH-mm-ss");
     private static final String RECORDING_EXT_WEBM = ".webm";
     private final String recordingPath;
 
-    private final MediaPipeline mMediaPipeline;
-    private final WebRtcEndpoint recordingWebRtcEndpoint;
-    private final WebRtcEndpoint liveWatchWebRtcEndpoint;
-    private final RecorderEndpoint recorderEndpoint;
-
-    private boolean isStreaming = false;
+    private final CompletableFuture<MediaPipeline> mMediaPipeline = new CompletableFuture<>();
+    /**
+     * completes once the offer of the streamer is answered
+     */
+    private final CompletableFuture<WebRtcEndpoint> recordingWebRtcEndpoint = new CompletableFuture<>();
+    private final CompletableFuture<HubPort> mHubPort = new CompletableFuture<>();
+    private volatile RecorderEndpoint recorderEndpoint;
 
-    private final Map<String, WebRtcEndpoint> liveWatchers; //outgoings
+    private volatile boolean isStreaming = false;
+    private final AtomicBoolean released = new AtomicBoolean();
 
-    private HubPort mHubPort;
+    /**
+     * key is session id, each endpoint completes once the offer of the watcher is answered
+     */
+    private final Map<String, CompletableFuture<WebRtcEndpoint>> liveWatchers = new ConcurrentHashMap<>(); //outgoings
 
-    public RecordMediaPipeline(KurentoClient kurentoClient, String from) {
+    public RecordMediaPipeline(String from) {
         // create recording path
         recordingPath = String.format("file:///home/kurento/UsersVideos/%s__%s%s", dateFormat.format(new Date()), from, RECORDING_EXT_WEBM);
-        // create media pipeline
-        mMediaPipeline = kurentoClient.createMediaPipeline();
-
-        // create endpoints
-        recordingWebRtcEndpoint = new WebRtcEndpoint.Builder(mMediaPipeline).build();
-        liveWatchWebRtcEndpoint = new WebRtcEndpoint.Builder(mMediaPipeline).build();
-        // setting the max bandwidth to 2.5 mbs (full hd capable)
-        recordingWebRtcEndpoint.setMaxVideoRecvBandwidth(3000, new Continuation<Void>() {
-            @Override
-            public void onSuccess(Void aVoid) throws Exception {
-                System.out.println("Set max video recv. bandwidth");
-            }
-
-            @Override
-            public void onError(Throwable throwable) throws Exception {
-                System.out.println("Failed to set max video recv band");
-            }
-        }); // unit kbps (set it to 2.5 mbs)
-        recordingWebRtcEndpoint.setMaxVideoSendBandwidth(3000, new Continuation<Void>() {
-            @Override
-            public void onSuccess(Void aVoid) throws Exception {
-                System.out.println("Set max video send bandwidth");
-            }
-
-            @Override
-            public void onError(Throwable throwable) throws Exception {
-                System.out.println("Failed to set max video recv. band");
-            }
-        });
-        recordingWebRtcEndpoint.setMaxAudioRecvBandwidth(520, new Continuation<Void>() {
-            @Override
-            public void onSuccess(Void aVoid) throws Exception {
-                System.out.println("Set max audio recv band");
-            }
-
-            @Override
-            public void onError(Throwable throwable) throws Exception {
-                System.out.println("Failed to set max audio recv band");
-                //todo change resolution on user!!
-            }
-        });
-
-        recordingWebRtcEndpoint.addErrorListener(errorEvent -> {
-            System.out.println("ERROR: " + errorEvent.getDescription());
-        });
-
-        liveWatchWebRtcEndpoint.setMaxVideoRecvBandwidth(3000);
-        liveWatchWebRtcEndpoint.setMaxVideoSendBandwidth(3000);
-        liveWatchWebRtcEndpoint.setMaxOutputBitrate(3000);
-
-        recorderEndpoint = new RecorderEndpoint.Builder(mMediaPipeline, recordingPath)
-                .withMediaProfile(MediaProfileSpecType.WEBM)
-                .build();
-
-        recorderEndpoint.addRecordingListener(new EventListener<RecordingEvent>() {
-            @Override
-            public void onEvent(RecordingEvent recordingEvent) {
-                System.out.println("RECORDER: Recording event");
-            }
-        });
-
-        recorderEndpoint.addPausedListener(new EventListener<PausedEvent>() {
-            @Override
-            public void onEvent(PausedEvent pausedEvent) {
-                System.out.println("RECORDER: Paused event");
-            }
-        });
-
-       recorderEndpoint.addStoppedListener(new EventListener<StoppedEvent>() {
-            @Override
-            public void onEvent(StoppedEvent stoppedEvent) {
-                System.out.println("RECORDER: Stopped event");
-            }
-        });
-
-        // connections
-        liveWatchers = new ConcurrentHashMap<>();
-        recordingWebRtcEndpoint.connect(recorderEndpoint);
+    }
 
-        DispatcherOneToMany dispatcherOneToMany = new DispatcherOneToMany.Builder(mMediaPipeline).build();
-        mHubPort = new HubPort.Builder(dispatcherOneToMany).build();
-        mHubPort.setMaxOutputBitrate(3000);
-        recordingWebRtcEndpoint.connect(mHubPort);
+    /**
+     * Creates the media logic of the stream and answers the offer of the streamer, without blocking the caller.
+     * The calls which do not depend on each other are made together, the recording starts once media flows.
+     * <p> If a step fails the pipeline is released.</p>
+     *
+     * @param candidates receives the ice candidates found by the media server, once {@link #gatherCandidates} is called
+     * @return completes with the sdp answer
+     */
+    public CompletableFuture<String> start(KurentoClient kurento, String sdpOffer, Consumer<IceCandidate> candidates) {
+        return KurentoCalls.<MediaPipeline>call("createMediaPipeline", kurento::createMediaPipeline)
+                .thenCompose(pipeline -> {
+                    mMediaPipeline.complete(pipeline);
+
+                    // create endpoints
+                    CompletableFuture<WebRtcEndpoint> webRtc = KurentoCalls.<WebRtcEndpoint>call("createWebRtcEndpoint",
+                            new WebRtcEndpoint.Builder(pipeline)::buildAsync);
+                    CompletableFuture<RecorderEndpoint> recorder = KurentoCalls.<RecorderEndpoint>call("createRecorderEndpoint",
+                            new RecorderEndpoint.Builder(pipeline, recordingPath).withMediaProfile(MediaProfileSpecType.WEBM)::buildAsync);
+                    CompletableFuture<HubPort> hubPort = KurentoCalls.<DispatcherOneToMany>call("createDispatcherOneToMany",
+                            new DispatcherOneToMany.Builder(pipeline)::buildAsync)
+                            .thenCompose(RecordMediaPipeline::createHubPort);
+
+                    return CompletableFuture.allOf(webRtc, recorder, hubPort)
+                            .thenCompose(ignored -> connect(webRtc.join(), recorder.join(), hubPort.join(), candidates))
+                            .thenCompose(ignored -> KurentoCalls.<String>call("processOffer",
+                                    continuation -> webRtc.join().processOffer(sdpOffer, continuation)))
+                            .thenApply(sdpAnswer -> {
+                                isStreaming = true;
+                                mHubPort.complete(hubPort.join());
+                                recordingWebRtcEndpoint.complete(webRtc.join());
+                                return sdpAnswer;
+                            });
+                })
+                .whenComplete((sdpAnswer, error) -> {
+                    if (error != null) {
+                        // lets release() go on when the pipeline itself could not be created
+                        mMediaPipeline.completeExceptionally(error);
+                        recordingWebRtcEndpoint.completeExceptionally(error);
+                        mHubPort.completeExceptionally(error);
+                        release();
+                    }
+                });
+    }
 
-        dispatcherOneToMany.setSource(mHubPort);
+    private static CompletableFuture<HubPort> createHubPort(DispatcherOneToMany dispatcherOneToMany) {
+        return KurentoCalls.<HubPort>call("createHubPort", new HubPort.Builder(dispatcherOneToMany)::buildAsync)
+                .thenCompose(hubPort -> CompletableFuture.allOf(
+                        invoke("setMaxOutputBitrate", continuation -> hubPort.setMaxOutputBitrate(3000, continuation)),
+                        invoke("setSource", continuation -> dispatcherOneToMany.setSource(hubPort, continuation)))
+                        .thenApply(ignored -> hubPort));
+    }
 
-        isStreaming = true;
+    private CompletableFuture<Void> connect(WebRtcEndpoint webRtc, RecorderEndpoint recorder, HubPort hubPort,
+                                            Consumer<IceCandidate> candidates) {
+        recorderEndpoint = recorder;
+        return CompletableFuture.allOf(
+                // setting the max bandwidth to 2.5 mbs (full hd capable), unit kbps
+                invoke("setMaxVideoRecvBandwidth", continuation -> webRtc.setMaxVideoRecvBandwidth(3000, continuation)),
+                invoke("setMaxVideoSendBandwidth", continuation -> webRtc.setMaxVideoSendBandwidth(3000, continuation)),
+                invoke("setMaxAudioRecvBandwidth", continuation -> webRtc.setMaxAudioRecvBandwidth(520, continuation)),
+
+                // connections
+                invoke("connect", continuation -> webRtc.connect(recorder, continuation)),
+                invoke("connect", continuation -> webRtc.connect(hubPort, continuation)),
+
+                subscribe("addErrorListener", continuation -> webRtc.addErrorListener(errorEvent ->
+                        log.warn("Recording endpoint error on {}: {}", recordingPath, errorEvent.getDescription()), continuation)),
+                subscribe("addIceCandidateFoundListener", continuation -> webRtc.addIceCandidateFoundListener(
+                        event -> candidates.accept(event.getCandidate()), continuation)),
+                subscribe("addMediaFlowInStateChangeListener", continuation -> webRtc.addMediaFlowInStateChangeListener(event -> {
+                    log.debug("Media flow incoming");
+                    record();
+                }, continuation)),
+                subscribe("addMediaFlowOutStateChangeListener", continuation -> webRtc.addMediaFlowOutStateChangeListener(event -> {
+                    log.debug("Media flow outgoing");
+                    record();
+                }, continuation)),
+
+                subscribe("addRecordingListener", continuation -> recorder.addRecordingListener(
+                        recordingEvent -> log.debug("Recording {}", recordingPath), continuation)),
+                subscribe("addPausedListener", continuation -> recorder.addPausedListener(
+                        pausedEvent -> log.debug("Recording paused {}", recordingPath), continuation)),
+                subscribe("addStoppedListener", continuation -> recorder.addStoppedListener(
+                        stoppedEvent -> log.debug("Recording stopped {}", recordingPath), continuation)));
     }
 
     /**
-     * Subscribe user to the recording session
+     * Registers a live watcher before its endpoint is set up, so the ice candidates it sends meanwhile wait for the
+     * endpoint instead of being dropped. Call it before {@link #addLiveWatcher}, and {@link #unsubscribe} if the setup
+     * is not made.
      *
      * @param session is the subscriber user session
+     * @return completes with the endpoint of the watcher once its offer is answered
      */
-    public void addLiveWatcher(UserSession session) {
-        WebRtcEndpoint liveWatcherWebRtcEndPoint = new WebRtcEndpoint.Builder(mMediaPipeline).build();
-
-        liveWatcherWebRtcEndPoint.setMaxVideoSendBandwidth(3000);
-        liveWatcherWebRtcEndPoint.setMaxVideoRecvBandwidth(3000);
-        liveWatcherWebRtcEndPoint.setMaxOutputBitrate(3000);
-
-        mHubPort.connect(liveWatcherWebRtcEndPoint);
-        //recordingWebRtcEndpoint.connect(liveWatcherWebRtcEndPoint);
+    public CompletableFuture<WebRtcEndpoint> registerLiveWatcher(UserSession session) {
+        CompletableFuture<WebRtcEndpoint> liveWatcher = new CompletableFuture<>();
+        liveWatchers.put(session.getSessionId(), liveWatcher);
+        return liveWatcher;
+    }
 
-        liveWatchers.put(session.getSessionId(), liveWatcherWebRtcEndPoint);
+    /**
+     * Subscribe user to the recording session and answers its offer, once the stream is started.
+     *
+     * @param liveWatcher is what {@link #registerLiveWatcher} returned for the session
+     * @param candidates  receives the ice candidates found by the media server, once {@link #gatherLiveCandidates} is
+     *                    called
+     * @return completes with the sdp answer
+     */
+    public CompletableFuture<String> addLiveWatcher(UserSession session, CompletableFuture<WebRtcEndpoint> liveWatcher,
+                                                    String sdpOffer, Consumer<IceCandidate> candidates) {
+        CompletableFuture<WebRtcEndpoint> created = mHubPort.thenCompose(hubPort ->
+                KurentoCalls.<WebRtcEndpoint>call("createWebRtcEndpoint", new WebRtcEndpoint.Builder(mMediaPipeline.join())::buildAsync));
+        return created
+                .thenCompose(liveWatcherWebRtcEndPoint -> CompletableFuture.allOf(
+                        invoke("setMaxVideoSendBandwidth", continuation -> liveWatcherWebRtcEndPoint.setMaxVideoSendBandwidth(3000, continuation)),
+                        invoke("setMaxVideoRecvBandwidth", continuation -> liveWatcherWebRtcEndPoint.setMaxVideoRecvBandwidth(3000, continuation)),
+                        invoke("setMaxOutputBitrate", continuation -> liveWatcherWebRtcEndPoint.setMaxOutputBitrate(3000, continuation)),
+                        invoke("connect", continuation -> mHubPort.join().connect(liveWatcherWebRtcEndPoint, continuation)),
+                        subscribe("addIceCandidateFoundListener", continuation -> liveWatcherWebRtcEndPoint.addIceCandidateFoundListener(
+                                event -> candidates.accept(event.getCandidate()), continuation)))
+                        .thenCompose(ignored -> KurentoCalls.<String>call("processOffer",
+                                continuation -> liveWatcherWebRtcEndPoint.processOffer(sdpOffer, continuation))))
+                .whenComplete((sdpAnswer, error) -> {
+                    if (error == null) {
+                        if (!liveWatcher.complete(created.join())) {
+                            // unsubscribed meanwhile, e.g. the setup timed out
+                            releaseEndpoint(created.join());
+                        }
+                    } else {
+                        liveWatcher.completeExceptionally(error);
+                        liveWatchers.remove(session.getSessionId(), liveWatcher);
+                        created.thenAccept(RecordMediaPipeline::releaseEndpoint);
+                    }
+                });
     }
 
     /**
@@ -144,54 +191,105 @@ public class RecordMediaPipeline {
      * @param session is the subscriber user session
      */
     public void unsubscribe(UserSession session) {
-        WebRtcEndpoint subscriberWebRtcEp = liveWatchers.get(session.getSessionId());
-        //recordingWebRtcEndpoint.disconnect(subscriberWebRtcEp);
-        mHubPort.disconnect(subscriberWebRtcEp);
+        CompletableFuture<WebRtcEndpoint> liveWatcher = liveWatchers.remove(session.getSessionId());
+        if (liveWatcher != null) {
+            // a setup still running releases its endpoint itself, the waiting candidates are dropped
+            liveWatcher.completeExceptionally(new CancellationException("Unsubscribed"));
+            // releasing the endpoint disconnects it from the hub port
+            liveWatcher.thenAccept(RecordMediaPipeline::releaseEndpoint);
+        }
+    }
 
-        liveWatchers.remove(session.getSessionId());
+    private static void releaseEndpoint(WebRtcEndpoint endpoint) {
+        invoke("release", endpoint::release)
+                .exceptionally(error -> {
+                    log.warn("Could not release a live watch endpoint", error);
+                    return null;
+                });
     }
 
-    public WebRtcEndpoint getWebRtcEpOfSubscriber(UserSession session){
-        return liveWatchers.get(session.getSessionId());
+    public int getLiveWatcherCount() {
+        return liveWatchers.size();
     }
 
     public void record() {
-        recorderEndpoint.record();
+        invoke("record", recorderEndpoint::record)
+                .exceptionally(error -> {
+                    log.warn("Could not record {}", recordingPath, error);
+                    return null;
+                });
     }
 
-    public String generateSdpAnswerFromRecordingEp(String sdpOffer) {
-        return recordingWebRtcEndpoint.processOffer(sdpOffer);
+    /**
+     * Starts gathering the ice candidates of the streamer, call it once the sdp answer is sent.
+     */
+    public CompletableFuture<Void> gatherCandidates() {
+        return recordingWebRtcEndpoint.thenCompose(endpoint -> invoke("gatherCandidates", endpoint::gatherCandidates));
+    }
+
+    /**
+     * Starts gathering the ice candidates of a live watcher, call it once the sdp answer is sent.
+     */
+    public CompletableFuture<Void> gatherLiveCandidates(UserSession user) {
+        CompletableFuture<WebRtcEndpoint> liveWatcher = liveWatchers.get(user.getSessionId());
+        if (liveWatcher == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return liveWatcher.thenCompose(endpoint -> invoke("gatherCandidates", endpoint::gatherCandidates));
     }
 
     public void addLiveCandidate(IceCandidate iceCandidate, UserSession user){
-        liveWatchers.get(user.getSessionId()).addIceCandidate(iceCandidate);
+        CompletableFuture<WebRtcEndpoint> liveWatcher = liveWatchers.get(user.getSessionId());
+        if (liveWatcher != null) {
+            addIceCandidate(liveWatcher, iceCandidate);
+        }
     }
 
     public void addCandidate(IceCandidate iceCandidate) {
-        recordingWebRtcEndpoint.addIceCandidate(iceCandidate);
+        addIceCandidate(recordingWebRtcEndpoint, iceCandidate);
     }
 
-    public void release() {
-        if(isStreaming) {
-            recorderEndpoint.stopAndWait();
-            isStreaming = false;
-        }
-        recordingWebRtcEndpoint.release();
-        recorderEndpoint.release();
-        mMediaPipeline.release();
-
-        //todo: release the subscriber endpoints
+    /**
+     * Adds the candidate once the offer is answered, candidates may arrive before.
+     */
+    private static void addIceCandidate(CompletableFuture<WebRtcEndpoint> endpoint, IceCandidate iceCandidate) {
+        endpoint.thenCompose(webRtc -> invoke("addIceCandidate",
+                continuation -> webRtc.addIceCandidate(iceCandidate, continuation)))
+                .exceptionally(error -> {
+                    log.debug("Could not add an ice candidate: {}", error.getMessage());
+                    return null;
+                });
     }
 
-    //region Getters and setters
-
-    public WebRtcEndpoint getRecordingWebRtcEndpoint() {
-        return recordingWebRtcEndpoint;
+    /**
+     * Stops the recording and releases the pipeline, with the endpoints of the live watchers. Waits for the pipeline
+     * if it is still being created. Only the first call has an effect.
+     */
+    public CompletableFuture<Void> release() {
+        if (!released.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return mMediaPipeline.handle((pipeline, error) -> pipeline).thenCompose(pipeline -> {
+            if (pipeline == null) {
+                // it could not be created
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            CompletableFuture<Void> stopped = CompletableFuture.completedFuture(null);
+            if (isStreaming) {
+                isStreaming = false;
+                stopped = invoke("stopAndWait", recorderEndpoint::stopAndWait);
+            }
+            // the pipeline is released even if the recorder could not be stopped
+            return stopped.handle((ignored, error) -> null)
+                    .thenCompose(ignored -> invoke("release", pipeline::release));
+        }).whenComplete((ignored, error) -> {
+            if (error != null) {
+                log.warn("Could not release the pipeline of {}", recordingPath, error);
+            }
+        });
     }
 
-    public RecorderEndpoint getRecorderEndpoint() {
-        return recorderEndpoint;
-    }
+    //region Getters and setters
 
     public String getRecordingPath() {
         return recordingPath;
@@ -201,6 +299,13 @@ public class RecordMediaPipeline {
         return isStreaming;
     }
 
+    /**
+     * @return whether {@link #release} was called, the stream was stopped
+     */
+    public boolean isReleased() {
+        return released.get();
+    }
+
     //endregion
 
 
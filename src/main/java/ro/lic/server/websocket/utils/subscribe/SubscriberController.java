@@ -1,125 +1,91 @@
 package ro.lic.server.websocket.utils.subscribe;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import ro.lic.server.model.enums.Status;
 import ro.lic.server.model.non_db_models.LiveWatcher;
 import ro.lic.server.model.tables.User;
 import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.message.OutboundFrame;
+import ro.lic.server.websocket.utils.outbound.FanOutEngine;
 
-import java.io.IOException;
-import java.util.LinkedList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 @Component
 public class SubscriberController {
-    private static final Gson gson = new GsonBuilder().setDateFormat("MMM dd, yyyy, h:mm:ss a").setPrettyPrinting().excludeFieldsWithoutExposeAnnotation().create();
+    @Autowired
+    private FanOutEngine fanOutEngine;
 
-    private List<UserSession> userListListener = new LinkedList<>();
-    private List<UserSession> mapChangesListener = new LinkedList<>();
-    private List<UserSession> liveStreamerListener = new LinkedList<>();
+    private final Map<Topic, TopicSubscribers> subscribers = new EnumMap<>(Topic.class);
 
-    public void addUserListListener(UserSession session){
-        userListListener.add(session);
+    public SubscriberController() {
+        for (Topic topic : Topic.values()) {
+            subscribers.put(topic, new TopicSubscribers());
+        }
     }
 
-    public void removeUserListListener(UserSession session){
-        userListListener.remove(session);
+    public void subscribe(Topic topic, UserSession session){
+        subscribers.get(topic).add(session);
     }
 
-    public void addMapChangesSubscriber(UserSession session) {
-        mapChangesListener.add(session);
+    public void unsubscribe(Topic topic, UserSession session){
+        subscribers.get(topic).remove(session);
     }
 
-    public void removeMapChangesSubscriber(UserSession session){
-        mapChangesListener.remove(session);
+    public boolean isSubscribed(Topic topic, UserSession session){
+        return subscribers.get(topic).contains(session);
     }
 
-    public void addLiveStreamerListener(UserSession session){
-        liveStreamerListener.add(session);
+    /**
+     * @return the current subscribers of the topic, an immutable snapshot
+     */
+    public List<UserSession> getSubscribers(Topic topic){
+        return subscribers.get(topic).snapshot();
     }
 
-    public void removeLiveStreamerListener(UserSession session){
-        liveStreamerListener.remove(session);
+    private void notifySubscribers(OutboundFrame message, Topic topic){
+        fanOutEngine.broadcast(message, subscribers.get(topic).snapshot());
     }
 
-    private void notifySubscribers(JsonObject message, List<UserSession> list){
-        if(list.isEmpty())
+    public void removeSubscriberAfterConnectionClosed(UserSession session){
+        if(session == null)
             return;
-
-        for(UserSession session : list){
-            synchronized (session.getSession()){
-                try {
-                    session.sendMessage(message);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        for (TopicSubscribers topicSubscribers : subscribers.values()) {
+            topicSubscribers.remove(session);
         }
     }
 
-    public void removeSubscriberAfterConnectionClosed(UserSession session){
-        userListListener.remove(session);
-        liveStreamerListener.remove(session);
-        mapChangesListener.remove(session);
-    }
-
     public void notifySubscribersOnUserModified(User modifiedUser){
-        JsonObject message = new JsonObject();
-
-        message.addProperty("method", "subscribe");
-        message.addProperty("event", "userUpdated");
-        message.addProperty("payload", gson.toJson(modifiedUser));
+        OutboundFrame message = new OutboundFrame("subscribe", "userUpdated")
+                .payload(modifiedUser);
 
-        notifySubscribers(message, userListListener);
+        notifySubscribers(message, Topic.USER_LIST);
     }
 
     public void notifySubscribersOnUserStatusModified(Status status, String username){
-        JsonObject message = new JsonObject();
+        OutboundFrame message = new OutboundFrame("subscribe", "userStatus")
+                .property("status", status.name())
+                .property("username", username)
+                .coalesceKey("status:" + username);
 
-        message.addProperty("method", "subscribe");
-        message.addProperty("event", "userStatus");
-        message.addProperty("status", status.name());
-        message.addProperty("username", username);
-
-        notifySubscribers(message, userListListener);
-    }
-
-    public void notifySubscribersOnLocationChanged(String username, double lat, double lng){
-        JsonObject message = new JsonObject();
-
-        message.addProperty("method", "subscribe");
-        message.addProperty("event", "mapItemLocation");
-        JsonObject payload = new JsonObject();
-        payload.addProperty("username", username);
-        payload.addProperty("lat", lat);
-        payload.addProperty("lng", lng);
-        message.add("payload", payload);
-
-        notifySubscribers(message, mapChangesListener);
+        notifySubscribers(message, Topic.USER_LIST);
     }
 
     public void notifySubscribersOnLiveStreamingStarted(LiveWatcher liveWatcher){
-        JsonObject message = new JsonObject();
-
-        message.addProperty("method", "subscribe");
-        message.addProperty("event", "liveStreamers");
-        message.addProperty("status", "started");
-        message.addProperty("payload", gson.toJson(liveWatcher));
+        OutboundFrame message = new OutboundFrame("subscribe", "liveStreamers")
+                .property("status", "started")
+                .payload(liveWatcher);
 
-        notifySubscribers(message, liveStreamerListener);
+        notifySubscribers(message, Topic.LIVE_STREAMERS);
     }
 
     public void notifySubscribersOnLiveStreamingStopped(LiveWatcher liveWatcher){
-        JsonObject message = new JsonObject();
-
-        message.addProperty("method", "subscribe");
-        message.addProperty("event", "liveStreamers");
-        message.addProperty("status", "stopped");
-        message.addProperty("payload", gson.toJson(liveWatcher));
+        OutboundFrame message = new OutboundFrame("subscribe", "liveStreamers")
+                .property("status", "stopped")
+                .payload(liveWatcher);
 
-        notifySubscribers(message, liveStreamerListener);
+        notifySubscribers(message, Topic.LIVE_STREAMERS);
     }
 }
@@ -0,0 +1,26 @@
+package ro.lic.server.websocket.utils.subscribe;
+
+/**
+ * Topics an admin can subscribe to, with the events of the subscribe and unsubscribe messages.
+ */
+public enum Topic {
+    USER_LIST("userUpdated", "userList"),
+    MAP_CHANGES("mapItems", "mapItems"),
+    LIVE_STREAMERS("liveStreamers", "liveStreamers");
+
+    private final String subscribeEvent;
+    private final String unsubscribeEvent;
+
+    Topic(String subscribeEvent, String unsubscribeEvent) {
+        this.subscribeEvent = subscribeEvent;
+        this.unsubscribeEvent = unsubscribeEvent;
+    }
+
+    public String getSubscribeEvent() {
+        return subscribeEvent;
+    }
+
+    public String getUnsubscribeEvent() {
+        return unsubscribeEvent;
+    }
+}
@@ -0,0 +1,59 @@
+package ro.lic.server.websocket.utils.subscribe;
+
+import ro.lic.server.websocket.utils.UserSession;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscribers of one topic, keyed by session id.
+ * <p> Subscribing and unsubscribing are O(1) and lock-free. Notifications iterate an immutable snapshot, rebuilt
+ * only by the first notification after the subscribers changed, so they never block and never see a list being
+ * modified.</p>
+ */
+class TopicSubscribers {
+    private final ConcurrentHashMap<String, UserSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
+
+    void add(UserSession session) {
+        if (sessions.put(session.getSessionId(), session) != session) {
+            version.incrementAndGet();
+        }
+    }
+
+    void remove(UserSession session) {
+        if (sessions.remove(session.getSessionId()) != null) {
+            version.incrementAndGet();
+        }
+    }
+
+    boolean contains(UserSession session) {
+        return sessions.containsKey(session.getSessionId());
+    }
+
+    List<UserSession> snapshot() {
+        Snapshot current = snapshot;
+        long currentVersion = version.get();
+        if (current.version == currentVersion) {
+            return current.sessions;
+        }
+        // a change made while copying bumps the version again, the next call rebuilds
+        List<UserSession> copy = Collections.unmodifiableList(new ArrayList<>(sessions.values()));
+        snapshot = new Snapshot(currentVersion, copy);
+        return copy;
+    }
+
+    private static final class Snapshot {
+        private final long version;
+        private final List<UserSession> sessions;
+
+        private Snapshot(long version, List<UserSession> sessions) {
+            this.version = version;
+            this.sessions = sessions;
+        }
+    }
+}
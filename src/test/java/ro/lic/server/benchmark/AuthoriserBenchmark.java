@@ -0,0 +1,65 @@
+package ro.lic.server.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ro.lic.server.model.enums.Role;
+import ro.lic.server.websocket.security.Authoriser;
+import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.outbound.OutboundDispatcher;
+import ro.lic.server.websocket.utils.outbound.OverflowPolicy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token check done on every message: the first check of a session verifies the signature, the next ones use the
+ * claims cached on the session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthoriserBenchmark {
+
+    private OutboundDispatcher dispatcher;
+    private UserSession session;
+    private String token;
+
+    @Setup
+    public void setUp() {
+        dispatcher = new OutboundDispatcher(1, 256, OverflowPolicy.COALESCE, 5000);
+        session = Fixtures.session(dispatcher, "admin", Role.ADMIN);
+        token = session.getToken();
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public boolean checkTokenCached() {
+        return Authoriser.checkToken(session, token);
+    }
+
+    @Benchmark
+    public boolean checkTokenVerified() {
+        session.setVerifiedToken(null);
+        return Authoriser.checkToken(session, token);
+    }
+
+    @Benchmark
+    public boolean authoriseAdmin() {
+        return Authoriser.authoriseListUsers(session, token);
+    }
+}
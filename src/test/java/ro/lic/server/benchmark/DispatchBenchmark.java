@@ -0,0 +1,215 @@
+package ro.lic.server.benchmark;
+
+import org.kurento.client.KurentoClient;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import ro.lic.server.model.enums.Role;
+import ro.lic.server.model.repository.ActionRepository;
+import ro.lic.server.model.repository.MapItemRepository;
+import ro.lic.server.model.repository.ServerLogRepository;
+import ro.lic.server.model.repository.UserRepository;
+import ro.lic.server.model.repository.VideoRepository;
+import ro.lic.server.model.tables.User;
+import ro.lic.server.websocket.EndPointHandler;
+import ro.lic.server.websocket.security.AuthenticationService;
+import ro.lic.server.websocket.utils.PresenceService;
+import ro.lic.server.websocket.utils.UserRegistry;
+import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.location.LocationUpdatePipeline;
+import ro.lic.server.websocket.utils.location.TrackLog;
+import ro.lic.server.websocket.utils.map.MapSnapshotCache;
+import ro.lic.server.websocket.utils.outbound.FanOutEngine;
+import ro.lic.server.websocket.utils.outbound.OutboundDispatcher;
+import ro.lic.server.websocket.utils.outbound.OverflowPolicy;
+import ro.lic.server.websocket.utils.outbound.ResultStreamer;
+import ro.lic.server.websocket.utils.pipeline.MediaSetupService;
+import ro.lic.server.websocket.utils.subscribe.SubscriberController;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A text message through {@link EndPointHandler#handleTextMessage}: session lookup, decoding, routing, token check
+ * and handler.
+ * <p> The handler is wired by a minimal Spring context, {@link Wiring}, with the in memory components of the server,
+ * so a missing or renamed dependency fails the setup. The database, the track files and the media server are mocks,
+ * so only the cost of the server itself is measured.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int ONLINE_USERS = 50;
+
+    @Param({"location", "requestOnlineUsers"})
+    private String shape;
+
+    private AnnotationConfigApplicationContext context;
+    private EndPointHandler handler;
+    private WebSocketSession session;
+    private TextMessage message;
+
+    /**
+     * The beans the handler depends on, the real ones for the in memory components.
+     */
+    @Configuration
+    static class Wiring {
+        @Bean
+        public EndPointHandler endPointHandler() {
+            return new EndPointHandler();
+        }
+
+        @Bean
+        public UserRegistry registry() {
+            return new UserRegistry();
+        }
+
+        @Bean
+        public OutboundDispatcher outboundDispatcher() {
+            return new OutboundDispatcher(2, 256, OverflowPolicy.COALESCE, 5000);
+        }
+
+        @Bean
+        public FanOutEngine fanOutEngine() {
+            return new FanOutEngine(2);
+        }
+
+        @Bean
+        public SubscriberController subscriberController() {
+            return new SubscriberController();
+        }
+
+        @Bean
+        public LocationUpdatePipeline locationPipeline() {
+            return new LocationUpdatePipeline(250, 4, 0.05);
+        }
+
+        @Bean
+        public PresenceService presenceService() {
+            return new PresenceService(0);
+        }
+
+        @Bean
+        public UserRepository userRepository() {
+            Map<String, User> users = new HashMap<>();
+            for (User user : Fixtures.users(ONLINE_USERS)) {
+                users.put(user.getUsername(), user);
+            }
+            UserRepository userRepository = Mockito.mock(UserRepository.class);
+            Mockito.when(userRepository.getUser(Mockito.anyString()))
+                    .thenAnswer(invocation -> users.get(invocation.<String>getArgument(0)));
+            return userRepository;
+        }
+
+        @Bean
+        public VideoRepository videoRepository() {
+            return Mockito.mock(VideoRepository.class);
+        }
+
+        @Bean
+        public ActionRepository actionRepository() {
+            return Mockito.mock(ActionRepository.class);
+        }
+
+        @Bean
+        public ServerLogRepository serverLogRepository() {
+            return Mockito.mock(ServerLogRepository.class);
+        }
+
+        @Bean
+        public MapItemRepository mapItemRepository() {
+            return Mockito.mock(MapItemRepository.class);
+        }
+
+        @Bean
+        public KurentoClient kurento() {
+            return Mockito.mock(KurentoClient.class);
+        }
+
+        @Bean
+        public AuthenticationService authenticationService() {
+            return Mockito.mock(AuthenticationService.class);
+        }
+
+        @Bean
+        public TrackLog trackLog() {
+            return Mockito.mock(TrackLog.class);
+        }
+
+        @Bean
+        public ResultStreamer resultStreamer() {
+            return Mockito.mock(ResultStreamer.class);
+        }
+
+        @Bean
+        public MapSnapshotCache mapSnapshotCache() {
+            return Mockito.mock(MapSnapshotCache.class);
+        }
+
+        @Bean
+        public MediaSetupService mediaSetupService() {
+            return Mockito.mock(MediaSetupService.class);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        context = new AnnotationConfigApplicationContext(Wiring.class);
+        handler = context.getBean(EndPointHandler.class);
+
+        PresenceService presenceService = context.getBean(PresenceService.class);
+        for (int i = 0; i < ONLINE_USERS; i++) {
+            presenceService.setOnline("user" + i);
+        }
+
+        UserSession admin = Fixtures.session(context.getBean(OutboundDispatcher.class), "user0", Role.ADMIN);
+        admin.setUserId(1);
+        context.getBean(UserRegistry.class).register(admin);
+        session = admin.getSession();
+
+        String token = admin.getToken();
+        switch (shape) {
+            case "location":
+                message = new TextMessage("{\"method\":\"update\",\"event\":\"location\",\"token\":\"" + token + "\"," +
+                        "\"payload\":{\"lat\":46.770439,\"lng\":23.591423}}");
+                break;
+            case "requestOnlineUsers":
+                message = new TextMessage("{\"method\":\"request\",\"event\":\"requestOnlineUsers\",\"token\":\"" + token + "\"}");
+                break;
+            default:
+                throw new IllegalArgumentException(shape);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        // stops the location pipeline, the fan-out lanes and the writers
+        context.close();
+    }
+
+    @Benchmark
+    public void handleTextMessage() throws Exception {
+        handler.handleTextMessage(session, message);
+    }
+}
@@ -0,0 +1,94 @@
+package ro.lic.server.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import ro.lic.server.model.enums.Role;
+import ro.lic.server.model.enums.Status;
+import ro.lic.server.websocket.utils.outbound.FanOutEngine;
+import ro.lic.server.websocket.utils.outbound.OutboundDispatcher;
+import ro.lic.server.websocket.utils.outbound.OverflowPolicy;
+import ro.lic.server.websocket.utils.subscribe.SubscriberController;
+import ro.lic.server.websocket.utils.subscribe.Topic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broadcast of a user status change by the {@link SubscriberController} to the admins subscribed to the user list.
+ * <p> {@code handOff} is the time the notifying thread spends, {@code delivered} waits until every subscriber
+ * session got the message.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int subscribers;
+
+    private AnnotationConfigApplicationContext context;
+    private OutboundDispatcher dispatcher;
+    private SubscriberController subscriberController;
+
+    @Configuration
+    static class Wiring {
+        @Bean
+        public OutboundDispatcher outboundDispatcher() {
+            return new OutboundDispatcher(8, 256, OverflowPolicy.COALESCE, 5000);
+        }
+
+        @Bean
+        public FanOutEngine fanOutEngine() {
+            return new FanOutEngine(0);
+        }
+
+        @Bean
+        public SubscriberController subscriberController() {
+            return new SubscriberController();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        context = new AnnotationConfigApplicationContext(Wiring.class);
+        dispatcher = context.getBean(OutboundDispatcher.class);
+        subscriberController = context.getBean(SubscriberController.class);
+        for (int i = 0; i < subscribers; i++) {
+            subscriberController.subscribe(Topic.USER_LIST, Fixtures.session(dispatcher, "admin" + i, Role.ADMIN));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public void handOff() {
+        subscriberController.notifySubscribersOnUserStatusModified(Status.ONLINE, "user1");
+    }
+
+    @Benchmark
+    public void delivered() {
+        long target = dispatcher.getSent() + subscribers;
+        subscriberController.notifySubscribersOnUserStatusModified(Status.ONLINE, "user1");
+        while (dispatcher.getSent() < target) {
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ro.lic.server.benchmark;
+
+import com.auth0.jwt.JWT;
+import ro.lic.server.model.enums.Importance;
+import ro.lic.server.model.enums.Role;
+import ro.lic.server.model.enums.ServerLogActionType;
+import ro.lic.server.model.tables.ServerLog;
+import ro.lic.server.model.tables.User;
+import ro.lic.server.websocket.security.Authoriser;
+import ro.lic.server.websocket.utils.UserSession;
+import ro.lic.server.websocket.utils.message.WireFormat;
+import ro.lic.server.websocket.utils.outbound.OutboundDispatcher;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Data and sessions shared by the benchmarks, shaped like the ones of the application.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return a token like the one issued at handshake, valid for an hour
+     */
+    static String token(Role role) {
+        return JWT.create()
+                .withClaim("role", role.name())
+                .withIssuer("AppServer")
+                .withExpiresAt(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)))
+                .sign(Authoriser.getInstance().getAlgorithm());
+    }
+
+    /**
+     * @return a connected user with its token, on an in memory websocket session
+     */
+    static UserSession session(OutboundDispatcher dispatcher, String username, Role role) {
+        FakeWebSocketSession session = new FakeWebSocketSession(username);
+        UserSession userSession = new UserSession(session, username, role, WireFormat.COMPACT, false,
+                dispatcher.newQueue(session));
+        userSession.setToken(token(role));
+        return userSession;
+    }
+
+    static User user(int i) {
+        return new User(i % 10 == 0 ? Role.ADMIN : Role.USER, "user" + i, "$2a$10$7EqJtq98hPqEX7fNZaFWoOhi5BWX4Z7dUnv1LXm0m5ZCeW6DzPZr6",
+                "User " + i, "Str. Memorandumului nr. " + i + ", Cluj-Napoca", "07" + (40000000 + i), new Date(),
+                "08:00", "16:00");
+    }
+
+    static List<User> users(int count) {
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            users.add(user(i));
+        }
+        return users;
+    }
+
+    static List<ServerLog> serverLogs(int count) {
+        List<ServerLog> logs = new ArrayList<>(count);
+        User user = user(1);
+        for (int i = 0; i < count; i++) {
+            logs.add(new ServerLog(new Date(), user, "User logged in.", Importance.LOW, ServerLogActionType.LOGIN));
+        }
+        return logs;
+    }
+}
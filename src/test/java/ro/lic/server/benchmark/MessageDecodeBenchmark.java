@@ -0,0 +1,119 @@
+package ro.lic.server.benchmark;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ro.lic.server.model.enums.Role;
+import ro.lic.server.websocket.utils.message.InboundMessage;
+import ro.lic.server.websocket.utils.message.MessageDecoder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the messages sent by the clients, the streaming {@link MessageDecoder} against a Gson tree parse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecodeBenchmark {
+
+    @Param({"location", "iceCandidate", "sdpOffer", "requestServerLog", "mapItemChanges"})
+    private String shape;
+
+    private String text;
+
+    @Setup
+    public void setUp() {
+        String token = Fixtures.token(Role.ADMIN);
+        switch (shape) {
+            case "location":
+                text = "{\"method\":\"update\",\"event\":\"location\",\"token\":\"" + token + "\"," +
+                        "\"payload\":{\"lat\":46.770439,\"lng\":23.591423}}";
+                break;
+            case "iceCandidate":
+                text = "{\"method\":\"media\",\"event\":\"iceCandidate\",\"token\":\"" + token + "\"," +
+                        "\"candidate\":{\"iceFor\":\"live\",\"candidate\":\"candidate:842163049 1 udp 1677729535 " +
+                        "86.124.120.33 53891 typ srflx raddr 192.168.1.7 rport 53891 generation 0 ufrag Vx3n network-cost 10\"," +
+                        "\"sdpMid\":\"0\",\"sdpMLineIndex\":0}}";
+                break;
+            case "sdpOffer":
+                text = "{\"method\":\"media\",\"event\":\"startVideoStreamRequest\",\"token\":\"" + token + "\"," +
+                        "\"sdpOffer\":\"" + sdpOffer() + "\"}";
+                break;
+            case "requestServerLog":
+                text = "{\"method\":\"request\",\"event\":\"requestServerLog\",\"token\":\"" + token + "\"," +
+                        "\"date\":\"2020-06-15\",\"limit\":200,\"stream\":true}";
+                break;
+            case "mapItemChanges":
+                text = "{\"method\":\"update\",\"event\":\"mapItemChanges\",\"token\":\"" + token + "\",\"version\":1592208000000," +
+                        "\"zones\":[" + mapItem("ZONE", 32) + "],\"updated\":[" + mapItem("PATH", 64).replace("{", "{\"id\":12,") + "]," +
+                        "\"removed\":[3,7,9]}";
+                break;
+            default:
+                throw new IllegalArgumentException(shape);
+        }
+    }
+
+    @Benchmark
+    public InboundMessage decoder() {
+        return MessageDecoder.decode(text);
+    }
+
+    /**
+     * Parse of the whole message into a tree and read of the routing fields, as the handler used to do.
+     */
+    @Benchmark
+    public void gsonTree(Blackhole blackhole) {
+        JsonObject message = JsonParser.parseString(text).getAsJsonObject();
+        blackhole.consume(message.get("method").getAsString());
+        blackhole.consume(message.get("event").getAsString());
+        blackhole.consume(message.get("token").getAsString());
+        blackhole.consume(message);
+    }
+
+    private static String mapItem(String type, int coordinates) {
+        StringBuilder item = new StringBuilder("{\"type\":\"").append(type)
+                .append("\",\"name\":\"Sector 4\",\"description\":\"Patrol zone\",\"color\":-16776961,\"coordinates\":[");
+        for (int i = 0; i < coordinates; i++) {
+            if (i > 0) {
+                item.append(',');
+            }
+            item.append("{\"latitude\":").append(46.77 + i * 0.0001).append(",\"longitude\":").append(23.59 + i * 0.0001).append('}');
+        }
+        return item.append("]}").toString();
+    }
+
+    /**
+     * @return a session description the size of the ones sent by the browsers, escaped for json
+     */
+    private static String sdpOffer() {
+        StringBuilder sdp = new StringBuilder("v=0\\r\\no=- 4611731400430051336 2 IN IP4 127.0.0.1\\r\\ns=-\\r\\nt=0 0\\r\\n" +
+                "a=group:BUNDLE 0 1\\r\\na=msid-semantic: WMS\\r\\n");
+        for (String media : new String[]{"audio", "video"}) {
+            sdp.append("m=").append(media).append(" 9 UDP/TLS/RTP/SAVPF 111 103 104 9 0 8 106 105 13 110 112 113 126\\r\\n")
+                    .append("c=IN IP4 0.0.0.0\\r\\na=rtcp:9 IN IP4 0.0.0.0\\r\\na=ice-ufrag:Vx3n\\r\\n")
+                    .append("a=ice-pwd:4ZcD2nZ1eRhTqQ0h3m8QpG1y\\r\\na=ice-options:trickle\\r\\n")
+                    .append("a=fingerprint:sha-256 7B:8B:F0:65:5F:78:E2:51:3B:AC:6F:F3:3F:46:1B:35:DC:B8:5F:64:1A:24:C2:43:F0:A1:58:D0:A1:2C:19:08\\r\\n")
+                    .append("a=setup:actpass\\r\\na=mid:0\\r\\na=sendrecv\\r\\na=rtcp-mux\\r\\n");
+            for (int payload = 96; payload < 128; payload++) {
+                sdp.append("a=rtpmap:").append(payload).append(" VP8/90000\\r\\na=rtcp-fb:").append(payload)
+                        .append(" goog-remb\\r\\na=rtcp-fb:").append(payload).append(" nack pli\\r\\n");
+            }
+        }
+        return sdp.toString();
+    }
+}
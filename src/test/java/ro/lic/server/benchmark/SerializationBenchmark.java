@@ -0,0 +1,58 @@
+package ro.lic.server.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ro.lic.server.model.tables.ServerLog;
+import ro.lic.server.model.tables.User;
+import ro.lic.server.websocket.utils.message.OutboundFrame;
+import ro.lic.server.websocket.utils.message.WireFormat;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the user list and server log responses, in both wire formats. Each call encodes a new frame, as for a
+ * response sent to a single user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"1", "100", "1000"})
+    private int size;
+
+    @Param({"COMPACT", "LEGACY"})
+    private WireFormat format;
+
+    private List<User> users;
+    private List<ServerLog> serverLogs;
+
+    @Setup
+    public void setUp() {
+        users = Fixtures.users(size);
+        serverLogs = Fixtures.serverLogs(size);
+    }
+
+    @Benchmark
+    public String users() {
+        return new OutboundFrame("request", "requestAllUsers").payload(users).encode(format);
+    }
+
+    @Benchmark
+    public String serverLog() {
+        return new OutboundFrame("request", "requestServerLog").payload(serverLogs).encode(format);
+    }
+}
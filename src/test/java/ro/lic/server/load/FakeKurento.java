@@ -0,0 +1,80 @@
+package ro.lic.server.load;
+
+import com.google.gson.JsonObject;
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.message.Request;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Media server answering the Kurento protocol in process: every object is created, every call succeeds, offers
+ * are answered with a canned session description and no media flows.
+ * <p> The server talks to it through a real {@link KurentoClient}, so the pipelines run the same code as against
+ * a media server. The pipelines still open are counted, to find the ones never released.</p>
+ */
+public class FakeKurento extends DefaultJsonRpcHandler<JsonObject> {
+
+    static final String SDP_ANSWER = "v=0\r\no=- 3796226372 3796226372 IN IP4 127.0.0.1\r\ns=Kurento Media Server\r\nc=IN IP4 127.0.0.1\r\nt=0 0\r\n" +
+            "a=group:BUNDLE 0 1\r\nm=audio 1 UDP/TLS/RTP/SAVPF 111\r\na=mid:0\r\na=recvonly\r\na=rtcp-mux\r\na=rtpmap:111 opus/48000/2\r\n" +
+            "a=ice-ufrag:fake\r\na=ice-pwd:fakefakefakefakefakefake\r\na=setup:active\r\n" +
+            "m=video 1 UDP/TLS/RTP/SAVPF 96\r\na=mid:1\r\na=recvonly\r\na=rtcp-mux\r\na=rtpmap:96 VP8/90000\r\n";
+
+    private static final String SESSION_ID = "fake-kms-session";
+
+    private final AtomicLong ids = new AtomicLong();
+    private final Set<String> openPipelines = ConcurrentHashMap.newKeySet();
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * @return a client connected to a new fake media server
+     */
+    public static KurentoClient client(FakeKurento kurento) {
+        return KurentoClient.createFromJsonRpcClient(new JsonRpcClientLocal(kurento));
+    }
+
+    @Override
+    public void handleRequest(Transaction transaction, Request<JsonObject> request) throws Exception {
+        requests.increment();
+        JsonObject params = request.getParams();
+        JsonObject result = new JsonObject();
+        result.addProperty("sessionId", SESSION_ID);
+        switch (request.getMethod()) {
+            case "create":
+                String type = params.get("type").getAsString();
+                String id = ids.incrementAndGet() + "_kurento." + type;
+                if ("MediaPipeline".equals(type)) {
+                    openPipelines.add(id);
+                }
+                result.addProperty("value", id);
+                break;
+            case "invoke":
+                if ("processOffer".equals(params.get("operation").getAsString())) {
+                    result.addProperty("value", SDP_ANSWER);
+                }
+                break;
+            case "subscribe":
+                result.addProperty("value", "subscription_" + ids.incrementAndGet());
+                break;
+            case "release":
+                openPipelines.remove(params.get("object").getAsString());
+                break;
+            default:
+                // ping, unsubscribe, ... succeed without a value
+        }
+        transaction.sendResponse(result);
+    }
+
+    public int getOpenPipelines() {
+        return openPipelines.size();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+}
@@ -0,0 +1,52 @@
+package ro.lic.server.load;
+
+import ro.lic.server.websocket.utils.outbound.LatencyHistogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies shared by the simulated clients of a load run.
+ */
+class LoadStats {
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder handshakeFailures = new LongAdder();
+    final LongAdder unexpectedCloses = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    /**
+     * live streams the admins were told stopped, one per admin and stream
+     */
+    final LongAdder streamsStopped = new LongAdder();
+
+    /**
+     * round trip of each request kind, handshake included
+     */
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    void record(String operation, long nanos) {
+        latencies.computeIfAbsent(operation, key -> new LatencyHistogram()).record(nanos);
+    }
+
+    long getFailures() {
+        return handshakeFailures.sum() + unexpectedCloses.sum() + errors.sum();
+    }
+
+    void report(long elapsedNanos, long maxHeapUsed) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("%-24s %10d sent, %10d received, %10.1f msg/s in, %10.1f msg/s out",
+                "messages", sent.sum(), received.sum(), sent.sum() / seconds, received.sum() / seconds));
+        latencies.forEach((operation, latency) -> System.out.println(String.format(
+                "%-24s %10d calls, p50 %8.2f ms, p99 %8.2f ms, p999 %8.2f ms, max %8.2f ms", operation, latency.getCount(),
+                millis(latency, 50), millis(latency, 99), millis(latency, 99.9), latency.getMax(TimeUnit.MICROSECONDS) / 1e3)));
+        System.out.println(String.format("%-24s %10d handshake, %10d closed, %10d errors",
+                "failures", handshakeFailures.sum(), unexpectedCloses.sum(), errors.sum()));
+        System.out.println(String.format("%-24s %10d MB max used", "heap", maxHeapUsed >> 20));
+    }
+
+    private static double millis(LatencyHistogram latency, double percentile) {
+        return latency.getPercentile(percentile, TimeUnit.MICROSECONDS) / 1e3;
+    }
+}
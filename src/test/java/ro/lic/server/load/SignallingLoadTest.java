@@ -0,0 +1,220 @@
+package ro.lic.server.load;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.kurento.client.KurentoClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.beans.factory.support.BeanDefinitionRegistryPostProcessor;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import ro.lic.server.model.dao.UserDao;
+import ro.lic.server.model.enums.Role;
+import ro.lic.server.model.tables.User;
+import ro.lic.server.websocket.EndPointHandler;
+import ro.lic.server.websocket.utils.PresenceService;
+import ro.lic.server.websocket.utils.UserRegistry;
+import ro.lic.server.websocket.utils.subscribe.SubscriberController;
+import ro.lic.server.websocket.utils.subscribe.Topic;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Soak test of the signalling server: {@code load.clients} simulated clients connect through the real handshake,
+ * send locations, subscribe, request the map and stream video for {@code load.duration-s}, then disconnect.
+ * <p> The server runs with its real configuration on a random port, over plain websocket, with an in memory
+ * database ({@code application-load.properties}) and a {@link FakeKurento} media server. Throughput, latency
+ * percentiles of the handshake and of every request, and heap use are printed at the end.</p>
+ * <p> Fails on handshake failures, unexpected disconnects, on a registry, presence or subscriber list out of step
+ * with the connected clients, on media pipelines left open, and when an admin was not told that a stream stopped,
+ * whether the streamer stopped it or just disconnected. The admins disconnect last for that. Only runs when asked, e.g.
+ * {@code mvn test -Dtest=SignallingLoadTest -Dload.clients=2000 -Dload.ramp-up-s=5}, to simulate a shift change.</p>
+ * <p> Other settings: {@code load.duration-s} (60), {@code load.ramp-up-s} (10), {@code load.tick-ms} (1000, the
+ * location rate of a device), {@code load.admin-tick-ms} (5000), {@code load.admin-every} (one admin in 50 clients),
+ * {@code load.streamer-every} (one streamer in 20), {@code load.bcrypt-strength} (10, as the stored passwords).</p>
+ */
+@EnabledIfSystemProperty(named = "load.clients", matches = "\\d+")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("load")
+class SignallingLoadTest {
+    private static final String PASSWORD = "load-test";
+    private static final FakeKurento kurento = new FakeKurento();
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private UserDao userDao;
+
+    @Autowired
+    private UserRegistry registry;
+
+    @Autowired
+    private PresenceService presenceService;
+
+    @Autowired
+    private SubscriberController subscriberController;
+
+    @Autowired
+    private EndPointHandler endPointHandler;
+
+    /**
+     * Replaces the media server client of {@code WebSocketConfiguration} before it is created, it would connect to
+     * a media server.
+     */
+    @TestConfiguration
+    static class FakeKurentoConfiguration {
+        @Bean
+        static BeanDefinitionRegistryPostProcessor fakeKurentoClient() {
+            return new BeanDefinitionRegistryPostProcessor() {
+                @Override
+                public void postProcessBeanDefinitionRegistry(BeanDefinitionRegistry registry) {
+                    registry.removeBeanDefinition("kurentoClient");
+                    registry.registerBeanDefinition("kurentoClient", BeanDefinitionBuilder
+                            .genericBeanDefinition(KurentoClient.class, () -> FakeKurento.client(kurento))
+                            .setDestroyMethodName("destroy")
+                            .getBeanDefinition());
+                }
+
+                @Override
+                public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+                }
+            };
+        }
+    }
+
+    @Test
+    void shiftChange() throws Exception {
+        int clients = Integer.getInteger("load.clients");
+        long durationMillis = TimeUnit.SECONDS.toMillis(Long.getLong("load.duration-s", 60));
+        long rampUpMillis = TimeUnit.SECONDS.toMillis(Long.getLong("load.ramp-up-s", 10));
+        long tickMillis = Long.getLong("load.tick-ms", 1000);
+        long adminTickMillis = Long.getLong("load.admin-tick-ms", 5000);
+        int adminEvery = Integer.getInteger("load.admin-every", 50);
+        int streamerEvery = Integer.getInteger("load.streamer-every", 20);
+
+        LoadStats stats = new LoadStats();
+        List<SimulatedClient> simulated = createUsers(clients, adminEvery, streamerEvery, stats);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        AtomicLong maxHeapUsed = new AtomicLong();
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        scheduler.scheduleAtFixedRate(() -> maxHeapUsed.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                0, 1, TimeUnit.SECONDS);
+
+        StandardWebSocketClient client = new StandardWebSocketClient();
+        URI uri = URI.create("ws://localhost:" + port + "/websocket");
+        ExecutorService connectors = Executors.newFixedThreadPool(64);
+        long start = System.nanoTime();
+        long admins = 0;
+        long streamers = 0;
+        try {
+            // the clients connect spread over the ramp up, as devices do at the start of a shift
+            for (int i = 0; i < simulated.size(); i++) {
+                SimulatedClient current = simulated.get(i);
+                long connectAt = rampUpMillis * i / simulated.size();
+                scheduler.schedule(() -> connectors.execute(() -> {
+                    if (current.connect(client, uri, PASSWORD, 30_000)) {
+                        long interval = current.getKind() == SimulatedClient.Kind.ADMIN ? adminTickMillis : tickMillis;
+                        scheduler.scheduleAtFixedRate(current::tick, ThreadLocalRandom.current().nextLong(interval),
+                                interval, TimeUnit.MILLISECONDS);
+                    }
+                }), connectAt, TimeUnit.MILLISECONDS);
+            }
+            Thread.sleep(rampUpMillis + durationMillis);
+
+            long connected = simulated.stream().filter(SimulatedClient::isReady).count();
+            admins = simulated.stream().filter(c -> c.getKind() == SimulatedClient.Kind.ADMIN && c.isReady()).count();
+            streamers = simulated.stream().filter(c -> c.getKind() == SimulatedClient.Kind.STREAMER && c.isReady()).count();
+            assertEquals(clients, connected, "connected clients");
+            assertEquals(connected, registry.size(), "registered sessions");
+            assertEquals(connected, presenceService.getOnlineCount(), "online users");
+            assertEquals(streamers, endPointHandler.getRecordPipelineCount(), "record pipelines");
+            for (Topic topic : Topic.values()) {
+                assertEquals(admins, subscriberController.getSubscribers(topic).size(), "subscribers of " + topic);
+            }
+        } finally {
+            scheduler.shutdownNow();
+            connectors.shutdownNow();
+            for (SimulatedClient current : simulated) {
+                if (current.getKind() != SimulatedClient.Kind.ADMIN) {
+                    current.disconnect();
+                }
+            }
+        }
+
+        try {
+            awaitZero(endPointHandler::getRecordPipelineCount, "record pipelines");
+            await(stats.streamsStopped::sum, admins * streamers, "streams the admins were told stopped");
+        } finally {
+            for (SimulatedClient current : simulated) {
+                current.disconnect();
+            }
+            stats.report(System.nanoTime() - start, maxHeapUsed.get());
+        }
+
+        // every trace of the clients must be gone once they disconnected
+        awaitZero(registry::size, "registered sessions");
+        awaitZero(presenceService::getOnlineCount, "online users");
+        awaitZero(() -> subscriberController.getSubscribers(Topic.USER_LIST).size(), "subscribers");
+        awaitZero(endPointHandler::getRecordPipelineCount, "record pipelines");
+        awaitZero(kurento::getOpenPipelines, "media pipelines on the media server");
+        assertEquals(0, stats.getFailures(), "handshake failures, unexpected closes and errors");
+    }
+
+    private List<SimulatedClient> createUsers(int clients, int adminEvery, int streamerEvery, LoadStats stats) {
+        String hash = new BCryptPasswordEncoder(Integer.getInteger("load.bcrypt-strength", 10)).encode(PASSWORD);
+        List<User> users = new ArrayList<>(clients);
+        List<SimulatedClient> simulated = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            SimulatedClient.Kind kind = i % adminEvery == 0 ? SimulatedClient.Kind.ADMIN
+                    : i % streamerEvery == 1 ? SimulatedClient.Kind.STREAMER : SimulatedClient.Kind.DEVICE;
+            String username = "load" + i;
+            users.add(new User(kind == SimulatedClient.Kind.ADMIN ? Role.ADMIN : Role.USER, username, hash,
+                    "Load " + i, "Cluj-Napoca", "0700000000", new Date(), "00:00", "23:59"));
+            // every other streamer closes with its stream running
+            boolean stopsStream = (i / streamerEvery) % 2 == 0;
+            simulated.add(new SimulatedClient(username, kind, stopsStream, stats));
+        }
+        userDao.saveAll(users);
+        return simulated;
+    }
+
+    private static void awaitZero(IntSupplier count, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (count.getAsInt() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, count.getAsInt(), what + " left after the clients disconnected");
+    }
+
+    private static void await(LongSupplier count, long expected, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (count.getAsLong() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(expected, count.getAsLong(), what);
+    }
+}
@@ -0,0 +1,231 @@
+package ro.lic.server.load;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A field device or an admin console, speaking the protocol of the server over a real websocket.
+ * <p> Devices send their location on every tick, some of them also stream video. Half of the streamers stop their
+ * stream before closing, the others close with the stream running, as a device losing its connection. Admins count
+ * the streams they are told stopped. Admins subscribe to the user
+ * list, the map and the live streams, watch an area of the map and request the map items and the online users on
+ * every tick. Requests are timed from send to answer, with at most one pending request of each kind.</p>
+ */
+class SimulatedClient extends TextWebSocketHandler {
+
+    enum Kind {
+        DEVICE, STREAMER, ADMIN
+    }
+
+    private static final String SDP_OFFER = "v=0\\r\\no=- 4611731400430051336 2 IN IP4 127.0.0.1\\r\\ns=-\\r\\nt=0 0\\r\\n" +
+            "a=group:BUNDLE 0 1\\r\\nm=audio 9 UDP/TLS/RTP/SAVPF 111\\r\\nc=IN IP4 0.0.0.0\\r\\na=mid:0\\r\\na=sendonly\\r\\n" +
+            "a=rtcp-mux\\r\\na=rtpmap:111 opus/48000/2\\r\\na=ice-ufrag:Vx3n\\r\\na=ice-pwd:4ZcD2nZ1eRhTqQ0h3m8QpG1y\\r\\n" +
+            "a=setup:actpass\\r\\nm=video 9 UDP/TLS/RTP/SAVPF 96\\r\\nc=IN IP4 0.0.0.0\\r\\na=mid:1\\r\\na=sendonly\\r\\n" +
+            "a=rtcp-mux\\r\\na=rtpmap:96 VP8/90000\\r\\na=rtcp-fb:96 nack pli\\r\\n";
+
+    private final String username;
+    private final Kind kind;
+    private final boolean stopsStream;
+    private final LoadStats stats;
+
+    /**
+     * send time of the pending requests, by event of the expected answer
+     */
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+
+    private volatile WebSocketSession session;
+    private volatile String token;
+    private volatile long mapVersion = -1;
+    private volatile boolean closing;
+    private long connectStart;
+    private double lat = 46.77 + ThreadLocalRandom.current().nextDouble(-0.1, 0.1);
+    private double lng = 23.59 + ThreadLocalRandom.current().nextDouble(-0.1, 0.1);
+
+    /**
+     * @param stopsStream true if a streamer stops its stream before closing
+     */
+    SimulatedClient(String username, Kind kind, boolean stopsStream, LoadStats stats) {
+        this.username = username;
+        this.kind = kind;
+        this.stopsStream = stopsStream;
+        this.stats = stats;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    boolean isReady() {
+        return token != null && session != null && session.isOpen();
+    }
+
+    /**
+     * Opens the websocket with the handshake headers of the application, the token arrives as the first message.
+     *
+     * @return false if the handshake failed
+     */
+    boolean connect(StandardWebSocketClient client, URI uri, String password, long timeoutMillis) {
+        WebSocketHttpHeaders headers = new WebSocketHttpHeaders();
+        headers.add("username", username);
+        headers.add("password", password);
+        connectStart = System.nanoTime();
+        try {
+            session = client.doHandshake(this, headers, uri).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            stats.handshakeFailures.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Sends what the client sends periodically, nothing until it got its token.
+     */
+    void tick() {
+        if (!isReady()) {
+            return;
+        }
+        if (kind == Kind.ADMIN) {
+            send("requestMapItems", message("request", "requestMapItems") + ",\"version\":" + mapVersion + "}");
+            send("requestOnlineUsers", message("request", "requestOnlineUsers") + "}");
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            lat += random.nextDouble(-0.0005, 0.0005);
+            lng += random.nextDouble(-0.0005, 0.0005);
+            send(null, message("update", "location") + ",\"payload\":{\"lat\":" + lat + ",\"lng\":" + lng + "}}");
+        }
+    }
+
+    /**
+     * Stops the video stream, if any and if the client does, and closes the websocket.
+     */
+    void disconnect() {
+        closing = true;
+        if (isReady() && kind == Kind.STREAMER && stopsStream) {
+            send(null, message("media", "stopVideoStreamRequest") + "}");
+        }
+        WebSocketSession current = session;
+        if (current != null && current.isOpen()) {
+            try {
+                current.close(CloseStatus.NORMAL);
+            } catch (IOException e) {
+                stats.errors.increment();
+            }
+        }
+    }
+
+    private void onToken(String token) {
+        stats.record("handshake", System.nanoTime() - connectStart);
+        this.token = token;
+        switch (kind) {
+            case ADMIN:
+                send(null, message("subscribe", "userUpdated") + "}");
+                send(null, message("subscribe", "mapItems") + "}");
+                send(null, message("subscribe", "liveStreamers") + "}");
+                send(null, message("subscribe", "viewport") + ",\"payload\":{\"north\":46.87,\"south\":46.67,\"east\":23.69,\"west\":23.49}}");
+                break;
+            case STREAMER:
+                send("startVideoStreaming", message("media", "startVideoStreamRequest") + ",\"sdpOffer\":\"" + SDP_OFFER + "\"}");
+                break;
+            default:
+        }
+    }
+
+    private String message(String method, String event) {
+        return "{\"method\":\"" + method + "\",\"event\":\"" + event + "\",\"token\":\"" + token + "\"";
+    }
+
+    /**
+     * @param answerEvent event of the answer to time, null if the message has no answer
+     */
+    private void send(String answerEvent, String text) {
+        if (answerEvent != null && pending.putIfAbsent(answerEvent, System.nanoTime()) != null) {
+            // the previous request is still pending
+            return;
+        }
+        WebSocketSession current = session;
+        try {
+            // a websocket session must not be written concurrently
+            synchronized (current) {
+                current.sendMessage(new TextMessage(text));
+            }
+            stats.sent.increment();
+        } catch (IOException | IllegalStateException e) {
+            if (!closing) {
+                stats.errors.increment();
+            }
+        }
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        // the token may arrive before the handshake future completes
+        this.session = session;
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        long received = System.nanoTime();
+        stats.received.increment();
+        String payload = message.getPayload();
+        if (!payload.startsWith("{")) {
+            // "json error"
+            stats.errors.increment();
+            return;
+        }
+        JsonObject json = JsonParser.parseString(payload).getAsJsonObject();
+        JsonElement method = json.get("method");
+        if (method != null && "token".equals(method.getAsString())) {
+            onToken(json.get("token").getAsString());
+            return;
+        }
+        JsonElement event = json.get("event");
+        if (event == null) {
+            return;
+        }
+        JsonElement status = json.get("status");
+        if ("liveStreamers".equals(event.getAsString()) && status != null && "stopped".equals(status.getAsString())) {
+            stats.streamsStopped.increment();
+        }
+        Long sent = pending.remove(event.getAsString());
+        if (sent != null) {
+            stats.record(event.getAsString(), received - sent);
+        }
+        JsonElement version = json.get("version");
+        if (version != null && "requestMapItems".equals(event.getAsString())) {
+            mapVersion = version.getAsLong();
+        }
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        if (!closing) {
+            stats.errors.increment();
+        }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        if (!closing) {
+            stats.unexpectedCloses.increment();
+        }
+    }
+}
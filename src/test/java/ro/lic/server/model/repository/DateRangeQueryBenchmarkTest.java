@@ -0,0 +1,146 @@
+package ro.lic.server.model.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the day queries on {@code Date(datetime) = :date} with the half-open range queries, on a copy of the
+ * server log table holding {@code benchmark.rows} entries (10M by default).
+ * <p> Only runs against a scratch MySQL database given with {@code -Dbenchmark.jdbc.url}, e.g.
+ * {@code mvn test -Dtest=DateRangeQueryBenchmarkTest -Dbenchmark.jdbc.url=jdbc:mysql://localhost:3306/bench?rewriteBatchedStatements=true
+ * -Dbenchmark.jdbc.user=root -Dbenchmark.jdbc.password=...}. The table is filled once and reused by later runs.</p>
+ */
+@EnabledIfSystemProperty(named = "benchmark.jdbc.url", matches = ".+")
+class DateRangeQueryBenchmarkTest {
+    private static final String TABLE = "server_log_benchmark";
+    private static final int DAYS = 365;
+    private static final int USERS = 1000;
+    private static final int RUNS = 7;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long FIRST_DAY = Timestamp.valueOf("2020-01-01 00:00:00").getTime();
+
+    private static final String DATE_QUERY = "select * from " + TABLE + " where Date(datetime) = ? order by Time(datetime) DESC";
+    private static final String USER_DATE_QUERY = "select * from " + TABLE + " where user_id = ? and Date(datetime) = ? order by Time(datetime) DESC";
+    private static final String RANGE_QUERY = "select * from " + TABLE + " where datetime >= ? and datetime < ? order by datetime DESC";
+    private static final String USER_RANGE_QUERY = "select * from " + TABLE + " where user_id = ? and datetime >= ? and datetime < ? order by datetime DESC";
+
+    @Test
+    void compareDayQueries() throws SQLException {
+        long rows = Long.getLong("benchmark.rows", 10_000_000L);
+        try (Connection connection = DriverManager.getConnection(System.getProperty("benchmark.jdbc.url"),
+                System.getProperty("benchmark.jdbc.user"), System.getProperty("benchmark.jdbc.password"))) {
+            fill(connection, rows);
+
+            // a day in the middle of the table, the same for both queries
+            long day = FIRST_DAY + DAYS / 2 * DAY_MILLIS;
+            String date = new Timestamp(day).toString().substring(0, 10);
+            long userId = USERS / 2;
+
+            int dateRows = count(connection, DATE_QUERY, date);
+            int rangeRows = count(connection, RANGE_QUERY, new Timestamp(day), new Timestamp(day + DAY_MILLIS));
+            assertEquals(dateRows, rangeRows, "both queries must return the same day");
+
+            report("day, Date(datetime)", time(connection, DATE_QUERY, date));
+            report("day, range", time(connection, RANGE_QUERY, new Timestamp(day), new Timestamp(day + DAY_MILLIS)));
+            report("user and day, Date(datetime)", time(connection, USER_DATE_QUERY, userId, date));
+            report("user and day, range", time(connection, USER_RANGE_QUERY, userId, new Timestamp(day), new Timestamp(day + DAY_MILLIS)));
+        }
+    }
+
+    /**
+     * Creates the table with the indexes declared on {@link ro.lic.server.model.tables.ServerLog} and fills it with
+     * entries spread over a year, unless it already holds the requested number of rows.
+     */
+    private static void fill(Connection connection, long rows) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create table if not exists " + TABLE + " (" +
+                    "id bigint not null auto_increment primary key, " +
+                    "datetime datetime(6) not null, " +
+                    "user_id bigint, " +
+                    "importance varchar(255) not null, " +
+                    "description varchar(300) not null, " +
+                    "action_type varchar(255) not null, " +
+                    "username varchar(255), " +
+                    "index idx_server_log_user_datetime (user_id, datetime), " +
+                    "index idx_server_log_datetime (datetime))");
+            try (ResultSet resultSet = statement.executeQuery("select count(*) from " + TABLE)) {
+                resultSet.next();
+                if (resultSet.getLong(1) == rows) {
+                    return;
+                }
+            }
+            statement.execute("truncate table " + TABLE);
+        }
+
+        connection.setAutoCommit(false);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try (PreparedStatement insert = connection.prepareStatement("insert into " + TABLE +
+                " (datetime, user_id, importance, description, action_type, username) values (?, ?, 'INFO', 'User logged in.', 'LOGIN', ?)")) {
+            for (long i = 1; i <= rows; i++) {
+                long userId = random.nextInt(USERS);
+                insert.setTimestamp(1, new Timestamp(FIRST_DAY + random.nextLong(DAYS * DAY_MILLIS)));
+                insert.setLong(2, userId);
+                insert.setString(3, "user" + userId);
+                insert.addBatch();
+                if (i % 10_000 == 0 || i == rows) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private static int count(Connection connection, String query, Object... parameters) throws SQLException {
+        try (PreparedStatement statement = prepare(connection, query, parameters);
+             ResultSet resultSet = statement.executeQuery()) {
+            int count = 0;
+            while (resultSet.next()) {
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return the times of the runs in milliseconds, sorted, after one warm up run
+     */
+    private static double[] time(Connection connection, String query, Object... parameters) throws SQLException {
+        count(connection, query, parameters);
+        double[] times = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            count(connection, query, parameters);
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static PreparedStatement prepare(Connection connection, String query, Object... parameters) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(query);
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+        return statement;
+    }
+
+    private static void report(String name, double[] times) {
+        System.out.println(String.format("%-30s median %10.2f ms, min %10.2f ms, max %10.2f ms",
+                name, times[times.length / 2], times[0], times[times.length - 1]));
+    }
+}
@@ -0,0 +1,69 @@
+package ro.lic.server.model.repository;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeysetPageTest {
+
+    @Test
+    void lastPageHasNoCursor() {
+        KeysetPage<Integer> page = KeysetPage.of(List.of(1, 2, 3), 3, row -> new KeysetPage.Cursor(null, row));
+        assertEquals(List.of(1, 2, 3), page.getItems());
+        assertNull(page.getNext());
+
+        assertTrue(KeysetPage.empty().getItems().isEmpty());
+        assertNull(KeysetPage.empty().getNext());
+    }
+
+    @Test
+    void cursorPointsAfterTheLastItem() {
+        // the query reads one row more than the limit
+        KeysetPage<Integer> page = KeysetPage.of(List.of(1, 2, 3, 4), 3, row -> new KeysetPage.Cursor("name" + row, row));
+        assertEquals(List.of(1, 2, 3), page.getItems());
+
+        KeysetPage.Cursor next = KeysetPage.Cursor.decode(page.getNext());
+        assertEquals("name3", next.getKey());
+        assertEquals(3, next.getId());
+    }
+
+    @Test
+    void cursorRoundTrip() {
+        KeysetPage.Cursor cursor = KeysetPage.Cursor.decode(new KeysetPage.Cursor("Ion: Popescu/ĂÎ", -42).encode());
+        assertEquals("Ion: Popescu/ĂÎ", cursor.getKey());
+        assertEquals(-42, cursor.getId());
+
+        KeysetPage.Cursor empty = KeysetPage.Cursor.decode(new KeysetPage.Cursor("", 7).encode());
+        assertEquals("", empty.getKey());
+        assertEquals(7, empty.getId());
+    }
+
+    @Test
+    void cursorWithoutKeyRoundTrip() {
+        KeysetPage.Cursor cursor = KeysetPage.Cursor.decode(new KeysetPage.Cursor(null, 12).encode());
+        assertNull(cursor.getKey());
+        assertEquals(12, cursor.getId());
+    }
+
+    @Test
+    void cursorIsUrlSafe() {
+        String encoded = new KeysetPage.Cursor("???>>>", Long.MAX_VALUE).encode();
+        assertTrue(encoded.matches("[A-Za-z0-9_-]+"), encoded);
+    }
+
+    @Test
+    void rejectsInvalidCursors() {
+        assertThrows(IllegalArgumentException.class, () -> KeysetPage.Cursor.decode("not base64!"));
+        assertThrows(IllegalArgumentException.class, () -> KeysetPage.Cursor.decode(encode("abc")));
+        assertThrows(IllegalArgumentException.class, () -> KeysetPage.Cursor.decode(encode("abc:name")));
+        assertThrows(IllegalArgumentException.class, () -> KeysetPage.Cursor.decode(encode("")));
+    }
+
+    private static String encode(String text) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
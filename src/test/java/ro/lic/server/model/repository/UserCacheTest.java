@@ -0,0 +1,130 @@
+package ro.lic.server.model.repository;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import ro.lic.server.model.enums.Role;
+import ro.lic.server.model.enums.Status;
+import ro.lic.server.model.tables.User;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserCacheTest {
+    private static final long TTL_MILLIS = 60_000;
+
+    @Test
+    void getsByUsernameAndById() {
+        UserCache cache = new UserCache(10, TTL_MILLIS);
+        User ana = user(1, "ana");
+        cache.put(ana, cache.generation());
+
+        assertSame(ana, cache.get("ana"));
+        assertSame(ana, cache.get(1L));
+        assertNull(cache.get("bob"));
+        assertNull(cache.get(2L));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void expiredEntriesAreMisses() {
+        UserCache cache = new UserCache(10, -1);
+        cache.put(user(1, "ana"), cache.generation());
+
+        assertNull(cache.get("ana"));
+        assertEquals(0, cache.size());
+        assertNull(cache.get(1L));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsed() {
+        UserCache cache = new UserCache(2, TTL_MILLIS);
+        cache.put(user(1, "ana"), cache.generation());
+        cache.put(user(2, "bob"), cache.generation());
+        // ana is now more recent than bob
+        cache.get("ana");
+        cache.put(user(3, "cid"), cache.generation());
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("bob"));
+        assertNull(cache.get(2L));
+        assertNotNull(cache.get("ana"));
+        assertNotNull(cache.get("cid"));
+    }
+
+    @Test
+    void putReplacesTheEntryOfTheUser() {
+        UserCache cache = new UserCache(10, TTL_MILLIS);
+        cache.put(user(1, "ana"), cache.generation());
+        User renamed = user(1, "ana");
+        cache.put(renamed, cache.generation());
+
+        assertEquals(1, cache.size());
+        assertSame(renamed, cache.get(1L));
+    }
+
+    @Test
+    void userLoadedBeforeAnInvalidationIsNotCached() {
+        UserCache cache = new UserCache(10, TTL_MILLIS);
+        long loadedAt = cache.generation();
+        // changed while it was read
+        cache.invalidate("ana");
+        cache.put(user(1, "ana"), loadedAt);
+        assertNull(cache.get("ana"));
+
+        loadedAt = cache.generation();
+        cache.invalidateAll();
+        cache.put(user(1, "ana"), loadedAt);
+        assertEquals(0, cache.size());
+
+        cache.put(user(1, "ana"), cache.generation());
+        assertNotNull(cache.get("ana"));
+    }
+
+    @Test
+    void invalidateRemovesBothIndexes() {
+        UserCache cache = new UserCache(10, TTL_MILLIS);
+        cache.put(user(1, "ana"), cache.generation());
+        cache.put(user(2, "bob"), cache.generation());
+
+        cache.invalidate("ana");
+        assertNull(cache.get("ana"));
+        assertNull(cache.get(1L));
+        assertNotNull(cache.get(2L));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(2L));
+    }
+
+    @Test
+    void updateStatusReplacesTheCachedUser() {
+        UserCache cache = new UserCache(10, TTL_MILLIS);
+        User ana = user(1, "ana");
+        cache.put(ana, cache.generation());
+        long loadedAt = cache.generation();
+
+        cache.updateStatus("ana", Status.ONLINE.name());
+        User updated = cache.get("ana");
+        assertNotSame(ana, updated);
+        assertEquals(Status.ONLINE.name(), updated.getStatus());
+        assertEquals(Status.OFFLINE.name(), ana.getStatus());
+        assertSame(updated, cache.get(1L));
+
+        // a load started before the change may hold the previous status
+        cache.put(user(1, "ana"), loadedAt);
+        assertSame(updated, cache.get("ana"));
+
+        // nothing is cached for an user who is not
+        cache.updateStatus("bob", Status.ONLINE.name());
+        assertNull(cache.get("bob"));
+    }
+
+    private static User user(long id, String username) {
+        User user = new User(Role.USER, username, "password", username, "address", "0700000000", new Date(), "08:00", "16:00");
+        ReflectionTestUtils.setField(user, "id", id);
+        return user;
+    }
+}
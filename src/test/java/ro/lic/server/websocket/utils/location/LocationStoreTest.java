@@ -0,0 +1,170 @@
+package ro.lic.server.websocket.utils.location;
+
+import org.junit.jupiter.api.Test;
+import ro.lic.server.model.non_db_models.UserLocation;
+import ro.lic.server.websocket.utils.message.BinaryCodec;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocationStoreTest {
+
+    @Test
+    void internsEachUserOnce() {
+        LocationStore store = new LocationStore();
+        assertEquals(-1, store.findSlot("ana"));
+
+        int ana = store.slotOf("ana");
+        int bob = store.slotOf("bob");
+        assertEquals(ana, store.slotOf("ana"));
+        assertEquals(ana, store.findSlot("ana"));
+        assertNotEquals(ana, bob);
+        assertEquals(2, store.size());
+        assertEquals("bob", store.usernameOf(bob));
+    }
+
+    @Test
+    void slotsSpanSegments() {
+        LocationStore store = new LocationStore();
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(i, store.slotOf("user" + i));
+        }
+        assertEquals("user2999", store.usernameOf(2999));
+
+        store.write(2999, 45.5, 25.5, 1);
+        LocationStore.Reading reading = new LocationStore.Reading();
+        assertTrue(store.read(2999, reading));
+        assertEquals(45.5, reading.lat);
+        assertFalse(store.read(1024, reading));
+    }
+
+    @Test
+    void writesAreStampedWithTheHeadOfTheSequence() {
+        LocationStore store = new LocationStore();
+        int ana = store.slotOf("ana");
+        int bob = store.slotOf("bob");
+        assertEquals(0, store.head());
+
+        long first = store.write(ana, 44.4, 26.1, 100);
+        long second = store.write(bob, 46.7, 23.6, 200);
+        assertEquals(1, first);
+        assertEquals(2, second);
+        assertEquals(second, store.head());
+
+        LocationStore.Reading reading = new LocationStore.Reading();
+        assertTrue(store.read(ana, reading));
+        assertEquals(44.4, reading.lat);
+        assertEquals(26.1, reading.lng);
+        assertEquals(first, reading.sequence);
+        assertEquals(100, reading.timestamp);
+        assertFalse(reading.removed);
+
+        assertEquals(3, store.write(ana, 44.5, 26.2, 300));
+        assertTrue(store.read(ana, reading));
+        assertEquals(3, reading.sequence);
+    }
+
+    @Test
+    void slotNeverWrittenIsEmpty() {
+        LocationStore store = new LocationStore();
+        int ana = store.slotOf("ana");
+        assertFalse(store.read(ana, new LocationStore.Reading()));
+
+        // clearing it takes no sequence number
+        store.clear(ana);
+        assertEquals(0, store.head());
+        assertFalse(store.read(ana, new LocationStore.Reading()));
+    }
+
+    @Test
+    void clearedSlotIsReadAsRemoved() {
+        LocationStore store = new LocationStore();
+        int ana = store.slotOf("ana");
+        store.write(ana, 44.4, 26.1, 100);
+
+        store.clear(ana);
+        assertEquals(2, store.head());
+
+        LocationStore.Reading reading = new LocationStore.Reading();
+        assertTrue(store.read(ana, reading));
+        assertTrue(reading.removed);
+        assertEquals(2, reading.sequence);
+        // the last position is kept
+        assertEquals(44.4, reading.lat);
+
+        UserLocation location = new UserLocation(1, 2);
+        assertFalse(store.read(ana, location, reading));
+        assertEquals(1, location.getLat());
+
+        store.write(ana, 45.0, 27.0, 200);
+        assertTrue(store.read(ana, location, reading));
+        assertFalse(reading.removed);
+        assertEquals(45.0, location.getLat());
+        assertEquals(27.0, location.getLng());
+    }
+
+    @Test
+    void removalIsSentWithoutPosition() {
+        LocationStore store = new LocationStore();
+        int ana = store.slotOf("ana");
+        store.write(ana, 44.4, 26.1, 100);
+        store.clear(ana);
+        LocationStore.Reading reading = new LocationStore.Reading();
+        store.read(ana, reading);
+
+        LocationUpdate removal = reading.toUpdate("ana");
+        assertTrue(removal.isRemoved());
+        ByteBuffer frame = ByteBuffer.wrap(BinaryCodec.encodeMapItemLocations(List.of(removal)));
+        assertEquals(BinaryCodec.TYPE_MAP_ITEM_LOCATIONS, frame.get());
+        assertEquals(1, frame.getShort());
+        assertTrue(Double.isNaN(frame.getDouble()));
+        assertTrue(Double.isNaN(frame.getDouble()));
+    }
+
+    @Test
+    void readersNeverSeeHalfWrittenPositions() throws InterruptedException {
+        LocationStore store = new LocationStore();
+        int slot = store.slotOf("ana");
+        int writes = 200_000;
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        // every position written has lng == -lat and a timestamp equal to lat
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= writes; i++) {
+                store.write(slot, i, -i, i);
+            }
+        });
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                LocationStore.Reading reading = new LocationStore.Reading();
+                long lastSequence = 0;
+                while (lastSequence < writes) {
+                    if (!store.read(slot, reading)) {
+                        continue;
+                    }
+                    if (reading.lng != -reading.lat || reading.timestamp != (long) reading.lat
+                            || reading.sequence != reading.timestamp || reading.sequence < lastSequence) {
+                        failure.compareAndSet(null, String.format("lat=%s lng=%s timestamp=%d sequence=%d after %d",
+                                reading.lat, reading.lng, reading.timestamp, reading.sequence, lastSequence));
+                        return;
+                    }
+                    lastSequence = reading.sequence;
+                }
+            });
+        }
+
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+}
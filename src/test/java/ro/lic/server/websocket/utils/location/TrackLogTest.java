@@ -0,0 +1,136 @@
+package ro.lic.server.websocket.utils.location;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrackLogTest {
+    private static final long MAX_TIME = Long.MAX_VALUE;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void queryReturnsThePointsOfOneUserInOrder() throws Exception {
+        TrackLog trackLog = open(30);
+        try {
+            trackLog.append(1, 44.1, 26.1);
+            trackLog.append(2, 45.0, 27.0);
+            trackLog.append(1, 44.2, 26.2);
+            trackLog.append(1, 44.3, 26.3);
+
+            List<TrackPoint> points = trackLog.query(1, 0, MAX_TIME);
+            assertEquals(3, points.size());
+            assertEquals(44.1, points.get(0).getLat());
+            assertEquals(26.3, points.get(2).getLng());
+            for (int i = 1; i < points.size(); i++) {
+                assertTrue(points.get(i).getTime() >= points.get(i - 1).getTime());
+            }
+            assertEquals(1, trackLog.query(2, 0, MAX_TIME).size());
+            assertTrue(trackLog.query(3, 0, MAX_TIME).isEmpty());
+        } finally {
+            trackLog.close();
+        }
+    }
+
+    @Test
+    void queryIsHalfOpen() throws Exception {
+        TrackLog trackLog = open(30);
+        try {
+            trackLog.append(1, 44.1, 26.1);
+            long time = trackLog.query(1, 0, MAX_TIME).get(0).getTime();
+
+            assertEquals(1, trackLog.query(1, time, time + 1).size());
+            assertTrue(trackLog.query(1, time + 1, MAX_TIME).isEmpty());
+            assertTrue(trackLog.query(1, 0, time).isEmpty());
+        } finally {
+            trackLog.close();
+        }
+    }
+
+    @Test
+    void appendsContinueInANewSegmentWhenOneIsFull() throws Exception {
+        // 1 MB segments hold 32768 records
+        int records = 1024 * 1024 / TrackLog.RECORD_SIZE + 10;
+        TrackLog trackLog = open(30);
+        try {
+            for (int i = 0; i < records; i++) {
+                trackLog.append(i % 2, i, -i);
+            }
+            List<TrackPoint> points = trackLog.query(0, 0, MAX_TIME);
+            assertEquals(records / 2, points.size());
+            assertEquals(records - 2, points.get(points.size() - 1).getLat());
+        } finally {
+            trackLog.close();
+        }
+        assertTrue(segments().size() >= 2);
+    }
+
+    @Test
+    void reopenedLogContinuesAfterTheLastRecord() throws Exception {
+        TrackLog trackLog = open(30);
+        trackLog.append(1, 44.1, 26.1);
+        trackLog.append(1, 44.2, 26.2);
+        trackLog.close();
+
+        TrackLog reopened = open(30);
+        try {
+            reopened.append(1, 44.3, 26.3);
+            List<TrackPoint> points = reopened.query(1, 0, MAX_TIME);
+            assertEquals(3, points.size());
+            assertEquals(44.3, points.get(2).getLat());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void daysOlderThanTheRetentionAreDeleted() throws Exception {
+        LocalDate today = LocalDate.now();
+        Path old = directory.resolve(String.format("track-%s-000.log", today.minusDays(3)));
+        Path kept = directory.resolve(String.format("track-%s-000.log", today.minusDays(1)));
+        Files.write(old, new byte[TrackLog.RECORD_SIZE]);
+        Files.write(kept, new byte[TrackLog.RECORD_SIZE]);
+
+        TrackLog trackLog = open(2);
+        trackLog.append(1, 44.1, 26.1);
+        trackLog.close();
+
+        assertFalse(Files.exists(old));
+        assertTrue(Files.exists(kept));
+    }
+
+    @Test
+    void retentionKeepsAtLeastToday() {
+        assertThrows(IllegalArgumentException.class, () -> new TrackLog(directory.toString(), 1, 0));
+    }
+
+    @Test
+    void appendAfterCloseIsIgnored() throws Exception {
+        TrackLog trackLog = open(30);
+        trackLog.close();
+        trackLog.append(1, 44.1, 26.1);
+        assertTrue(trackLog.query(1, 0, MAX_TIME).isEmpty());
+    }
+
+    private TrackLog open(int retentionDays) throws IOException {
+        TrackLog trackLog = new TrackLog(directory.toString(), 1, retentionDays);
+        trackLog.open();
+        return trackLog;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("track-")).collect(Collectors.toList());
+        }
+    }
+}
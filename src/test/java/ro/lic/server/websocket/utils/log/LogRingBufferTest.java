@@ -0,0 +1,112 @@
+package ro.lic.server.websocket.utils.log;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogRingBufferTest {
+
+    @Test
+    void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(8, new LogRingBuffer(5).capacity());
+        assertEquals(8, new LogRingBuffer(8).capacity());
+        assertEquals(1024, new LogRingBuffer(1000).capacity());
+    }
+
+    @Test
+    void drainsInOrder() {
+        LogRingBuffer buffer = new LogRingBuffer(8);
+        Object[] arguments = {"ana"};
+        assertTrue(buffer.offer(EventLog.Level.INFO, null, "first {}", arguments));
+        assertTrue(buffer.offer(EventLog.Level.WARN, null, "second", null));
+
+        List<String> formats = new ArrayList<>();
+        assertEquals(2, buffer.drain(entry -> {
+            formats.add(entry.format);
+            if (entry.level == EventLog.Level.INFO) {
+                assertSame(arguments, entry.arguments);
+                assertEquals(Thread.currentThread().getName(), entry.thread);
+            }
+        }, 10));
+        assertEquals(List.of("first {}", "second"), formats);
+        assertEquals(0, buffer.drain(entry -> fail("drained twice"), 10));
+    }
+
+    @Test
+    void refusesEventsWhenFull() {
+        LogRingBuffer buffer = new LogRingBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(EventLog.Level.INFO, null, "event " + i, null));
+        }
+        assertFalse(buffer.offer(EventLog.Level.INFO, null, "refused", null));
+
+        // a drained slot is reused
+        assertEquals(1, buffer.drain(entry -> assertEquals("event 0", entry.format), 1));
+        assertTrue(buffer.offer(EventLog.Level.INFO, null, "event 4", null));
+
+        List<String> formats = new ArrayList<>();
+        buffer.drain(entry -> formats.add(entry.format), 10);
+        assertEquals(List.of("event 1", "event 2", "event 3", "event 4"), formats);
+    }
+
+    @Test
+    void slotIsFreedWhenTheConsumerFails() {
+        LogRingBuffer buffer = new LogRingBuffer(2);
+        buffer.offer(EventLog.Level.ERROR, null, "failing", null);
+        assertThrows(IllegalStateException.class, () -> buffer.drain(entry -> {
+            throw new IllegalStateException();
+        }, 10));
+        assertTrue(buffer.offer(EventLog.Level.INFO, null, "next", null));
+        assertEquals(1, buffer.drain(entry -> assertEquals("next", entry.format), 10));
+    }
+
+    @Test
+    void manyProducersLoseNothing() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 20_000;
+        LogRingBuffer buffer = new LogRingBuffer(1024);
+        CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    // the event of a producer carries its index, so the order can be checked per producer
+                    while (!buffer.offer(EventLog.Level.DEBUG, null, "event", new Object[]{producer, i})) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        int[] next = new int[producers];
+        int total = producers * perProducer;
+        int drained = 0;
+        start.countDown();
+        while (drained < total) {
+            drained += buffer.drain(entry -> {
+                int producer = (Integer) entry.arguments[0];
+                assertEquals(next[producer], (int) (Integer) entry.arguments[1]);
+                next[producer]++;
+            }, 256);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int count : next) {
+            assertEquals(perProducer, count);
+        }
+        assertEquals(0, buffer.drain(entry -> fail("drained more than offered"), 10));
+    }
+}
@@ -0,0 +1,95 @@
+package ro.lic.server.websocket.utils.message;
+
+import org.junit.jupiter.api.Test;
+import org.kurento.client.IceCandidate;
+import ro.lic.server.websocket.utils.location.LocationUpdatePipeline;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ro.lic.server.constants.JsonConstants.*;
+
+class BinaryCodecTest {
+
+    @Test
+    void decodesLocation() {
+        ByteBuffer frame = ByteBuffer.allocate(17).put(BinaryCodec.TYPE_LOCATION).putDouble(44.43).putDouble(26.10).flip();
+
+        InboundMessage message = BinaryCodec.decode(frame, "token");
+        assertEquals("update", message.getMethod());
+        assertEquals("location", message.getEvent());
+        assertEquals("token", message.getToken());
+        assertTrue(message.hasLocation());
+        assertEquals(44.43, message.getLat());
+        assertEquals(26.10, message.getLng());
+    }
+
+    @Test
+    void iceCandidateRoundTrip() {
+        IceCandidate candidate = new IceCandidate("candidate:1 1 UDP 2122 192.168.1.2 50000 typ host", "video", 1);
+
+        InboundMessage message = BinaryCodec.decode(ByteBuffer.wrap(BinaryCodec.encodeIceCandidate(SEND_ICE_FOR_LIVE, candidate)), "token");
+        assertEquals("media", message.getMethod());
+        assertEquals("iceCandidate", message.getEvent());
+        assertEquals(ICE_FOR_LIVE, message.getIceFor());
+        assertEquals(candidate.getCandidate(), message.getCandidate());
+        assertEquals("video", message.getSdpMid());
+        assertEquals(1, message.getSdpMLineIndex());
+    }
+
+    @Test
+    void iceCandidateWithoutMediaIdRoundTrip() {
+        IceCandidate candidate = new IceCandidate("candidate:2 1 TCP 1518 10.0.0.1 9 typ host", null, 65535);
+
+        InboundMessage rec = BinaryCodec.decode(ByteBuffer.wrap(BinaryCodec.encodeIceCandidate(SEND_ICE_FOR_REC, candidate)), "token");
+        assertEquals(ICE_FOR_REC, rec.getIceFor());
+        assertNull(rec.getSdpMid());
+        assertEquals(65535, rec.getSdpMLineIndex());
+
+        InboundMessage play = BinaryCodec.decode(ByteBuffer.wrap(BinaryCodec.encodeIceCandidate(SEND_ICE_FOR_PLAY, candidate)), "token");
+        assertEquals(ICE_FOR_PLAY, play.getIceFor());
+    }
+
+    @Test
+    void encodesMapItemLocations() {
+        LocationUpdatePipeline pipeline = new LocationUpdatePipeline(250, 4, 0.05);
+        pipeline.update("ana", 44.43, 26.10);
+        pipeline.update("Ștefan", 45.75, 21.23);
+
+        ByteBuffer frame = ByteBuffer.wrap(BinaryCodec.encodeMapItemLocations(pipeline.getLocations()));
+        assertEquals(BinaryCodec.TYPE_MAP_ITEM_LOCATIONS, frame.get());
+        assertEquals(2, Short.toUnsignedInt(frame.getShort()));
+        assertEquals(44.43, frame.getDouble());
+        assertEquals(26.10, frame.getDouble());
+        assertEquals("ana", readString(frame));
+        assertEquals(45.75, frame.getDouble());
+        assertEquals(21.23, frame.getDouble());
+        assertEquals("Ștefan", readString(frame));
+        assertFalse(frame.hasRemaining());
+
+        assertArrayEquals(new byte[]{BinaryCodec.TYPE_MAP_ITEM_LOCATIONS, 0, 0}, BinaryCodec.encodeMapItemLocations(List.of()));
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decode(ByteBuffer.wrap(new byte[]{42}), "token"));
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryCodec.decode(ByteBuffer.wrap(new byte[]{BinaryCodec.TYPE_LOCATION, 1, 2}), "token"));
+        // unknown ice target
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryCodec.decode(ByteBuffer.wrap(new byte[]{BinaryCodec.TYPE_ICE_CANDIDATE, 9, 0, 0, 0, 0, 0, 0}), "token"));
+        // string longer than the frame
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryCodec.decode(ByteBuffer.wrap(new byte[]{BinaryCodec.TYPE_ICE_CANDIDATE, 0, 0, 0, 0, 5, 'a'}), "token"));
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryCodec.encodeIceCandidate("unknown", new IceCandidate("candidate", "0", 0)));
+    }
+
+    private static String readString(ByteBuffer frame) {
+        byte[] bytes = new byte[Short.toUnsignedInt(frame.getShort())];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
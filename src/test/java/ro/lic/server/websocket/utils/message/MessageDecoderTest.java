@@ -0,0 +1,107 @@
+package ro.lic.server.websocket.utils.message;
+
+import com.google.gson.JsonSyntaxException;
+import org.junit.jupiter.api.Test;
+import ro.lic.server.model.tables.MapItem;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageDecoderTest {
+
+    @Test
+    void decodesFieldsAndSkipsUnknownOnes() {
+        InboundMessage message = MessageDecoder.decode("{\"method\":\"request\",\"event\":\"getUsers\",\"token\":\"abc\","
+                + "\"after\":\"cursor\",\"limit\":50,\"stream\":true,\"unknown\":{\"nested\":[1,2]},\"from\":1,\"to\":2}");
+        assertEquals("request", message.getMethod());
+        assertEquals("getUsers", message.getEvent());
+        assertEquals("abc", message.getToken());
+        assertEquals("cursor", message.getAfter());
+        assertEquals(50, message.getLimit());
+        assertTrue(message.isStream());
+        assertEquals(1, message.getFrom());
+        assertEquals(2, message.getTo());
+    }
+
+    @Test
+    void decodesLocationAndBoundsPayloads() {
+        InboundMessage location = MessageDecoder.decode("{\"event\":\"location\",\"payload\":{\"lat\":44.43,\"lng\":26.1}}");
+        assertTrue(location.hasLocation());
+        assertFalse(location.hasBounds());
+        assertEquals(44.43, location.getLat());
+        assertEquals(26.1, location.getLng());
+
+        InboundMessage partial = MessageDecoder.decode("{\"payload\":{\"lat\":44.43}}");
+        assertFalse(partial.hasLocation());
+
+        InboundMessage area = MessageDecoder.decode("{\"payload\":{\"north\":45,\"south\":44,\"east\":27,\"west\":26}}");
+        assertTrue(area.hasBounds());
+        assertEquals(26, area.getWest());
+
+        InboundMessage text = MessageDecoder.decode("{\"payload\":\"{\\\"username\\\":\\\"ana\\\"}\"}");
+        assertEquals("{\"username\":\"ana\"}", text.getPayload());
+    }
+
+    @Test
+    void messageIsResetBetweenDecodes() {
+        MessageDecoder.decode("{\"token\":\"abc\",\"payload\":{\"lat\":1,\"lng\":2},\"removed\":[1],\"version\":3}");
+        InboundMessage message = MessageDecoder.decode("{\"method\":\"update\"}");
+        assertNull(message.getToken());
+        assertFalse(message.hasLocation());
+        assertTrue(message.getRemovedItems().isEmpty());
+        assertEquals(-1, message.getVersion());
+    }
+
+    @Test
+    void decodesIceCandidate() {
+        InboundMessage message = MessageDecoder.decode("{\"method\":\"media\",\"event\":\"iceCandidate\",\"candidate\":"
+                + "{\"iceFor\":\"iceForRec\",\"candidate\":\"candidate:1\",\"sdpMid\":null,\"sdpMLineIndex\":2}}");
+        assertEquals("iceForRec", message.getIceFor());
+        assertEquals("candidate:1", message.getCandidate());
+        assertNull(message.getSdpMid());
+        assertEquals(2, message.getSdpMLineIndex());
+    }
+
+    @Test
+    void newMapItemsTakeTheTypeOfTheirList() {
+        InboundMessage message = MessageDecoder.decode("{\"paths\":[{\"name\":\"route\",\"color\":255,"
+                + "\"coordinates\":[{\"latitude\":44.1,\"longitude\":26.1},{\"latitude\":44.2,\"longitude\":26.2}]}],"
+                // items may be sent as json strings
+                + "\"marks\":[\"{\\\"name\\\":\\\"pin\\\"}\"]}");
+        MapItem path = message.getPaths().get(0);
+        assertEquals("PATH", path.getType());
+        assertEquals("route", path.getName());
+        assertEquals(255, path.getColor());
+        assertEquals(2, path.getCoordinates().size());
+        assertEquals(26.2, path.getCoordinates().get(1).getLongitude());
+
+        MapItem marker = message.getMarkers().get(0);
+        assertEquals("MARKER", marker.getType());
+        assertEquals("pin", marker.getName());
+        // a new item without coordinates has none
+        assertNotNull(marker.getCoordinates());
+        assertTrue(marker.getCoordinates().isEmpty());
+    }
+
+    @Test
+    void changedMapItemsKeepTheirCoordinatesWhenLeftOut() {
+        InboundMessage message = MessageDecoder.decode("{\"updated\":[{\"id\":7,\"type\":\"ZONE\",\"name\":\"renamed\"},"
+                + "{\"id\":8,\"type\":\"PATH\",\"coordinates\":[]}],\"removed\":[3,4],\"version\":12}");
+        List<MapItem> updated = message.getUpdatedItems();
+        assertEquals(2, updated.size());
+        assertEquals(7L, updated.get(0).getId());
+        assertEquals("ZONE", updated.get(0).getType());
+        assertNull(updated.get(0).getCoordinates());
+        assertTrue(updated.get(1).getCoordinates().isEmpty());
+        assertEquals(List.of(3L, 4L), message.getRemovedItems());
+        assertEquals(12, message.getVersion());
+    }
+
+    @Test
+    void rejectsInvalidMessages() {
+        assertThrows(JsonSyntaxException.class, () -> MessageDecoder.decode("{\"method\":"));
+        assertThrows(JsonSyntaxException.class, () -> MessageDecoder.decode("[1,2]"));
+        assertThrows(JsonSyntaxException.class, () -> MessageDecoder.decode("{\"limit\":\"many\"}"));
+    }
+}
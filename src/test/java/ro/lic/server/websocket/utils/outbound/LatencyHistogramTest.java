@@ -0,0 +1,91 @@
+package ro.lic.server.websocket.utils.outbound;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99, TimeUnit.NANOSECONDS));
+        assertEquals(0, histogram.getMax(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    void bucketsCoverEveryValue() {
+        for (long value = 0; value < 1 << 20; value += 1 + value / 64) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(value <= LatencyHistogram.upperBoundOf(index), "upper bound of " + value);
+            if (index > 0) {
+                assertTrue(value > LatencyHistogram.upperBoundOf(index - 1), "lower bound of " + value);
+            }
+        }
+    }
+
+    @Test
+    void percentilesAreWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax(TimeUnit.MICROSECONDS));
+
+        assertWithin(500, histogram.getPercentile(50, TimeUnit.MICROSECONDS));
+        assertWithin(990, histogram.getPercentile(99, TimeUnit.MICROSECONDS));
+        // capped by the maximum
+        assertEquals(1000, histogram.getPercentile(100, TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    void negativeDurationsAreZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50, TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    void hugeDurationsAreCountedInTheLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.getCount());
+        assertTrue(histogram.getPercentile(50, TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    void windowOnlyHoldsTheLastPeriod() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        LatencyHistogram.Window window = histogram.newWindow();
+
+        // durations before the window was created are not in it
+        window.roll();
+        assertEquals(0, window.getCount());
+        assertEquals(0, window.getPercentile(50, TimeUnit.MICROSECONDS));
+        assertEquals(0, window.getMax(TimeUnit.MICROSECONDS));
+
+        for (int i = 0; i < 100; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        // not visible until the window is rolled
+        assertEquals(0, window.getCount());
+        window.roll();
+        assertEquals(100, window.getCount());
+        assertWithin(10, window.getPercentile(99, TimeUnit.MICROSECONDS));
+        assertWithin(10, window.getMax(TimeUnit.MICROSECONDS));
+
+        window.roll();
+        assertEquals(0, window.getCount());
+        assertEquals(101, histogram.getCount());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual >= expected * 0.875 && actual <= expected * 1.125, actual + " is not close to " + expected);
+    }
+}
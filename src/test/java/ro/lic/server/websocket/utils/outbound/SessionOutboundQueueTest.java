@@ -0,0 +1,271 @@
+package ro.lic.server.websocket.utils.outbound;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import ro.lic.server.benchmark.FakeWebSocketSession;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The writer is held in its first send, so the messages offered meanwhile pile up in the queue as they would for a
+ * slow client.
+ */
+class SessionOutboundQueueTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private OutboundDispatcher dispatcher;
+
+    @AfterEach
+    void shutdown() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    void sendsInOrder() throws Exception {
+        RecordingSession session = new RecordingSession(false);
+        SessionOutboundQueue queue = newQueue(session, 256, OverflowPolicy.COALESCE);
+
+        for (int i = 0; i < 200; i++) {
+            assertTrue(queue.offer(message("m" + i), null));
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals("m" + i, session.next());
+        }
+        assertEquals(0, queue.getDepth());
+        // counted once the write returns
+        awaitTrue(() -> dispatcher.getSent() == 200);
+        assertEquals(200, dispatcher.getSendLatency().getCount());
+    }
+
+    @Test
+    void coalescesPendingMessagesWithTheSameKey() throws Exception {
+        RecordingSession session = new RecordingSession(true);
+        SessionOutboundQueue queue = newQueue(session, 256, OverflowPolicy.COALESCE);
+        holdWriter(session, queue);
+
+        queue.offer(message("ana-1"), "ana");
+        queue.offer(message("bob-1"), "bob");
+        queue.offer(message("ana-2"), "ana");
+        queue.offer(message("ana-3"), "ana");
+        assertEquals(2, queue.getDepth());
+        assertEquals(2, dispatcher.getCoalesced());
+
+        session.resume();
+        assertEquals("first", session.next());
+        // the coalesced message keeps the place of the first one
+        assertEquals("ana-3", session.next());
+        assertEquals("bob-1", session.next());
+        assertNothingElseSent(session, queue);
+
+        // once sent, a key starts a new message
+        queue.offer(message("ana-4"), "ana");
+        assertEquals("ana-4", session.next());
+    }
+
+    @Test
+    void dropOldestDoesNotCoalesce() throws Exception {
+        RecordingSession session = new RecordingSession(true);
+        SessionOutboundQueue queue = newQueue(session, 256, OverflowPolicy.DROP_OLDEST);
+        holdWriter(session, queue);
+
+        queue.offer(message("ana-1"), "ana");
+        queue.offer(message("ana-2"), "ana");
+        assertEquals(2, queue.getDepth());
+
+        session.resume();
+        assertEquals("first", session.next());
+        assertEquals("ana-1", session.next());
+        assertEquals("ana-2", session.next());
+        assertNothingElseSent(session, queue);
+        assertEquals(0, dispatcher.getCoalesced());
+    }
+
+    @Test
+    void overflowDropsTheOldestKeyedMessages() throws Exception {
+        RecordingSession session = new RecordingSession(true);
+        SessionOutboundQueue queue = newQueue(session, 3, OverflowPolicy.COALESCE);
+        holdWriter(session, queue);
+
+        queue.offer(message("ana-1"), "ana");
+        queue.offer(message("token"), null);
+        queue.offer(message("bob-1"), "bob");
+        queue.offer(message("cid-1"), "cid");
+        assertEquals(3, queue.getDepth());
+        assertEquals(1, dispatcher.getDropped());
+
+        // a dropped key is queued again
+        queue.offer(message("ana-2"), "ana");
+        assertEquals(3, queue.getDepth());
+        assertEquals(2, dispatcher.getDropped());
+
+        session.resume();
+        assertEquals("first", session.next());
+        assertEquals("token", session.next());
+        assertEquals("cid-1", session.next());
+        assertEquals("ana-2", session.next());
+        assertNothingElseSent(session, queue);
+        assertEquals(0, dispatcher.getDisconnected());
+    }
+
+    @Test
+    void signallingMessagesAreNeverDropped() throws Exception {
+        RecordingSession session = new RecordingSession(true);
+        SessionOutboundQueue queue = newQueue(session, 2, OverflowPolicy.COALESCE);
+        holdWriter(session, queue);
+
+        queue.offer(message("candidate-1"), null);
+        queue.offer(message("candidate-2"), null);
+        queue.offer(message("candidate-3"), null);
+        assertEquals(0, dispatcher.getDropped());
+        assertEquals(1, dispatcher.getDisconnected());
+        assertFalse(queue.offer(message("candidate-4"), null));
+
+        session.resume();
+        assertEquals("first", session.next());
+        assertEquals(CloseStatus.SESSION_NOT_RELIABLE, session.closeStatus());
+        assertNull(session.received.poll());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    void disconnectPolicyClosesOnOverflow() throws Exception {
+        RecordingSession session = new RecordingSession(true);
+        SessionOutboundQueue queue = newQueue(session, 2, OverflowPolicy.DISCONNECT);
+        holdWriter(session, queue);
+
+        queue.offer(message("ana-1"), "ana");
+        queue.offer(message("bob-1"), "bob");
+        queue.offer(message("cid-1"), "cid");
+        assertEquals(0, dispatcher.getDropped());
+        assertEquals(1, dispatcher.getDisconnected());
+
+        session.resume();
+        assertEquals("first", session.next());
+        assertEquals(CloseStatus.SESSION_NOT_RELIABLE, session.closeStatus());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    void closeSendsThePendingMessagesFirst() throws Exception {
+        RecordingSession session = new RecordingSession(true);
+        SessionOutboundQueue queue = newQueue(session, 256, OverflowPolicy.COALESCE);
+        holdWriter(session, queue);
+
+        queue.offer(message("bye"), null);
+        queue.close(CloseStatus.NORMAL);
+        assertFalse(queue.offer(message("late"), null));
+
+        session.resume();
+        assertEquals("first", session.next());
+        assertEquals("bye", session.next());
+        assertEquals(CloseStatus.NORMAL, session.closeStatus());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    void messagesForAClosedSessionAreDiscarded() throws Exception {
+        RecordingSession session = new RecordingSession(true);
+        SessionOutboundQueue queue = newQueue(session, 256, OverflowPolicy.COALESCE);
+        holdWriter(session, queue);
+
+        queue.offer(message("ana-1"), "ana");
+        queue.offer(message("token"), null);
+        // closed by the client while the writer is sending
+        session.close();
+
+        session.resume();
+        assertEquals("first", session.next());
+        awaitTrue(() -> queue.getDepth() == 0);
+        assertFalse(queue.offer(message("late"), null));
+        assertEquals(1, dispatcher.getSent());
+    }
+
+    private SessionOutboundQueue newQueue(RecordingSession session, int maxDepth, OverflowPolicy policy) {
+        dispatcher = new OutboundDispatcher(1, maxDepth, policy, 5000);
+        return dispatcher.newQueue(session);
+    }
+
+    /**
+     * Sends a message the writer takes and blocks on, until {@link RecordingSession#resume()}.
+     */
+    private static void holdWriter(RecordingSession session, SessionOutboundQueue queue) throws InterruptedException {
+        queue.offer(message("first"), null);
+        assertTrue(session.sending.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, queue.getDepth());
+    }
+
+    /**
+     * A message queued last is the next one sent.
+     */
+    private static void assertNothingElseSent(RecordingSession session, SessionOutboundQueue queue) throws InterruptedException {
+        queue.offer(message("last"), null);
+        assertEquals("last", session.next());
+        assertEquals(0, queue.getDepth());
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static TextMessage message(String text) {
+        return new TextMessage(text);
+    }
+
+    private static class RecordingSession extends FakeWebSocketSession {
+        private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final CountDownLatch resume;
+        private final CompletableFuture<CloseStatus> closed = new CompletableFuture<>();
+
+        private RecordingSession(boolean holdFirstSend) {
+            super("test");
+            resume = new CountDownLatch(holdFirstSend ? 1 : 0);
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            super.sendMessage(message);
+            sending.countDown();
+            try {
+                resume.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            received.add((String) message.getPayload());
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+            super.close(status);
+            closed.complete(status);
+        }
+
+        private void resume() {
+            resume.countDown();
+        }
+
+        private String next() throws InterruptedException {
+            return received.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        private CloseStatus closeStatus() throws Exception {
+            return closed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+}